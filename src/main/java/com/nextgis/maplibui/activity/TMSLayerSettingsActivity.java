@@ -25,12 +25,14 @@ package com.nextgis.maplibui.activity;
 
 import android.content.DialogInterface;
 import android.os.Bundle;
+import android.text.format.Formatter;
 import android.support.v4.app.Fragment;
 import android.support.v7.widget.SwitchCompat;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
+import android.widget.ArrayAdapter;
 import android.widget.Button;
 import android.widget.CompoundButton;
 import android.widget.SeekBar;
@@ -39,12 +41,14 @@ import android.widget.TextView;
 
 import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.display.TMSRenderer;
+import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.fragment.LayerGeneralSettingsFragment;
 import com.nextgis.maplibui.util.ClearCacheTask;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.TileCacheEvictor;
 
 /**
  * TMS layer settings activity. Include common settings (layer name) and renderer settings.
@@ -247,6 +251,11 @@ public class TMSLayerSettingsActivity
                         }
                     });
 
+            if (mRasterLayer instanceof RemoteTMSLayer)
+                setupBudget(v);
+            else
+                v.findViewById(R.id.cache_budget).setVisibility(View.GONE);
+
             Button clearCache = (Button) v.findViewById(R.id.clear_cache);
             clearCache.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -264,5 +273,54 @@ public class TMSLayerSettingsActivity
 
             return v;
         }
+
+        protected void setupBudget(View v) {
+            final TileCacheEvictor evictor = TileCacheEvictor.getEvictor(mRasterLayer.getPath());
+            final int[] sizes = getResources().getIntArray(R.array.tms_cache_budget_size_mb);
+            final int[] counts = getResources().getIntArray(R.array.tms_cache_budget_tiles);
+
+            ArrayAdapter<CharSequence> sizeAdapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_spinner_item);
+            sizeAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            int sizeSelection = 0;
+            for (int i = 0; i < sizes.length; i++) {
+                long bytes = (long) sizes[i] * 1024 * 1024;
+                sizeAdapter.add(bytes == 0 ? getString(R.string.cache_unlimited) : Formatter.formatShortFileSize(getContext(), bytes));
+                if (bytes == evictor.getMaxBytes())
+                    sizeSelection = i;
+            }
+
+            ArrayAdapter<CharSequence> countAdapter = new ArrayAdapter<>(getContext(), android.R.layout.simple_spinner_item);
+            countAdapter.setDropDownViewResource(android.R.layout.simple_spinner_dropdown_item);
+            int countSelection = 0;
+            for (int i = 0; i < counts.length; i++) {
+                countAdapter.add(counts[i] == 0 ? getString(R.string.cache_unlimited) : String.valueOf(counts[i]));
+                if (counts[i] == evictor.getMaxTiles())
+                    countSelection = i;
+            }
+
+            final Spinner size = (Spinner) v.findViewById(R.id.cache_budget_size);
+            final Spinner count = (Spinner) v.findViewById(R.id.cache_budget_tiles);
+            size.setAdapter(sizeAdapter);
+            size.setSelection(sizeSelection);
+            count.setAdapter(countAdapter);
+            count.setSelection(countSelection);
+
+            AdapterView.OnItemSelectedListener listener = new AdapterView.OnItemSelectedListener() {
+                @Override
+                public void onItemSelected(AdapterView<?> parent, View view, int position, long id) {
+                    long maxBytes = (long) sizes[size.getSelectedItemPosition()] * 1024 * 1024;
+                    long maxTiles = counts[count.getSelectedItemPosition()];
+                    if (maxBytes != evictor.getMaxBytes() || maxTiles != evictor.getMaxTiles())
+                        evictor.setBudget(maxBytes, maxTiles);
+                }
+
+                @Override
+                public void onNothingSelected(AdapterView<?> parent) {
+
+                }
+            };
+            size.setOnItemSelectedListener(listener);
+            count.setOnItemSelectedListener(listener);
+        }
     }
 }
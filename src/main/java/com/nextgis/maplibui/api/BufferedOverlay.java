@@ -0,0 +1,342 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.PointF;
+import android.graphics.RectF;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplibui.mapui.MapViewOverlays;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * The overlay, which is rasterized to its own bitmap on the background thread. The UI thread
+ * only draws the last rendered bitmap to its place in the current map extent. The bitmap is
+ * rendered again only when the overlay is marked dirty by {@link #invalidateOverlay()} or the
+ * map extent or the view size is changed. The map extent and the view size are taken on the UI
+ * thread when the render is posted, the background thread never reads the live map state.
+ */
+public abstract class BufferedOverlay
+        extends Overlay
+{
+    protected static HandlerThread mRenderThread;
+
+    protected final Handler       mRenderHandler;
+    protected final Runnable      mRenderTask;
+    protected final AtomicBoolean mRenderPending;
+    protected final Paint         mBitmapPaint;
+    protected final RectF         mRect;
+
+    protected          Bitmap       mFrontBitmap;
+    protected          Bitmap       mBackBitmap;
+    protected          GeoEnvelope  mFrontEnvelope;
+    protected          boolean      mHasContent;
+    protected volatile boolean      mIsDirty;
+    protected volatile RenderExtent mRenderExtent;
+
+
+    public BufferedOverlay(
+            Context context,
+            MapViewOverlays mapViewOverlays)
+    {
+        super(context, mapViewOverlays);
+
+        mRenderHandler = new Handler(getRenderThread().getLooper());
+        mRenderPending = new AtomicBoolean();
+        mBitmapPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mRect = new RectF();
+        mIsDirty = true;
+
+        mRenderTask = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                mRenderPending.set(false);
+                renderBuffer();
+            }
+        };
+    }
+
+
+    protected static synchronized HandlerThread getRenderThread()
+    {
+        if (null == mRenderThread) {
+            mRenderThread =
+                    new HandlerThread("OverlayRender", Process.THREAD_PRIORITY_BACKGROUND);
+            mRenderThread.start();
+        }
+        return mRenderThread;
+    }
+
+
+    /**
+     * Renders the overlay to the bitmap of the view size. Executed on the background thread, the
+     * points are projected to the bitmap with the extent instead of the live map.
+     *
+     * @return false if there is nothing to draw
+     */
+    protected abstract boolean render(
+            Canvas canvas,
+            RenderExtent extent);
+
+
+    /**
+     * Marks the data of the overlay changed, the overlay is rendered again on the background
+     * thread. Called on the UI thread.
+     */
+    public void invalidateOverlay()
+    {
+        mIsDirty = true;
+        postRender();
+    }
+
+
+    protected void postRender()
+    {
+        MapDrawable map = mMapViewOverlays.getMap();
+        int width = mMapViewOverlays.getWidth();
+        int height = mMapViewOverlays.getHeight();
+        if (null == map || width <= 0 || height <= 0) {
+            return;
+        }
+
+        // the pending render takes the last extent
+        mRenderExtent = new RenderExtent(map.getCurrentBounds(), width, height);
+        if (mRenderPending.compareAndSet(false, true)) {
+            mRenderHandler.post(mRenderTask);
+        }
+    }
+
+
+    protected void renderBuffer()
+    {
+        RenderExtent extent = mRenderExtent;
+        if (null == extent) {
+            return;
+        }
+        int width = extent.getWidth();
+        int height = extent.getHeight();
+
+        if (null == mBackBitmap || mBackBitmap.getWidth() != width
+                || mBackBitmap.getHeight() != height) {
+            if (null != mBackBitmap) {
+                mBackBitmap.recycle();
+            }
+            try {
+                mBackBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                mBackBitmap = null;
+                return;
+            }
+        }
+
+        // the changes after this moment will be rendered by the next pass
+        mIsDirty = false;
+        mBackBitmap.eraseColor(Color.TRANSPARENT);
+        boolean hasContent = render(new Canvas(mBackBitmap), extent);
+
+        synchronized (this) {
+            Bitmap bitmap = mFrontBitmap;
+            mFrontBitmap = mBackBitmap;
+            mBackBitmap = bitmap;
+            mFrontEnvelope = extent.getEnvelope();
+            mHasContent = hasContent;
+        }
+        mMapViewOverlays.requestRedraw();
+    }
+
+
+    /**
+     * @return true if the bitmap was rendered for the other map extent or view size
+     */
+    protected synchronized boolean isBufferOutdated(MapDrawable mapDrawable)
+    {
+        if (null == mFrontBitmap || mFrontBitmap.getWidth() != mMapViewOverlays.getWidth()
+                || mFrontBitmap.getHeight() != mMapViewOverlays.getHeight()) {
+            return true;
+        }
+        GeoEnvelope bounds = mapDrawable.getCurrentBounds();
+        return null == mFrontEnvelope || mFrontEnvelope.getMinX() != bounds.getMinX()
+                || mFrontEnvelope.getMinY() != bounds.getMinY()
+                || mFrontEnvelope.getMaxX() != bounds.getMaxX()
+                || mFrontEnvelope.getMaxY() != bounds.getMaxY();
+    }
+
+
+    /**
+     * Draws the rendered bitmap to its place in the current map extent
+     */
+    protected synchronized void drawBuffer(
+            Canvas canvas,
+            MapDrawable mapDrawable)
+    {
+        if (!mHasContent || null == mFrontEnvelope || null == mFrontBitmap) {
+            return;
+        }
+
+        GeoPoint topLeft = mapDrawable.mapToScreen(
+                new GeoPoint(mFrontEnvelope.getMinX(), mFrontEnvelope.getMaxY()));
+        GeoPoint bottomRight = mapDrawable.mapToScreen(
+                new GeoPoint(mFrontEnvelope.getMaxX(), mFrontEnvelope.getMinY()));
+        mRect.set((float) topLeft.getX(), (float) topLeft.getY(), (float) bottomRight.getX(),
+                (float) bottomRight.getY());
+        canvas.drawBitmap(mFrontBitmap, null, mRect, mBitmapPaint);
+    }
+
+
+    @Override
+    public void draw(
+            Canvas canvas,
+            MapDrawable mapDrawable)
+    {
+        if (mIsDirty || isBufferOutdated(mapDrawable)) {
+            postRender();
+        }
+        drawBuffer(canvas, mapDrawable);
+    }
+
+
+    @Override
+    public void drawOnPanning(
+            Canvas canvas,
+            PointF currentMouseOffset)
+    {
+        canvas.save();
+        canvas.translate(-currentMouseOffset.x, -currentMouseOffset.y);
+        drawBuffer(canvas, mMapViewOverlays.getMap());
+        canvas.restore();
+    }
+
+
+    @Override
+    public void drawOnZooming(
+            Canvas canvas,
+            PointF currentFocusLocation,
+            float scale)
+    {
+        canvas.save();
+        canvas.scale(scale, scale, -currentFocusLocation.x, -currentFocusLocation.y);
+        drawBuffer(canvas, mMapViewOverlays.getMap());
+        canvas.restore();
+    }
+
+
+    /**
+     * Frees the bitmaps, the overlay is rendered again on the next draw
+     */
+    public void release()
+    {
+        mRenderHandler.removeCallbacks(mRenderTask);
+        mRenderPending.set(false);
+        mRenderHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (BufferedOverlay.this) {
+                    if (null != mFrontBitmap) {
+                        mFrontBitmap.recycle();
+                        mFrontBitmap = null;
+                    }
+                    if (null != mBackBitmap) {
+                        mBackBitmap.recycle();
+                        mBackBitmap = null;
+                    }
+                    mFrontEnvelope = null;
+                    mHasContent = false;
+                    mIsDirty = true;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * The map extent and the view size for one render pass, taken on the UI thread
+     */
+    public static class RenderExtent
+    {
+        protected final GeoEnvelope mEnvelope;
+        protected final int         mWidth;
+        protected final int         mHeight;
+        protected final double      mScaleX;
+        protected final double      mScaleY;
+
+
+        public RenderExtent(
+                GeoEnvelope bounds,
+                int width,
+                int height)
+        {
+            mEnvelope = new GeoEnvelope(bounds.getMinX(), bounds.getMaxX(), bounds.getMinY(),
+                    bounds.getMaxY());
+            mWidth = width;
+            mHeight = height;
+            mScaleX = width / mEnvelope.width();
+            mScaleY = height / mEnvelope.height();
+        }
+
+
+        public GeoEnvelope getEnvelope()
+        {
+            return mEnvelope;
+        }
+
+
+        public int getWidth()
+        {
+            return mWidth;
+        }
+
+
+        public int getHeight()
+        {
+            return mHeight;
+        }
+
+
+        /**
+         * Projects the map point to the bitmap of the render pass
+         */
+        public GeoPoint mapToScreen(GeoPoint point)
+        {
+            return new GeoPoint((point.getX() - mEnvelope.getMinX()) * mScaleX,
+                    (mEnvelope.getMaxY() - point.getY()) * mScaleY);
+        }
+    }
+}
@@ -24,15 +24,16 @@ package com.nextgis.maplibui.api;
 import android.content.Context;
 import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
-import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.VectorLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplibui.util.VertexGrid;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -41,6 +42,11 @@ public class DrawItem {
     public static final int TYPE_VERTEX = 1;
     public static final int TYPE_EDGE = 2;
 
+    // the midpoints of the edges: none, between the points, between the points and the closing one
+    public static final int EDGES_NONE = 0;
+    public static final int EDGES_LINE = 1;
+    public static final int EDGES_RING = 2;
+
     public final static int VERTEX_RADIUS = 5;
     public final static int EDGE_RADIUS = 3;
     public final static int LINE_WIDTH = 4;
@@ -53,11 +59,21 @@ public class DrawItem {
     protected static float mAnchorRectOffsetX, mAnchorRectOffsetY;
 
     private static VertexStyle mEdgeStyle, mVertexStyle;
+    protected static MarkerSprite mEdgeSprite = new MarkerSprite(), mVertexSprite = new MarkerSprite();
     private static EditStyle mLineStyle, mPolygonStyle;
 
     protected List<float[]> mDrawItemsVertex;
     protected List<float[]> mDrawItemsEdge;
     protected int mSelectedRing = 0, mSelectedPoint = 0;
+    protected int mEdgesType = EDGES_NONE;
+    protected VertexGrid mVertexIndex, mEdgeIndex;
+    protected boolean mIsIndexValid;
+
+    // the buffers are reused by the frames of the pan and zoom
+    protected float[] mTransformBuffer = new float[0];
+    protected final float[] mPointBuffer = new float[2];
+    protected final List<Path> mPaths = new ArrayList<>();
+    protected final Path mPathFill = new Path();
 
     public DrawItem() {
         mDrawItemsVertex = new ArrayList<>();
@@ -127,6 +143,7 @@ public class DrawItem {
             }
             drawItem.addEdges(newItems);
         }
+        drawItem.mEdgesType = mEdgesType;
 
         return drawItem;
     }
@@ -153,23 +170,122 @@ public class DrawItem {
             }
             drawItem.addEdges(newItems);
         }
+        drawItem.mEdgesType = mEdgesType;
 
         return drawItem;
     }
 
     public void addVertices(float[] points) {
-        if (points != null)
+        if (points != null) {
             mDrawItemsVertex.add(points);
+            if (mEdgesType != EDGES_NONE)
+                mDrawItemsEdge.add(getEdges(points, mEdgesType));
+        }
+        mIsIndexValid = false;
     }
 
     public void addEdges(float[] points) {
         mDrawItemsEdge.add(points);
+        mIsIndexValid = false;
+    }
+
+    /**
+     * Builds the grid indexes of the vertices and the edges for the hit tests, only after the
+     * points are changed
+     */
+    protected void updateIndex() {
+        if (mIsIndexValid)
+            return;
+
+        if (mVertexIndex == null) {
+            mVertexIndex = new VertexGrid();
+            mEdgeIndex = new VertexGrid();
+        }
+
+        mVertexIndex.build(mDrawItemsVertex);
+        mEdgeIndex.build(mDrawItemsEdge);
+        mIsIndexValid = true;
     }
 
     public List<float[]> getEdges() {
         return mDrawItemsEdge;
     }
 
+    /**
+     * Sets the type of the edges, which are kept in line with the vertices from now on, and
+     * computes the edges of all the rings
+     *
+     * @param edgesType one of EDGES_NONE, EDGES_LINE and EDGES_RING
+     */
+    public void setEdgesType(int edgesType) {
+        mEdgesType = edgesType;
+        mDrawItemsEdge.clear();
+        if (mEdgesType != EDGES_NONE) {
+            for (float[] points : mDrawItemsVertex)
+                mDrawItemsEdge.add(getEdges(points, mEdgesType));
+        }
+        mIsIndexValid = false;
+    }
+
+    public int getEdgesType() {
+        return mEdgesType;
+    }
+
+    /**
+     * @return the type of the edges for the geometry type
+     */
+    public static int getEdgesType(int geometryType) {
+        switch (geometryType) {
+            case GeoConstants.GTLineString:
+            case GeoConstants.GTMultiLineString:
+                return EDGES_LINE;
+            case GeoConstants.GTLinearRing:
+            case GeoConstants.GTPolygon:
+            case GeoConstants.GTMultiPolygon:
+                return EDGES_RING;
+            default:
+                return EDGES_NONE;
+        }
+    }
+
+    /**
+     * @return the midpoints of the edges between the points, the edge of the ring from the last
+     * point to the first one is the last
+     */
+    public static float[] getEdges(float[] points, int edgesType) {
+        if (edgesType == EDGES_NONE || points.length < 2)
+            return new float[0];
+
+        float[] edges = new float[edgesType == EDGES_RING ? points.length : points.length - 2];
+        for (int i = 0; i < edges.length - 1; i += 2)
+            setEdge(points, edges, i);
+        return edges;
+    }
+
+    /**
+     * Sets the midpoint of the edge from the point to the next one
+     */
+    protected static void setEdge(float[] points, float[] edges, int point) {
+        if (point < 0 || point > edges.length - 2)
+            return;
+
+        int next = (point + 2) % points.length;
+        edges[point] = (points[point] + points[next]) * .5f;
+        edges[point + 1] = (points[point + 1] + points[next + 1]) * .5f;
+    }
+
+    protected void updateEdges(int ring) {
+        if (mEdgesType != EDGES_NONE && ring >= 0 && ring < mDrawItemsEdge.size())
+            mDrawItemsEdge.set(ring, getEdges(mDrawItemsVertex.get(ring), mEdgesType));
+    }
+
+    protected void removeRing(int ring) {
+        mDrawItemsVertex.remove(ring);
+        if (ring < mDrawItemsEdge.size())
+            mDrawItemsEdge.remove(ring);
+        mIsIndexValid = false;
+    }
+
     public void addNewPoint(float x, float y) {
         float[] points = getSelectedRing();
         if (null == points) {
@@ -208,6 +324,17 @@ public class DrawItem {
         if (null != points && mSelectedPoint >= 0 && mSelectedPoint < points.length - 1) {
             points[mSelectedPoint] = x;
             points[mSelectedPoint + 1] = y;
+
+            // only the two edges of the point are moved
+            if (mEdgesType != EDGES_NONE && mSelectedRing < mDrawItemsEdge.size()) {
+                float[] edges = mDrawItemsEdge.get(mSelectedRing);
+                int previous = mSelectedPoint - 2;
+                if (previous < 0 && mEdgesType == EDGES_RING)
+                    previous = points.length - 2;
+                setEdge(points, edges, previous);
+                setEdge(points, edges, mSelectedPoint);
+            }
+            mIsIndexValid = false;
         }
     }
 
@@ -224,12 +351,20 @@ public class DrawItem {
     }
 
     public void deleteSelectedPoint(VectorLayer layer) {
+        deleteSelectedPoint(layer.getGeometryType());
+    }
+
+    /**
+     * Deletes the selected point, or the whole ring if it has the minimum number of the points
+     * for the geometry type
+     */
+    public void deleteSelectedPoint(int geometryType) {
         float[] points = getSelectedRing();
         if (null == points || mSelectedPoint < 0)
             return;
 
-        if (points.length <= getMinPointCount(layer.getGeometryType()) * 2) {
-            mDrawItemsVertex.remove(mSelectedRing);
+        if (points.length <= getMinPointCount(geometryType) * 2) {
+            removeRing(mSelectedRing);
             mSelectedRing = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
             mSelectedPoint = Constants.NOT_FOUND;
             return;
@@ -260,8 +395,11 @@ public class DrawItem {
     }
 
     public void setRing(int ring, float[] points) {
-        if (ring >= 0 && ring < mDrawItemsVertex.size())
+        if (ring >= 0 && ring < mDrawItemsVertex.size()) {
             mDrawItemsVertex.set(ring, points);
+            updateEdges(ring);
+        }
+        mIsIndexValid = false;
     }
 
     public void setSelectedRing(int selectedRing) {
@@ -283,55 +421,64 @@ public class DrawItem {
         return ring < 0 || ring >= mDrawItemsVertex.size() ? null : mDrawItemsVertex.get(ring).clone();
     }
 
+    /**
+     * @return the number of the coordinates in the ring without the copy of the ring
+     */
+    public int getRingSize(int ring) {
+        return ring < 0 || ring >= mDrawItemsVertex.size() ? 0 : mDrawItemsVertex.get(ring).length;
+    }
+
+    public float getCoordinate(int ring, int index) {
+        return mDrawItemsVertex.get(ring)[index];
+    }
+
     public int getRingCount() {
         return mDrawItemsVertex.size();
     }
 
     public void deleteSelectedRing() {
-        mDrawItemsVertex.remove(mSelectedRing);
+        removeRing(mSelectedRing);
         mSelectedRing = mSelectedPoint = mDrawItemsVertex.size() > 0 ? 0 : Constants.NOT_FOUND;
     }
 
     public boolean isTapNearSelectedPoint(GeoEnvelope screenEnv) {
         float[] points = getSelectedRing();
         if (null != points && mSelectedPoint >= 0 && points.length > mSelectedPoint + 1) {
-            if (screenEnv.contains(new GeoPoint(points[mSelectedPoint], points[mSelectedPoint + 1]))) {
-                return true;
-            }
+            float x = points[mSelectedPoint], y = points[mSelectedPoint + 1];
+            return x >= screenEnv.getMinX() && x <= screenEnv.getMaxX()
+                    && y >= screenEnv.getMinY() && y <= screenEnv.getMaxY();
         }
         return false;
     }
 
+    /**
+     * Selects the vertex in the envelope, which is the nearest to its center
+     */
     public boolean intersectsVertices(GeoEnvelope screenEnv) {
-        int point;
-        for (int ring = 0; ring < mDrawItemsVertex.size(); ring++) {
-            point = 0;
-            float[] items = mDrawItemsVertex.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedRing = ring;
-                    mSelectedPoint = point;
-                    return true;
-                }
-                point += 2;
-            }
+        updateIndex();
+        if (mVertexIndex.findNearest(screenEnv.getMinX(), screenEnv.getMinY(), screenEnv.getMaxX(), screenEnv.getMaxY())) {
+            mSelectedRing = mVertexIndex.getResultRing();
+            mSelectedPoint = mVertexIndex.getResultPoint();
+            return true;
         }
 
         return false;
     }
 
+    /**
+     * Inserts the new vertex at the edge point in the envelope, which is the nearest to its center
+     */
     public boolean intersectsEdges(GeoEnvelope screenEnv) {
-        for (int ring = 0; ring < mDrawItemsEdge.size(); ring++) {
+        updateIndex();
+        if (mEdgeIndex.findNearest(screenEnv.getMinX(), screenEnv.getMinY(), screenEnv.getMaxX(), screenEnv.getMaxY())) {
+            int ring = mEdgeIndex.getResultRing();
+            int i = mEdgeIndex.getResultPoint();
             float[] items = mDrawItemsEdge.get(ring);
-            for (int i = 0; i < items.length - 1; i += 2) {
-                if (screenEnv.contains(new GeoPoint(items[i], items[i + 1]))) {
-                    mSelectedPoint = i + 2;
-                    mSelectedRing = ring;
-                    insertNewPoint(mSelectedPoint, items[i], items[i + 1]);
+            mSelectedPoint = i + 2;
+            mSelectedRing = ring;
+            insertNewPoint(mSelectedPoint, items[i], items[i + 1]);
 
-                    return true;
-                }
-            }
+            return true;
         }
 
         return false;
@@ -354,77 +501,124 @@ public class DrawItem {
     }
 
     public void drawPoints(Canvas canvas, boolean isSelected) {
+        drawPoints(canvas, isSelected, null);
+    }
+
+    /**
+     * @param transform the transform of the screen coordinates, null to draw them as is. The
+     *                  points are transformed to the reused buffer, so the radius and the width of
+     *                  the vertices are not scaled.
+     */
+    public void drawPoints(Canvas canvas, boolean isSelected, Matrix transform) {
         if (mVertexStyle == null)
             return;
 
         mPaint.setStyle(Paint.Style.STROKE);
         mPaint.setAlpha(mVertexStyle.getAlpha());
         for (int i = 0; i < getRingCount(); i++) {
-            float[] items = getRing(i);
-            if (items == null)
+            float[] ring = mDrawItemsVertex.get(i);
+            if (ring == null)
+                continue;
+
+            float[] items = transform(ring, transform);
+            if (mVertexSprite.draw(canvas, mVertexStyle, items, ring.length))
                 continue;
 
             mPaint.setColor(mVertexStyle.getOutColor());
             mPaint.setStrokeWidth(mVertexStyle.getOutWidth());
-            drawPoints(canvas, items, mVertexStyle.getOutRadius());
+            drawPoints(canvas, items, ring.length, mVertexStyle.getOutRadius());
 
             mPaint.setColor(mVertexStyle.getColor());
             mPaint.setStrokeWidth(mVertexStyle.getWidth());
-            drawPoints(canvas, items, mVertexStyle.getRadius());
+            drawPoints(canvas, items, ring.length, mVertexStyle.getRadius());
         }
 
         //draw selected point
         if (isSelected && getSelectedRingId() != Constants.NOT_FOUND && getSelectedPointId() != Constants.NOT_FOUND) {
-            float[] items = getSelectedRing();
-            if (null != items && items.length > 0) {
+            float[] items = mSelectedRing >= 0 && mSelectedRing < mDrawItemsVertex.size() ? mDrawItemsVertex.get(mSelectedRing) : null;
+            if (null != items && items.length > getSelectedPointId() + 1) {
                 mPaint.setColor(mVertexStyle.getSelectedColor());
                 mPaint.setStrokeWidth(mVertexStyle.getSelectedWidth());
-                float[] point = new float[]{items[getSelectedPointId()], items[getSelectedPointId() + 1]};
-                drawPoints(canvas, point, mVertexStyle.getSelectedRadius());
-                drawAnchor(canvas, items);
+                mPointBuffer[0] = items[getSelectedPointId()];
+                mPointBuffer[1] = items[getSelectedPointId() + 1];
+                if (transform != null)
+                    transform.mapPoints(mPointBuffer);
+                drawPoints(canvas, mPointBuffer, 2, mVertexStyle.getSelectedRadius());
+                drawAnchor(canvas, mPointBuffer[0], mPointBuffer[1]);
             }
         }
     }
 
+    /**
+     * @return the points of the array in the reused buffer, which is transformed by the matrix,
+     * or the array itself if there is no transform
+     */
+    protected float[] transform(float[] items, Matrix transform) {
+        if (transform == null)
+            return items;
+
+        if (mTransformBuffer.length < items.length)
+            mTransformBuffer = new float[items.length];
+        transform.mapPoints(mTransformBuffer, 0, items, 0, items.length / 2);
+        return mTransformBuffer;
+    }
+
     public void drawLines(Canvas canvas, boolean isSelected, boolean drawPoints, boolean drawEdges, boolean closed) {
-        Path[] paths = new Path[getRingCount()];
-        Path pathFill = new Path();
+        drawLines(canvas, isSelected, drawPoints, drawEdges, closed, null);
+    }
+
+    /**
+     * @param transform the transform of the screen coordinates, null to draw them as is
+     */
+    public void drawLines(Canvas canvas, boolean isSelected, boolean drawPoints, boolean drawEdges, boolean closed, Matrix transform) {
+        while (mPaths.size() < getRingCount())
+            mPaths.add(new Path());
+        mPathFill.rewind();
 
         // fill paths
         for (int j = 0; j < getRingCount(); j++) {
-            float[] itemsVertex = getRing(j);
-            if (itemsVertex == null)
-                continue;
+            Path path = mPaths.get(j);
+            path.rewind();
 
-            if (itemsVertex.length >= 2) {
-                Path path = new Path();
-                path.moveTo(itemsVertex[0], itemsVertex[1]);
-                for (int i = 2; i < itemsVertex.length - 1; i += 2)
-                    path.lineTo(itemsVertex[i], itemsVertex[i + 1]);
+            float[] ring = mDrawItemsVertex.get(j);
+            if (ring == null || ring.length < 2)
+                continue;
 
-                if (closed)
-                    path.lineTo(itemsVertex[0], itemsVertex[1]);
+            float[] itemsVertex = transform(ring, transform);
+            path.moveTo(itemsVertex[0], itemsVertex[1]);
+            int lastX = (int) itemsVertex[0], lastY = (int) itemsVertex[1];
+            for (int i = 2; i < ring.length - 1; i += 2) {
+                // the vertices in the same pixel are skipped, except the last one
+                int x = (int) itemsVertex[i], y = (int) itemsVertex[i + 1];
+                if (x == lastX && y == lastY && i < ring.length - 2)
+                    continue;
 
-                paths[j] = path;
-                pathFill.addPath(path);
+                path.lineTo(itemsVertex[i], itemsVertex[i + 1]);
+                lastX = x;
+                lastY = y;
             }
+
+            if (closed)
+                path.lineTo(itemsVertex[0], itemsVertex[1]);
+
+            mPathFill.addPath(path);
         }
 
         // draw filled polygon
         if (closed && mPolygonStyle != null) {
-            pathFill.setFillType(Path.FillType.EVEN_ODD);
+            mPathFill.setFillType(Path.FillType.EVEN_ODD);
             mPaint.setColor(isSelected ? mPolygonStyle.getSelectedColor() : mPolygonStyle.getColor());
             mPaint.setStyle(Paint.Style.FILL);
             mPaint.setAlpha(mPolygonStyle.getAlpha());
-            canvas.drawPath(pathFill, mPaint);
+            canvas.drawPath(mPathFill, mPaint);
         }
 
         if (mLineStyle != null) {
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setAlpha(mLineStyle.getAlpha());
-            for (int i = 0; i < paths.length; i++) {
-                Path path = paths[i];
-                if (path == null)
+            for (int i = 0; i < getRingCount(); i++) {
+                Path path = mPaths.get(i);
+                if (path.isEmpty())
                     continue;
 
                 if (isSelected && getSelectedRingId() == i) {
@@ -442,31 +636,48 @@ public class DrawItem {
         if (drawEdges && mEdgeStyle != null) {
             mPaint.setStyle(Paint.Style.STROKE);
             mPaint.setAlpha(mEdgeStyle.getAlpha());
-            for (float[] items : getEdges()) {
+            for (int j = 0; j < mDrawItemsEdge.size(); j++) {
+                float[] edges = mDrawItemsEdge.get(j);
+                float[] items = transform(edges, transform);
+                if (mEdgeSprite.draw(canvas, mEdgeStyle, items, edges.length))
+                    continue;
+
                 mPaint.setColor(mEdgeStyle.getOutColor());
                 mPaint.setStrokeWidth(mEdgeStyle.getOutWidth());
-                drawPoints(canvas, items, mEdgeStyle.getOutRadius());
+                drawPoints(canvas, items, edges.length, mEdgeStyle.getOutRadius());
 
                 mPaint.setColor(mEdgeStyle.getColor());
                 mPaint.setStrokeWidth(mEdgeStyle.getWidth());
-                drawPoints(canvas, items, mEdgeStyle.getRadius());
+                drawPoints(canvas, items, edges.length, mEdgeStyle.getRadius());
             }
         }
 
         if (drawPoints)
-            drawPoints(canvas, isSelected);
+            drawPoints(canvas, isSelected, transform);
     }
 
-    protected void drawAnchor(Canvas canvas, float[] items) {
-        if (mAnchor != null) {
-            float anchorX = items[getSelectedPointId()] + mAnchorRectOffsetX;
-            float anchorY = items[getSelectedPointId() + 1] + mAnchorRectOffsetY;
-            canvas.drawBitmap(mAnchor, anchorX, anchorY, null);
-        }
+    protected void drawAnchor(Canvas canvas, float x, float y) {
+        if (mAnchor != null)
+            canvas.drawBitmap(mAnchor, x + mAnchorRectOffsetX, y + mAnchorRectOffsetY, null);
     }
 
     protected void drawPoints(Canvas canvas, float[] items, float radius) {
-        for (int i = 0; i < items.length - 1; i += 2)
+        drawPoints(canvas, items, items.length, radius);
+    }
+
+    /**
+     * @param count the number of the coordinates to draw from the start of the array
+     */
+    protected void drawPoints(Canvas canvas, float[] items, int count, float radius) {
+        int lastX = Integer.MIN_VALUE, lastY = Integer.MIN_VALUE;
+        for (int i = 0; i < count - 1; i += 2) {
+            int x = (int) items[i], y = (int) items[i + 1];
+            if (x == lastX && y == lastY)
+                continue;
+
             canvas.drawCircle(items[i], items[i + 1], radius, mPaint);
+            lastX = x;
+            lastY = y;
+        }
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import com.nextgis.maplibui.mapui.RenderMetrics;
+
+import java.util.Map;
+
+
+/**
+ * Receiver of the map render metrics: a log, a file or a debug panel
+ */
+public interface IRenderMetricsSink
+{
+    /**
+     * Execute from the draw thread then the map draw is complete
+     *
+     * @param generation
+     *         the number of the map draw
+     * @param drawTime
+     *         the draw time of the map in milliseconds
+     * @param layerTimes
+     *         the time from the draw start to the finish of each layer in milliseconds, by layer
+     *         id
+     */
+    void onDrawFinished(
+            long generation,
+            long drawTime,
+            Map<Integer, Long> layerTimes);
+
+    /**
+     * Execute periodically with the accumulated counters and histograms
+     *
+     * @param metrics
+     *         the metrics of the map view
+     */
+    void onReport(RenderMetrics metrics);
+}
@@ -0,0 +1,119 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+
+/**
+ * The cached bitmap of the vertex marker: the outer and the inner circles of the vertex style.
+ * The marker is blitted once per vertex instead of the two anti-aliased circles, the vertices in
+ * the same pixel as the previous one are skipped.
+ */
+public class MarkerSprite {
+    protected final Paint mPaint;
+
+    protected Bitmap mBitmap;
+    protected float mOffset;
+    protected int mOutColor, mColor;
+    protected float mOutWidth, mOutRadius, mWidth, mRadius;
+
+    public MarkerSprite() {
+        mPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        mPaint.setStyle(Paint.Style.STROKE);
+    }
+
+    /**
+     * Draws the markers of the points
+     *
+     * @param count the number of the coordinates to draw from the start of the array
+     * @return false if the marker of the style can not be made
+     */
+    public boolean draw(Canvas canvas, VertexStyle style, float[] items, int count) {
+        if (!update(style))
+            return false;
+
+        int lastX = Integer.MIN_VALUE, lastY = Integer.MIN_VALUE;
+        for (int i = 0; i < count - 1; i += 2) {
+            int x = (int) items[i], y = (int) items[i + 1];
+            if (x == lastX && y == lastY)
+                continue;
+
+            canvas.drawBitmap(mBitmap, items[i] - mOffset, items[i + 1] - mOffset, null);
+            lastX = x;
+            lastY = y;
+        }
+
+        return true;
+    }
+
+    /**
+     * Makes the marker bitmap again if the style is changed
+     */
+    protected boolean update(VertexStyle style) {
+        if (mBitmap != null && mOutColor == style.getOutColor() && mColor == style.getColor()
+                && mOutWidth == style.getOutWidth() && mOutRadius == style.getOutRadius()
+                && mWidth == style.getWidth() && mRadius == style.getRadius())
+            return true;
+
+        // the old bitmap is not recycled, the recorded overlay pictures can still draw it
+        release();
+        mOutColor = style.getOutColor();
+        mColor = style.getColor();
+        mOutWidth = style.getOutWidth();
+        mOutRadius = style.getOutRadius();
+        mWidth = style.getWidth();
+        mRadius = style.getRadius();
+
+        float half = Math.max(mOutRadius + mOutWidth / 2, mRadius + mWidth / 2) + 1;
+        int size = (int) Math.ceil(half * 2);
+        if (size <= 2)
+            return false;
+
+        try {
+            mBitmap = Bitmap.createBitmap(size, size, Bitmap.Config.ARGB_8888);
+        } catch (OutOfMemoryError e) {
+            e.printStackTrace();
+            return false;
+        }
+
+        mOffset = size / 2f;
+        Canvas canvas = new Canvas(mBitmap);
+        mPaint.setColor(mOutColor);
+        mPaint.setStrokeWidth(mOutWidth);
+        canvas.drawCircle(mOffset, mOffset, mOutRadius, mPaint);
+        mPaint.setColor(mColor);
+        mPaint.setStrokeWidth(mWidth);
+        canvas.drawCircle(mOffset, mOffset, mRadius, mPaint);
+        return true;
+    }
+
+    /**
+     * Drops the marker bitmap, it is collected after the pictures, which recorded it
+     */
+    public void release() {
+        mBitmap = null;
+    }
+}
@@ -0,0 +1,111 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import android.graphics.Canvas;
+import android.graphics.Picture;
+import android.graphics.PointF;
+import android.os.Build;
+
+
+/**
+ * The recorded draw commands of the static overlay content. The content is recorded once and is
+ * replayed with the canvas translation on each pan frame, so the geometry is not transformed and
+ * no draw item is created per frame. The picture is not replayed on zoom, the scale of the canvas
+ * would scale the stroke widths and the markers as well.
+ */
+public class OverlayPicture
+{
+    protected final Picture mPicture;
+    protected       boolean mIsRecorded;
+
+
+    public OverlayPicture()
+    {
+        mPicture = new Picture();
+    }
+
+
+    /**
+     * The hardware canvas can draw the picture since API 23
+     *
+     * @return true if the picture can be drawn on the canvas
+     */
+    public static boolean isSupported(Canvas canvas)
+    {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            return true;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.HONEYCOMB) {
+            return true;
+        }
+        return !canvas.isHardwareAccelerated();
+    }
+
+
+    public boolean isRecorded()
+    {
+        return mIsRecorded;
+    }
+
+
+    /**
+     * @return the canvas to draw the content to, in the screen coordinates of the current map
+     * extent
+     */
+    public Canvas beginRecording(
+            int width,
+            int height)
+    {
+        mIsRecorded = false;
+        return mPicture.beginRecording(width, height);
+    }
+
+
+    public void endRecording()
+    {
+        mPicture.endRecording();
+        mIsRecorded = true;
+    }
+
+
+    /**
+     * The content is changed, it must be recorded again
+     */
+    public void invalidate()
+    {
+        mIsRecorded = false;
+    }
+
+
+    public void drawOnPanning(
+            Canvas canvas,
+            PointF currentMouseOffset)
+    {
+        canvas.save();
+        canvas.translate(-currentMouseOffset.x, -currentMouseOffset.y);
+        canvas.drawPicture(mPicture);
+        canvas.restore();
+    }
+}
@@ -32,6 +32,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.view.View;
 import android.widget.ArrayAdapter;
+import android.widget.CheckBox;
 import android.widget.EditText;
 import android.widget.Spinner;
 
@@ -57,12 +58,14 @@ public class CreateLocalLayerDialog
     protected final static String KEY_LAYER_TYPE = "layer_type";
     protected final static String KEY_TMS_TYPE   = "tms";
     protected final static String KEY_CACHE      = "cache";
+    protected final static String KEY_SINGLE     = "single_file";
 
     protected Uri        mUri;
     protected LayerGroup mGroupLayer;
     protected int        mLayerType;
     protected String     mLayerName;
     protected Spinner    mSpinner, mCache;
+    protected CheckBox   mSingleFile;
 
 
     public CreateLocalLayerDialog setLayerName(String layerName)
@@ -120,6 +123,7 @@ public class CreateLocalLayerDialog
             view = View.inflate(mContext, R.layout.dialog_create_local_tms, null);
             mCache = (Spinner) view.findViewById(R.id.layer_cache);
             mCache.setSelection(2);
+            mSingleFile = (CheckBox) view.findViewById(R.id.single_file);
 
             final ArrayAdapter<CharSequence> adapter =
                     new ArrayAdapter<>(mContext, android.R.layout.simple_spinner_item);
@@ -133,6 +137,7 @@ public class CreateLocalLayerDialog
             if (null != savedInstanceState) {
                 mSpinner.setSelection(savedInstanceState.getInt(KEY_TMS_TYPE, 0));
                 mCache.setSelection(savedInstanceState.getInt(KEY_CACHE, 0));
+                mSingleFile.setChecked(savedInstanceState.getBoolean(KEY_SINGLE, false));
             }
         }
 
@@ -165,6 +170,9 @@ public class CreateLocalLayerDialog
                                 if (mCache != null)
                                     intent.putExtra(LayerFillService.KEY_TMS_CACHE, mCache.getSelectedItemPosition());
 
+                                if (mSingleFile != null)
+                                    intent.putExtra(LayerFillService.KEY_TMS_SINGLE_FILE, mSingleFile.isChecked());
+
                                 LayerFillProgressDialogFragment.startFill(intent);
                             }
 
@@ -192,6 +200,8 @@ public class CreateLocalLayerDialog
             outState.putInt(KEY_TMS_TYPE, mSpinner.getSelectedItemPosition());
         if (mCache != null)
             outState.putInt(KEY_CACHE, mCache.getSelectedItemPosition());
+        if (mSingleFile != null)
+            outState.putBoolean(KEY_SINGLE, mSingleFile.isChecked());
 
         super.onSaveInstanceState(outState);
     }
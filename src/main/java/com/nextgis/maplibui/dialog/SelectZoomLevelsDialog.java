@@ -33,6 +33,7 @@ import android.os.Bundle;
 import android.support.annotation.NonNull;
 import android.support.v4.app.DialogFragment;
 import android.view.View;
+import android.widget.CheckBox;
 import android.widget.TextView;
 
 import com.edmodo.rangebar.RangeBar;
@@ -43,11 +44,12 @@ import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.map.TMSLayer;
 import com.nextgis.maplib.util.GeoConstants;
-import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.service.TileDownloadService;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.TilePresenceIndex;
+import com.nextgis.maplibui.util.TileRangeCursor;
 
 import java.util.Locale;
 
@@ -108,6 +110,7 @@ public class SelectZoomLevelsDialog
         mTilesCount = (TextView) view.findViewById(R.id.tilesCount);
         final TextView leftIndexValue = (TextView) view.findViewById(R.id.leftIndexValue);
         final TextView rightIndexValue = (TextView) view.findViewById(R.id.rightIndexValue);
+        final CheckBox refreshCache = (CheckBox) view.findViewById(R.id.refresh_cache);
 
         // Get the RangeBar and set the display values of the indices
         final RangeBar rangebar = (RangeBar) view.findViewById(R.id.rangebar);
@@ -157,6 +160,7 @@ public class SelectZoomLevelsDialog
                             intent.putExtra(TileDownloadService.KEY_MAXX, env.getMaxX());
                             intent.putExtra(TileDownloadService.KEY_MINY, env.getMinY());
                             intent.putExtra(TileDownloadService.KEY_MAXY, env.getMaxY());
+                            intent.putExtra(TileDownloadService.KEY_REFRESH, refreshCache.isChecked());
 
                             getActivity().startService(intent);
                         }
@@ -176,20 +180,50 @@ public class SelectZoomLevelsDialog
         return dialog;
     }
 
-    private long getTilesCount(AsyncTask task, MapBase map, int leftThumbIndex, int rightThumbIndex) {
-        TMSLayer layer = (TMSLayer) map.getLayerById(getLayerId());
+    private long getTilesCount(AsyncTask task, int leftThumbIndex, int rightThumbIndex) {
         GeoEnvelope envelope = getEnvelope();
         long total = 0;
         for (int zoom = leftThumbIndex; zoom <= rightThumbIndex; zoom++) {
             if (task != null && task.isCancelled())
                 return total;
 
-            total += MapUtil.getTileCount(task, envelope, zoom, layer.getTMSType());
+            total += TileRangeCursor.getTileCount(envelope, zoom);
         }
 
         return total;
     }
 
+    private long getCachedTilesCount(AsyncTask task, MapBase map, int leftThumbIndex, int rightThumbIndex) {
+        ILayer layer = map.getLayerById(getLayerId());
+        if (!(layer instanceof TMSLayer))
+            return 0;
+
+        TMSLayer tmsLayer = (TMSLayer) layer;
+        TilePresenceIndex index = TilePresenceIndex.getIndex(tmsLayer.getPath());
+        GeoEnvelope envelope = getEnvelope();
+        long cached = 0;
+        for (int zoom = leftThumbIndex; zoom <= rightThumbIndex; zoom++) {
+            if (task != null && task.isCancelled())
+                return cached;
+
+            cached += index.countPresent(envelope, zoom, tmsLayer.getTMSType());
+        }
+
+        return cached;
+    }
+
+    private String formatCount(long count) {
+        String value = count + "";
+        if (count >= 1000000000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, count / 1000000000f, getString(R.string.unit_billion));
+        else if (count >= 1000000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, count / 1000000f, getString(R.string.unit_million));
+        else if (count >= 100000)
+            value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, count / 1000f, getString(R.string.unit_thousand));
+
+        return value;
+    }
+
     @Override
     public void onSaveInstanceState(Bundle outState) {
         outState.putInt(ConstantsUI.KEY_LAYER_ID, mLayerId);
@@ -212,21 +246,17 @@ public class SelectZoomLevelsDialog
 
         @Override
         protected String doInBackground(Void... params) {
-            long total = getTilesCount(this, mMap, mFrom, mTo);
-            String value = total + "";
-            if (total >= 1000000000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000000f, getString(R.string.unit_billion));
-            else if (total >= 1000000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000000f, getString(R.string.unit_million));
-            else if (total >= 100000)
-                value = String.format(Locale.getDefault(), "%s%.1f%s", TILDA, total / 1000f, getString(R.string.unit_thousand));
-
-            return value;
+            long total = getTilesCount(this, mFrom, mTo);
+            long cached = getCachedTilesCount(this, mMap, mFrom, mTo);
+            if (cached == 0)
+                return String.format(getString(R.string.tiles_count), formatCount(total));
+
+            return String.format(getString(R.string.tiles_count_new), formatCount(total), formatCount(total - cached));
         }
 
         @Override
         protected void onPostExecute(String res) {
-            mTilesCount.setText(String.format(getString(R.string.tiles_count), res));
+            mTilesCount.setText(res);
         }
     }
 }
@@ -516,7 +516,12 @@ public class LayersListAdapter
         mMap.save();
 
         mMap.thaw();
-        mMap.runDraw(null);
+        if (null != mMapView) {
+            // the reordered map is shown from the recent frames when it is possible
+            mMapView.onLayersReordered();
+        } else {
+            mMap.runDraw(null);
+        }
     }
 
 
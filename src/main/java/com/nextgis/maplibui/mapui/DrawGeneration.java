@@ -0,0 +1,131 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import com.nextgis.maplib.api.IProgressor;
+
+
+/**
+ * The token of one map draw. It is passed to MapDrawable.runDraw() as the progressor, so the
+ * layer draw loops, which check {@link #isCanceled()}, stop as soon as the draw is superseded
+ * by the draw of the newer extent. The draw thread, which checks the token, is stamped with it,
+ * so the draw callback on that thread can be matched to its draw.
+ */
+public class DrawGeneration
+        implements IProgressor
+{
+    protected static final ThreadLocal<DrawGeneration> mThreadGeneration = new ThreadLocal<>();
+
+    protected final long   mGeneration;
+    protected final long   mStartTime;
+    protected final String mSignature;
+
+    protected volatile boolean mIsCanceled;
+
+
+    /**
+     * @param signature
+     *         the render signature of the map frame, which is drawn
+     */
+    public DrawGeneration(
+            long generation,
+            String signature)
+    {
+        mGeneration = generation;
+        mSignature = signature;
+        mStartTime = System.currentTimeMillis();
+    }
+
+
+    public long getGeneration()
+    {
+        return mGeneration;
+    }
+
+
+    public long getStartTime()
+    {
+        return mStartTime;
+    }
+
+
+    public String getSignature()
+    {
+        return mSignature;
+    }
+
+
+    public void cancel()
+    {
+        mIsCanceled = true;
+    }
+
+
+    @Override
+    public boolean isCanceled()
+    {
+        mThreadGeneration.set(this);
+        return mIsCanceled;
+    }
+
+
+    /**
+     * @return the draw checked by the current thread since the last call, null if the thread
+     * has not checked any
+     */
+    public static DrawGeneration takeThreadGeneration()
+    {
+        DrawGeneration generation = mThreadGeneration.get();
+        mThreadGeneration.remove();
+        return generation;
+    }
+
+
+    @Override
+    public void setMax(int maxValue)
+    {
+
+    }
+
+
+    @Override
+    public void setValue(int value)
+    {
+
+    }
+
+
+    @Override
+    public void setIndeterminate(boolean indeterminate)
+    {
+
+    }
+
+
+    @Override
+    public void setMessage(String message)
+    {
+
+    }
+}
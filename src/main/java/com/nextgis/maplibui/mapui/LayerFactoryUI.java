@@ -47,6 +47,7 @@ import com.nextgis.maplibui.dialog.NGWResourcesListAdapter;
 import com.nextgis.maplibui.dialog.SelectNGWResourceDialog;
 import com.nextgis.maplibui.fragment.LayerFillProgressDialogFragment;
 import com.nextgis.maplibui.service.LayerFillService;
+import com.nextgis.maplibui.util.TilePackage;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -152,6 +153,19 @@ public class LayerFactoryUI
                 return;
             }
 
+            if (ext.equals(TilePackage.EXT)) {
+                Intent intent = new Intent(context, LayerFillService.class);
+                intent.setAction(LayerFillService.ACTION_ADD_TASK);
+                intent.putExtra(LayerFillService.KEY_URI, uri);
+                intent.putExtra(LayerFillService.KEY_NAME, layerName);
+                intent.putExtra(LayerFillService.KEY_INPUT_TYPE, LayerFillService.TMS_LAYER);
+                intent.putExtra(LayerFillService.KEY_TMS_PACKAGE, true);
+                intent.putExtra(LayerFillService.KEY_LAYER_GROUP_ID, groupLayer.getId());
+
+                LayerFillProgressDialogFragment.startFill(intent);
+                return;
+            }
+
             AtomicReference<Uri> temp = new AtomicReference<>(uri);
             if (MapUtil.isZippedGeoJSON(context, temp)) {
                 createNewVectorLayer(context, groupLayer, temp.get());
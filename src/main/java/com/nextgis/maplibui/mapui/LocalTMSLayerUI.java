@@ -25,16 +25,34 @@ package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
 import android.graphics.drawable.Drawable;
+import android.net.Uri;
 import android.support.v4.content.ContextCompat;
 
+import com.nextgis.maplib.api.IProgressor;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.LocalTMSLayer;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+import com.nextgis.maplib.util.NGException;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileCacheUtil;
+import com.nextgis.maplibui.util.TilePackage;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
 
 
 /**
@@ -44,6 +62,13 @@ public class LocalTMSLayerUI
         extends LocalTMSLayer
         implements ILayerUI
 {
+    // the package file is checked for the changes once per interval, not for every tile
+    protected static final long PACKAGE_CHECK_INTERVAL = 2000;
+
+    protected volatile TilePackage mTilePackage;
+    protected volatile long        mTilePackageChecked;
+    protected          long        mTilePackageModified;
+
 
     public LocalTMSLayerUI(
             Context context,
@@ -69,4 +94,329 @@ public class LocalTMSLayerUI
         context.startActivity(settings);
     }
 
+
+    /**
+     * Reads the tile from the layer tile package if the layer has it, otherwise from the tile
+     * files as usual
+     */
+    @Override
+    public Bitmap getBitmap(TileItem tile)
+    {
+        TilePackage tilePackage = getTilePackage();
+        if (null == tilePackage) {
+            return super.getBitmap(tile);
+        }
+
+        Bitmap ret = getBitmapFromCache(tile.getHash());
+        if (null != ret) {
+            return ret;
+        }
+
+        try {
+            byte[] data = tilePackage.getTile(tile.getZoomLevel(), tile.getX(), tile.getY());
+            if (null == data) {
+                return super.getBitmap(tile);
+            }
+
+            ret = BitmapFactory.decodeByteArray(data, 0, data.length);
+            if (null != ret) {
+                putBitmapToCache(tile.getHash(), ret);
+            }
+            return ret;
+        } catch (IOException e) {
+            e.printStackTrace();
+            return super.getBitmap(tile);
+        }
+    }
+
+
+    /**
+     * Copies the tile package to the layer directory. The package is one file, so the copy is
+     * one sequential read and write.
+     */
+    public void fillFromPackage(
+            Uri uri,
+            IProgressor progressor)
+            throws IOException, NGException
+    {
+        if (null != progressor) {
+            progressor.setIndeterminate(true);
+            progressor.setMessage(mContext.getString(R.string.message_loading));
+        }
+
+        InputStream input = mContext.getContentResolver().openInputStream(uri);
+        if (null == input) {
+            throw new NGException(mContext.getString(R.string.error_tile_package));
+        }
+
+        File file = new File(mPath, TilePackage.LAYER_PACKAGE);
+        File temp = new File(mPath, TilePackage.LAYER_PACKAGE + ".tmp");
+        OutputStream output = new FileOutputStream(temp);
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = input.read(buffer)) != -1) {
+                if (null != progressor && progressor.isCanceled()) {
+                    break;
+                }
+                output.write(buffer, 0, count);
+            }
+        } finally {
+            output.close();
+            input.close();
+        }
+
+        if (null != progressor && progressor.isCanceled()) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            return;
+        }
+
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new NGException(mContext.getString(R.string.error_tile_package));
+        }
+
+        // the package knows the tile scheme, it is not asked from the user
+        TilePackage tilePackage = updateTilePackage(true);
+        if (null == tilePackage) {
+            throw new NGException(mContext.getString(R.string.error_tile_package));
+        }
+        setTMSType(tilePackage.getTmsType());
+    }
+
+
+    /**
+     * Writes the tiles of the zip archive (zoom/x/y entries) directly to the layer tile package
+     * without the intermediate tile files
+     */
+    public void fillPackageFromZip(
+            Uri uri,
+            IProgressor progressor)
+            throws IOException, NGException
+    {
+        if (null != progressor) {
+            progressor.setIndeterminate(true);
+            progressor.setMessage(mContext.getString(R.string.message_loading));
+        }
+
+        InputStream input = mContext.getContentResolver().openInputStream(uri);
+        if (null == input) {
+            throw new NGException(mContext.getString(R.string.error_tile_package));
+        }
+
+        TilePackage.Writer writer = createPackageWriter();
+        ZipInputStream zis = new ZipInputStream(input);
+        try {
+            ZipEntry entry;
+            while ((entry = zis.getNextEntry()) != null) {
+                if (null != progressor && progressor.isCanceled()) {
+                    writer.abort();
+                    return;
+                }
+
+                int[] tile = entry.isDirectory() ? null : parseTilePath(entry.getName());
+                if (null != tile) {
+                    writer.addTile(tile[0], tile[1], tile[2], zis);
+                }
+                zis.closeEntry();
+            }
+            writer.finish();
+            updateTilePackage(true);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        } finally {
+            zis.close();
+        }
+    }
+
+
+    /**
+     * Moves the tile files of the layer to the layer tile package. The tiles which are already
+     * in the package are kept, the tile files replace them.
+     */
+    public void compactToPackage(IProgressor progressor)
+            throws IOException
+    {
+        File[] zoomDirs = mPath.listFiles();
+        if (null == zoomDirs) {
+            return;
+        }
+
+        if (null != progressor) {
+            progressor.setIndeterminate(false);
+            progressor.setMax(zoomDirs.length);
+            progressor.setValue(0);
+        }
+
+        TilePackage.Writer writer = createPackageWriter();
+        List<File> packed = new ArrayList<>();
+        try {
+            for (int i = 0; i < zoomDirs.length; i++) {
+                File zoomDir = zoomDirs[i];
+                if (zoomDir.isDirectory() && MapUtil.isParsable(zoomDir.getName())) {
+                    int zoom = Integer.parseInt(zoomDir.getName());
+                    addZoomToPackage(writer, zoomDir, zoom);
+                    packed.add(zoomDir);
+                }
+
+                if (null != progressor) {
+                    if (progressor.isCanceled()) {
+                        writer.abort();
+                        return;
+                    }
+                    progressor.setValue(i + 1);
+                }
+            }
+            writer.finish();
+            updateTilePackage(true);
+        } catch (IOException | RuntimeException e) {
+            writer.abort();
+            throw e;
+        }
+
+        // the package is complete, the tile files are not needed anymore
+        for (File zoomDir : packed) {
+            FileUtil.deleteRecursive(zoomDir);
+        }
+    }
+
+
+    protected TilePackage.Writer createPackageWriter()
+            throws IOException
+    {
+        TilePackage.Writer writer =
+                new TilePackage.Writer(new File(mPath, TilePackage.LAYER_PACKAGE), getTMSType());
+        TilePackage tilePackage = getTilePackage();
+        if (null != tilePackage) {
+            try {
+                writer.addAll(tilePackage);
+            } catch (IOException e) {
+                writer.abort();
+                throw e;
+            }
+        }
+        return writer;
+    }
+
+
+    protected void addZoomToPackage(
+            TilePackage.Writer writer,
+            File zoomDir,
+            int zoom)
+            throws IOException
+    {
+        File[] xDirs = zoomDir.listFiles();
+        if (null == xDirs) {
+            return;
+        }
+
+        for (File xDir : xDirs) {
+            if (!xDir.isDirectory() || !MapUtil.isParsable(xDir.getName())) {
+                continue;
+            }
+            int x = Integer.parseInt(xDir.getName());
+
+            File[] tiles = xDir.listFiles();
+            if (null == tiles) {
+                continue;
+            }
+            for (File tile : tiles) {
+                int y = TileCacheUtil.parseTileNumber(tile.getName());
+                if (y >= 0) {
+                    writer.addTile(zoom, x, y, tile);
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return {zoom, x, y} of the zip entry like [root/]zoom/x/y.png or null
+     */
+    protected static int[] parseTilePath(String name)
+    {
+        String[] parts = name.split("/");
+        if (parts.length < 3) {
+            return null;
+        }
+
+        String zoom = parts[parts.length - 3];
+        String x = parts[parts.length - 2];
+        int y = TileCacheUtil.parseTileNumber(parts[parts.length - 1]);
+        if (y < 0 || !MapUtil.isParsable(zoom) || !MapUtil.isParsable(x)) {
+            return null;
+        }
+
+        return new int[] {Integer.parseInt(zoom), Integer.parseInt(x), y};
+    }
+
+
+    /**
+     * @return the tile package of the layer or null. It is called from the draw threads for
+     * every tile, so the package is read without the lock and the file is checked only once
+     * per {@link #PACKAGE_CHECK_INTERVAL}.
+     */
+    protected TilePackage getTilePackage()
+    {
+        if (System.currentTimeMillis() - mTilePackageChecked < PACKAGE_CHECK_INTERVAL) {
+            return mTilePackage;
+        }
+        return updateTilePackage(false);
+    }
+
+
+    /**
+     * Opens the package again if the file is changed
+     *
+     * @param force
+     *         check the file now, after the package is written by the layer
+     */
+    protected synchronized TilePackage updateTilePackage(boolean force)
+    {
+        long now = System.currentTimeMillis();
+        if (!force && now - mTilePackageChecked < PACKAGE_CHECK_INTERVAL) {
+            return mTilePackage;
+        }
+
+        File file = new File(mPath, TilePackage.LAYER_PACKAGE);
+        long modified = file.lastModified(); // 0 if there is no package
+        if (force) {
+            // the file can be rewritten in the same second
+            mTilePackageModified = -1;
+        }
+
+        if (null != mTilePackage && modified != mTilePackageModified) {
+            mTilePackage.close();
+            mTilePackage = null;
+        }
+
+        if (null == mTilePackage && modified != 0 && modified != mTilePackageModified) {
+            mTilePackageModified = modified;
+            try {
+                mTilePackage = TilePackage.open(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        mTilePackageChecked = now;
+        return mTilePackage;
+    }
+
+
+    @Override
+    public boolean delete()
+    {
+        synchronized (this) {
+            if (null != mTilePackage) {
+                mTilePackage.close();
+                mTilePackage = null;
+            }
+        }
+        return super.delete();
+    }
+
 }
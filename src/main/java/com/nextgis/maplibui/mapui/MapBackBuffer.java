@@ -0,0 +1,231 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+
+
+/**
+ * The copy of the last completely drawn map frame with its map extent. While the map is redrawn
+ * for the new extent, the frame is blitted to its place in the new extent, so the unchanged
+ * content is shown at once and only the newly exposed parts wait for the draw.
+ */
+public class MapBackBuffer
+{
+    protected final Paint mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+    protected final RectF mRect  = new RectF();
+
+    protected Bitmap      mBitmap;
+    protected Canvas      mCanvas;
+    protected GeoEnvelope mEnvelope;
+    protected float       mZoom;
+    protected long        mFrameId;
+
+
+    /**
+     * Copies the current map buffer
+     *
+     * @param frameId
+     *         the id of the frame, which is checked by {@link #copy(MapBackBuffer, long)}
+     * @return false if there is no memory for the frame
+     */
+    public synchronized boolean capture(
+            MapDrawable map,
+            int width,
+            int height,
+            long frameId)
+    {
+        if (width <= 0 || height <= 0) {
+            return false;
+        }
+
+        if (null == mBitmap || mBitmap.getWidth() != width || mBitmap.getHeight() != height) {
+            release();
+            try {
+                mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                return false;
+            }
+            mCanvas = new Canvas(mBitmap);
+        }
+
+        mBitmap.eraseColor(Color.TRANSPARENT);
+        map.draw(mCanvas, 0, 0, true);
+        mEnvelope = map.getCurrentBounds();
+        mZoom = map.getZoomLevel();
+        mFrameId = frameId;
+        return true;
+    }
+
+
+    public synchronized boolean isValid()
+    {
+        return null != mEnvelope;
+    }
+
+
+    public float getZoom()
+    {
+        return mZoom;
+    }
+
+
+    public synchronized long getFrameId()
+    {
+        return mFrameId;
+    }
+
+
+    /**
+     * Draws the frame to its position in the current extent of the map
+     *
+     * @return false if there is no frame
+     */
+    public synchronized boolean draw(
+            Canvas canvas,
+            MapDrawable map)
+    {
+        if (null == mEnvelope) {
+            return false;
+        }
+
+        GeoPoint topLeft = map.mapToScreen(new GeoPoint(mEnvelope.getMinX(), mEnvelope.getMaxY()));
+        GeoPoint bottomRight =
+                map.mapToScreen(new GeoPoint(mEnvelope.getMaxX(), mEnvelope.getMinY()));
+        mRect.set((float) Math.min(topLeft.getX(), bottomRight.getX()),
+                (float) Math.min(topLeft.getY(), bottomRight.getY()),
+                (float) Math.max(topLeft.getX(), bottomRight.getX()),
+                (float) Math.max(topLeft.getY(), bottomRight.getY()));
+        canvas.drawBitmap(mBitmap, null, mRect, mPaint);
+        return true;
+    }
+
+
+    /**
+     * Copies the frame of the other buffer
+     *
+     * @return false if there is no frame or no memory for it
+     */
+    public boolean copy(MapBackBuffer other)
+    {
+        return copy(other, -1);
+    }
+
+
+    /**
+     * Copies the frame of the other buffer, if it is still the frame of the id. The other buffer
+     * can capture the newer frame before the copy, when the copy is done out of the lock of the
+     * capture.
+     *
+     * @param frameId
+     *         the id of the frame, -1 for any frame
+     * @return false if there is no such frame or no memory for it
+     */
+    public boolean copy(
+            MapBackBuffer other,
+            long frameId)
+    {
+        synchronized (this) {
+            synchronized (other) {
+                if (null == other.mEnvelope || frameId >= 0 && frameId != other.mFrameId) {
+                    return false;
+                }
+
+                int width = other.mBitmap.getWidth();
+                int height = other.mBitmap.getHeight();
+                if (null == mBitmap || mBitmap.getWidth() != width
+                        || mBitmap.getHeight() != height) {
+                    release();
+                    try {
+                        mBitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+                    } catch (OutOfMemoryError e) {
+                        e.printStackTrace();
+                        return false;
+                    }
+                    mCanvas = new Canvas(mBitmap);
+                }
+
+                mBitmap.eraseColor(Color.TRANSPARENT);
+                mCanvas.drawBitmap(other.mBitmap, 0, 0, null);
+                mEnvelope = other.mEnvelope;
+                mZoom = other.mZoom;
+                mFrameId = other.mFrameId;
+                return true;
+            }
+        }
+    }
+
+
+    /**
+     * Exchanges the frames of the buffers, so no frame is copied
+     */
+    public void swap(MapBackBuffer other)
+    {
+        synchronized (this) {
+            synchronized (other) {
+                Bitmap bitmap = mBitmap;
+                Canvas canvas = mCanvas;
+                GeoEnvelope envelope = mEnvelope;
+                float zoom = mZoom;
+                long frameId = mFrameId;
+                mBitmap = other.mBitmap;
+                mCanvas = other.mCanvas;
+                mEnvelope = other.mEnvelope;
+                mZoom = other.mZoom;
+                mFrameId = other.mFrameId;
+                other.mBitmap = bitmap;
+                other.mCanvas = canvas;
+                other.mEnvelope = envelope;
+                other.mZoom = zoom;
+                other.mFrameId = frameId;
+            }
+        }
+    }
+
+
+    public synchronized void invalidate()
+    {
+        mEnvelope = null;
+    }
+
+
+    public synchronized void release()
+    {
+        mEnvelope = null;
+        mCanvas = null;
+        if (null != mBitmap) {
+            mBitmap.recycle();
+            mBitmap = null;
+        }
+    }
+}
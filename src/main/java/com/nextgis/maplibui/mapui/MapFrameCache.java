@@ -0,0 +1,132 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+/**
+ * The recently drawn complete map frames, keyed by the render signature of the map: the view
+ * size, the extent, the zoom and the ids with the content versions of the visible layers in the
+ * draw order. A layer visibility toggle or a layer reorder, which returns the map to a recent
+ * state, is shown from the cache instead of the draw of all layers. The cache is empty until
+ * the number of the frames is set, each frame takes the memory of the view size bitmap.
+ */
+public class MapFrameCache
+{
+    // each frame is a bitmap of the view size
+    public static final int MAX_FRAMES = 2;
+
+    protected final LinkedHashMap<String, MapBackBuffer> mFrames;
+
+    protected int mMaxFrames;
+
+
+    public MapFrameCache()
+    {
+        mFrames = new LinkedHashMap<>(MAX_FRAMES + 1, 0.75f, true);
+        mMaxFrames = 0;
+    }
+
+
+    /**
+     * @param maxFrames
+     *         the number of the kept frames up to {@link #MAX_FRAMES}, 0 disables the cache
+     */
+    public synchronized void setMaxFrames(int maxFrames)
+    {
+        maxFrames = Math.max(0, Math.min(MAX_FRAMES, maxFrames));
+        mMaxFrames = maxFrames;
+        Iterator<Map.Entry<String, MapBackBuffer>> iterator = mFrames.entrySet().iterator();
+        while (mFrames.size() > maxFrames && iterator.hasNext()) {
+            iterator.next().getValue().release();
+            iterator.remove();
+        }
+    }
+
+
+    /**
+     * Copies the frame to the cache, the least recently used frame bitmap is reused for it
+     *
+     * @param frameId
+     *         the id of the captured frame of the signature, nothing is copied if the buffer has
+     *         the other frame already
+     */
+    public synchronized void put(
+            String signature,
+            MapBackBuffer frame,
+            long frameId)
+    {
+        if (null == signature || !frame.isValid() || mMaxFrames <= 0) {
+            return;
+        }
+
+        MapBackBuffer buffer = mFrames.get(signature);
+        if (null != buffer && buffer.getFrameId() == frameId) {
+            // the frame is cached already
+            return;
+        }
+
+        buffer = mFrames.remove(signature);
+        if (null == buffer && mFrames.size() >= mMaxFrames) {
+            Iterator<Map.Entry<String, MapBackBuffer>> iterator = mFrames.entrySet().iterator();
+            buffer = iterator.next().getValue();
+            iterator.remove();
+        }
+        if (null == buffer) {
+            buffer = new MapBackBuffer();
+        }
+
+        if (buffer.copy(frame, frameId)) {
+            mFrames.put(signature, buffer);
+        } else {
+            buffer.release();
+        }
+    }
+
+
+    /**
+     * Copies the cached frame of the signature to the target buffer
+     *
+     * @return false if there is no frame of the signature
+     */
+    public synchronized boolean restore(
+            String signature,
+            MapBackBuffer target)
+    {
+        MapBackBuffer buffer = mFrames.get(signature);
+        return null != buffer && target.copy(buffer);
+    }
+
+
+    public synchronized void clear()
+    {
+        for (MapBackBuffer buffer : mFrames.values()) {
+            buffer.release();
+        }
+        mFrames.clear();
+    }
+}
@@ -0,0 +1,291 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Color;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.MapDrawable;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * The map frame with the margin around the screen, which fills the edges exposed by the pan
+ * until the map is redrawn. The map buffer is of the screen size, so the margin is rendered on
+ * the background thread from the frames and tiles, which are already drawn or cached: the lower
+ * zoom overview and the raster tiles of the top visible TMS layers.
+ * <p>
+ * The buffer takes two bitmaps larger than the screen, so it is off by default and the margin
+ * is limited by {@link #setMaxBytes(long)}.
+ */
+public class MapMarginBuffer
+{
+    // the margin on each side as the part of the larger screen side, if it is enabled
+    public static final float DEFAULT_MARGIN = 0.25f;
+
+    // one thread renders the margins of all map views
+    protected static final ExecutorService mExecutor = Executors.newSingleThreadExecutor();
+
+    protected final ZoomTilePreview mTilePreview;
+    protected final AtomicLong      mGeneration;
+    protected final Paint           mPaint;
+    protected final RectF           mRect;
+
+    protected          Bitmap      mFrontBitmap;
+    protected          Bitmap      mBackBitmap;
+    protected          GeoEnvelope mEnvelope;
+    protected volatile float       mMargin;
+    protected volatile long        mMaxBytes;
+
+
+    public MapMarginBuffer()
+    {
+        mTilePreview = new ZoomTilePreview();
+        mGeneration = new AtomicLong();
+        mPaint = new Paint(Paint.FILTER_BITMAP_FLAG);
+        mRect = new RectF();
+        mMargin = 0;
+        mMaxBytes = Long.MAX_VALUE;
+    }
+
+
+    public float getMargin()
+    {
+        return mMargin;
+    }
+
+
+    /**
+     * @param margin
+     *         the margin on each side as the part of the larger screen side, 0 to disable the
+     *         buffer
+     */
+    public void setMargin(float margin)
+    {
+        mMargin = margin;
+        if (margin <= 0) {
+            invalidate();
+        }
+    }
+
+
+    /**
+     * @param maxBytes
+     *         the memory limit of the two buffer bitmaps, the margin is reduced to fit it
+     */
+    public void setMaxBytes(long maxBytes)
+    {
+        mMaxBytes = maxBytes;
+    }
+
+
+    public boolean isEnabled()
+    {
+        return mMargin > 0;
+    }
+
+
+    /**
+     * @return the margin in pixels, which fits the memory limit
+     */
+    protected int getMarginSize(
+            int width,
+            int height)
+    {
+        int margin = (int) (Math.max(width, height) * mMargin);
+
+        // two ARGB bitmaps of (width + 2 * margin) x (height + 2 * margin)
+        double area = mMaxBytes / 8.0;
+        if ((double) (width + 2 * margin) * (height + 2 * margin) <= area) {
+            return margin;
+        }
+        double sum = width + height;
+        double discriminant = sum * sum - 4 * ((double) width * height - area);
+        if (discriminant < 0) {
+            return 0;
+        }
+        return Math.max(0, Math.min(margin, (int) ((Math.sqrt(discriminant) - sum) / 4)));
+    }
+
+
+    /**
+     * Renders the margin of the current map extent on the background thread
+     */
+    public void refill(
+            final MapDrawable map,
+            final MapBackBuffer overview,
+            final int width,
+            final int height)
+    {
+        final long generation = mGeneration.incrementAndGet();
+        if (mMargin <= 0 || width <= 0 || height <= 0) {
+            return;
+        }
+
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                render(map, overview, width, height, generation);
+            }
+        });
+    }
+
+
+    protected void render(
+            MapDrawable map,
+            MapBackBuffer overview,
+            int width,
+            int height,
+            long generation)
+    {
+        if (generation != mGeneration.get()) {
+            return;
+        }
+
+        int margin = getMarginSize(width, height);
+        if (margin <= 0) {
+            return;
+        }
+        int bufferWidth = width + 2 * margin;
+        int bufferHeight = height + 2 * margin;
+        if (null == mBackBitmap || mBackBitmap.getWidth() != bufferWidth
+                || mBackBitmap.getHeight() != bufferHeight) {
+            if (null != mBackBitmap) {
+                mBackBitmap.recycle();
+            }
+            try {
+                mBackBitmap =
+                        Bitmap.createBitmap(bufferWidth, bufferHeight, Bitmap.Config.ARGB_8888);
+            } catch (OutOfMemoryError e) {
+                e.printStackTrace();
+                mBackBitmap = null;
+                return;
+            }
+        }
+
+        GeoEnvelope current = map.getCurrentBounds();
+        GeoEnvelope bounds = map.screenToMap(
+                new GeoEnvelope(-margin, width + margin, -margin, height + margin));
+
+        mBackBitmap.eraseColor(Color.TRANSPARENT);
+        Canvas canvas = new Canvas(mBackBitmap);
+        canvas.translate(margin, margin);
+        overview.draw(canvas, map);
+        mTilePreview.draw(canvas, map, bounds, Math.round(map.getZoomLevel()), true);
+
+        // the map is moved while the margin was rendered
+        GeoEnvelope moved = map.getCurrentBounds();
+        if (generation != mGeneration.get() || current.getMinX() != moved.getMinX()
+                || current.getMinY() != moved.getMinY() || current.getMaxX() != moved.getMaxX()
+                || current.getMaxY() != moved.getMaxY()) {
+            return;
+        }
+
+        synchronized (this) {
+            Bitmap bitmap = mFrontBitmap;
+            mFrontBitmap = mBackBitmap;
+            mBackBitmap = bitmap;
+            mEnvelope = bounds;
+        }
+    }
+
+
+    public synchronized boolean isValid()
+    {
+        return null != mEnvelope;
+    }
+
+
+    /**
+     * Draws the buffer to its position in the current extent of the map
+     *
+     * @return false if there is no buffer
+     */
+    public synchronized boolean draw(
+            Canvas canvas,
+            MapDrawable map)
+    {
+        if (null == mEnvelope) {
+            return false;
+        }
+
+        GeoPoint topLeft = map.mapToScreen(new GeoPoint(mEnvelope.getMinX(), mEnvelope.getMaxY()));
+        GeoPoint bottomRight =
+                map.mapToScreen(new GeoPoint(mEnvelope.getMaxX(), mEnvelope.getMinY()));
+        mRect.set((float) Math.min(topLeft.getX(), bottomRight.getX()),
+                (float) Math.min(topLeft.getY(), bottomRight.getY()),
+                (float) Math.max(topLeft.getX(), bottomRight.getX()),
+                (float) Math.max(topLeft.getY(), bottomRight.getY()));
+        canvas.drawBitmap(mFrontBitmap, null, mRect, mPaint);
+        return true;
+    }
+
+
+    /**
+     * The content of the layers is changed, the buffer is not shown until the next refill
+     */
+    public void invalidate()
+    {
+        mGeneration.incrementAndGet();
+        synchronized (this) {
+            mEnvelope = null;
+        }
+    }
+
+
+    /**
+     * Frees the bitmaps after the queued render of the buffer
+     */
+    public void release()
+    {
+        invalidate();
+        mExecutor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                synchronized (MapMarginBuffer.this) {
+                    if (null != mFrontBitmap) {
+                        mFrontBitmap.recycle();
+                        mFrontBitmap = null;
+                    }
+                    if (null != mBackBitmap) {
+                        mBackBitmap.recycle();
+                        mBackBitmap = null;
+                    }
+                }
+            }
+        });
+    }
+}
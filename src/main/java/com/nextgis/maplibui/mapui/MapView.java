@@ -23,11 +23,12 @@
 
 package com.nextgis.maplibui.mapui;
 
+import android.app.ActivityManager;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.PointF;
+import android.graphics.Region;
 import android.os.Build;
-import android.os.Handler;
 import android.support.annotation.NonNull;
 import android.util.Log;
 import android.view.GestureDetector;
@@ -36,16 +37,18 @@ import android.view.ScaleGestureDetector;
 import android.view.View;
 import android.widget.Scroller;
 
+import com.nextgis.maplib.api.ILayer;
 import com.nextgis.maplib.api.MapEventListener;
 import com.nextgis.maplib.datasource.GeoEnvelope;
 import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.map.Layer;
 import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.api.MapViewEventListener;
 
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.HashMap;
+import java.util.Map;
 
 import static com.nextgis.maplib.util.Constants.TAG;
 import static com.nextgis.maplibui.util.ConstantsUI.DRAW_SATE_drawing;
@@ -70,35 +73,32 @@ public class MapView
     protected       double               mCurrentSpan;
     protected       Scroller             mScroller;
     protected       long                 mStartDrawTime;
-    private Timer mTimer;
-    private InvalidateTask mInvalidateTask;
-    final Handler uiHandler = new Handler();
+    protected final MapBackBuffer        mBackBuffer;
+    protected final MapBackBuffer        mOverview;
+    protected final MapMarginBuffer      mMarginBuffer;
+    protected final ZoomTilePreview      mZoomTilePreview;
+    protected       boolean              mIsBufferStale;
+    protected       boolean              mIsDrawComplete;
+    // the back buffer has the layers before the change, so it is not the overview
+    protected       boolean              mIsBackBufferOutdated;
+    protected final RedrawScheduler      mRedrawScheduler;
+    protected       long                 mDrawGenerationCount;
+    protected       DrawGeneration       mDrawGeneration;
+    protected final MapFrameCache        mFrameCache;
+    protected       int                  mFrameCacheSize;
+    protected final Map<Integer, Boolean> mLayerVisibility;
+    protected final Map<Integer, Integer> mLayerVersions;
+    protected       String               mFrameSignature;
+    protected       boolean              mIsFrameCached;
+    protected final RenderMetrics        mRenderMetrics;
+    protected final ViewportPrefetcher   mPrefetcher;
+    protected       PointF               mPrefetchOffset;
 
     //display redraw timeout ms
     public static final int DISPLAY_REDRAW_TIMEOUT = 750;
 
-    class InvalidateTask extends TimerTask {
-
-        @Override
-        public void run() {
-            uiHandler.post(new Runnable() {
-                @Override
-                public void run() {
-                    mDrawingState = DRAW_SATE_drawing;
-                    setZoomAndCenter(getZoomLevel(), getMapCenter());
-                }
-            });
-        }
-    }
-
     private void scheduleInvalidate() {
-        if (mTimer != null) {
-            mTimer.cancel();
-        }
-
-        mTimer = new Timer();
-        mInvalidateTask = new InvalidateTask();
-        mTimer.schedule(mInvalidateTask, DISPLAY_REDRAW_TIMEOUT);
+        mRedrawScheduler.scheduleSettle(DISPLAY_REDRAW_TIMEOUT);
     }
 
     public MapView(
@@ -122,6 +122,25 @@ public class MapView
         mCurrentMouseOffset = new PointF();
         mCurrentFocusLocation = new PointF();
 
+        mBackBuffer = new MapBackBuffer();
+        mOverview = new MapBackBuffer();
+        mMarginBuffer = new MapMarginBuffer();
+        mZoomTilePreview = new ZoomTilePreview();
+        mRedrawScheduler = new RedrawScheduler(this, new Runnable() {
+            @Override
+            public void run() {
+                mDrawingState = DRAW_SATE_drawing;
+                setZoomAndCenter(getZoomLevel(), getMapCenter());
+            }
+        });
+        mFrameCache = new MapFrameCache();
+        mRenderMetrics = new RenderMetrics();
+        mPrefetcher = new ViewportPrefetcher();
+        mPrefetchOffset = new PointF();
+        mLayerVisibility = new HashMap<>();
+        mLayerVersions = new HashMap<>();
+        mIsDrawComplete = true;
+
         mDrawingState = DRAW_SATE_drawing_noclearbk;
     }
 
@@ -156,47 +175,268 @@ public class MapView
         if (mMap != null) {
             mMap.removeListener(this);
         }
+
+        mRedrawScheduler.cancel();
+        mPrefetcher.cancel();
+        mBackBuffer.release();
+        mOverview.release();
+        mMarginBuffer.release();
+        mFrameCache.clear();
+    }
+
+
+    /**
+     * Redraws the view on the next display frame, the requests from the draw threads and
+     * overlays are merged to one invalidate per frame
+     */
+    public void requestRedraw()
+    {
+        mRedrawScheduler.requestRedraw();
+    }
+
+
+    public RedrawScheduler getRedrawScheduler()
+    {
+        return mRedrawScheduler;
+    }
+
+
+    public ViewportPrefetcher getPrefetcher()
+    {
+        return mPrefetcher;
+    }
+
+
+    /**
+     * @return the render metrics of the view, they are collected after setEnabled(true)
+     */
+    public RenderMetrics getRenderMetrics()
+    {
+        return mRenderMetrics;
     }
 
 
     @Override
-    protected synchronized void onDraw(Canvas canvas)
+    protected void onDraw(Canvas canvas)
     {
-        //Log.d(TAG, "state: " + mDrawingState + ", current loc: " +  mCurrentMouseOffset.toString() + " current focus: " + mCurrentFocusLocation.toString() + " scale: "  + mScaleFactor);
+        if (mMap == null) {
+            super.onDraw(canvas);
+            return;
+        }
+
+        long start = System.nanoTime();
+        synchronized (this) {
+            drawMap(canvas);
+        }
+        drawOverlays(canvas);
+
+        // the whole frame with the overlays, the metrics sinks are called out of the lock
+        long drawTime = System.nanoTime() - start;
+        mRedrawScheduler.onFrameDrawn(drawTime);
+        mRenderMetrics.onFrameDrawn(getFrameHistogram(), drawTime);
+    }
+
+
+    /**
+     * Draws the overlays over the map, for overriding in subclasses
+     */
+    protected void drawOverlays(Canvas canvas)
+    {
+
+    }
 
-        if (mMap != null) {
 
-            switch (mDrawingState) {
+    protected void drawMap(Canvas canvas)
+    {
+        //Log.d(TAG, "state: " + mDrawingState + ", current loc: " +  mCurrentMouseOffset.toString() + " current focus: " + mCurrentFocusLocation.toString() + " scale: "  + mScaleFactor);
 
-                case DRAW_SATE_panning:
-                case DRAW_SATE_panning_fling:
+        switch (mDrawingState) {
+
+            case DRAW_SATE_panning:
+            case DRAW_SATE_panning_fling:
+                if (mIsFrameCached) {
+                    canvas.save();
+                    canvas.translate(-mCurrentMouseOffset.x, -mCurrentMouseOffset.y);
+                    mBackBuffer.draw(canvas, mMap);
+                    canvas.restore();
+                } else {
                     mMap.draw(canvas, -mCurrentMouseOffset.x, -mCurrentMouseOffset.y, true);
-                    break;
+                }
+                drawPanMargin(canvas);
+                break;
 
-                case DRAW_SATE_zooming:
+            case DRAW_SATE_zooming:
+                if (!drawZoomPreview(canvas)) {
                     mMap.draw(
                             canvas, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y,
                             (float) mScaleFactor);
-                    break;
+                }
+                break;
 //TODO: add invalidate rect to prevent flicker
-                case DRAW_SATE_drawing_noclearbk:
-                    mMap.draw(canvas, 0, 0, false);
-                    break;
+            case DRAW_SATE_drawing_noclearbk:
+                drawMapBuffer(canvas);
+                break;
 
-                case DRAW_SATE_drawing:
-                    mMap.draw(canvas, 0, 0, true);
+            case DRAW_SATE_drawing:
+                if (mIsFrameCached) {
+                    mBackBuffer.draw(canvas, mMap);
                     break;
+                }
+                // the last complete frame under the new one until the draw is finished,
+                // the map buffer is not shown until it has the content of the new extent
+                if (!mIsDrawComplete && mBackBuffer.draw(canvas, mMap)) {
+                    if (!mIsBufferStale) {
+                        mMap.draw(canvas, 0, 0, false);
+                    }
+                } else {
+                    mMap.draw(canvas, 0, 0, true);
+                }
+                break;
 
-                //case DRAW_SATE_none:
-                //    break;
+            //case DRAW_SATE_none:
+            //    break;
 
-                default:
-                    break;
-            }
+            default:
+                break;
+        }
+    }
 
-        } else {
-            super.onDraw(canvas);
+
+    /**
+     * Fills the edges, which are exposed by the pan, from the margin buffer
+     */
+    protected void drawPanMargin(Canvas canvas)
+    {
+        if (!mMarginBuffer.isValid()) {
+            return;
+        }
+
+        float left = -mCurrentMouseOffset.x;
+        float top = -mCurrentMouseOffset.y;
+        canvas.save();
+        canvas.clipRect(left, top, left + getWidth(), top + getHeight(), Region.Op.DIFFERENCE);
+        canvas.translate(left, top);
+        mMarginBuffer.draw(canvas, mMap);
+        canvas.restore();
+    }
+
+
+    public MapMarginBuffer getMarginBuffer()
+    {
+        return mMarginBuffer;
+    }
+
+
+    /**
+     * Enables the margin buffer, which fills the edges exposed by the pan. The buffer bitmaps
+     * take at most an eighth of the application heap, the frame cache is turned off while the
+     * buffer is enabled to leave the memory for them.
+     *
+     * @param margin
+     *         the margin on each side as the part of the larger screen side, for example,
+     *         {@link MapMarginBuffer#DEFAULT_MARGIN}, 0 to disable the buffer
+     */
+    public void setPanMargin(float margin)
+    {
+        ActivityManager activityManager =
+                (ActivityManager) getContext().getSystemService(Context.ACTIVITY_SERVICE);
+        long heapBytes = activityManager.getMemoryClass() * 1024L * 1024L;
+        mMarginBuffer.setMaxBytes(heapBytes / 8);
+        mMarginBuffer.setMargin(margin);
+        mFrameCache.setMaxFrames(margin > 0 ? 0 : mFrameCacheSize);
+
+        if (margin > 0 && null != mMap && mIsDrawComplete) {
+            mMarginBuffer.refill(mMap, mOverview, getWidth(), getHeight());
+        }
+    }
+
+
+    /**
+     * Enables the cache of the recent complete frames, so a layer toggle back to the recent
+     * state is shown at once. Each frame is a bitmap of the view size, the cache is off by
+     * default and while the margin buffer is enabled.
+     *
+     * @param frames
+     *         the number of the frames up to {@link MapFrameCache#MAX_FRAMES}, 0 to disable the
+     *         cache
+     */
+    public void setFrameCacheSize(int frames)
+    {
+        mFrameCacheSize = frames;
+        mFrameCache.setMaxFrames(mMarginBuffer.isEnabled() ? 0 : frames);
+    }
+
+
+    protected String getFrameHistogram()
+    {
+        switch (mDrawingState) {
+            case DRAW_SATE_panning:
+            case DRAW_SATE_panning_fling:
+                return RenderMetrics.HISTOGRAM_FRAME_PAN;
+            case DRAW_SATE_zooming:
+                return RenderMetrics.HISTOGRAM_FRAME_ZOOM;
+            default:
+                return RenderMetrics.HISTOGRAM_FRAME;
+        }
+    }
+
+
+    /**
+     * Draws the map buffer or the frame from the frame cache, which replaces it
+     */
+    protected void drawMapBuffer(Canvas canvas)
+    {
+        if (!mIsFrameCached || !mBackBuffer.draw(canvas, mMap)) {
+            mMap.draw(canvas, 0, 0, false);
+        }
+    }
+
+
+    /**
+     * Draws the zoomed map from the frames, which are already drawn: the lower zoom overview for
+     * the borders on zoom out, the last complete frame and the higher zoom raster tiles from the
+     * memory cache on zoom in
+     *
+     * @return false if there is no complete frame to zoom
+     */
+    protected boolean drawZoomPreview(Canvas canvas)
+    {
+        if (!mIsDrawComplete || !mBackBuffer.isValid()) {
+            return false;
         }
+
+        float scale = (float) mScaleFactor;
+        canvas.save();
+        canvas.scale(scale, scale, -mCurrentFocusLocation.x, -mCurrentFocusLocation.y);
+        if (scale < 1) {
+            mOverview.draw(canvas, mMap);
+        }
+        mBackBuffer.draw(canvas, mMap);
+
+        if (scale > 1) {
+            float zoom = MapUtil.getZoomForScaleFactor(scale, mMap.getZoomLevel());
+            int tileZoom = Math.round(zoom);
+            if (tileZoom > Math.round(mMap.getZoomLevel())) {
+                mZoomTilePreview.draw(canvas, mMap, getZoomBounds(), tileZoom);
+            }
+        }
+        canvas.restore();
+        return true;
+    }
+
+
+    /**
+     * @return the map extent, which will be shown after the current zoom gesture
+     */
+    protected GeoEnvelope getZoomBounds()
+    {
+        GeoEnvelope env = mMap.getFullScreenBounds();
+        double invertScale = 1 / mScaleFactor;
+        double offX = (1 - invertScale) * -mCurrentFocusLocation.x;
+        double offY = (1 - invertScale) * -mCurrentFocusLocation.y;
+        env.scale(invertScale);
+        env.offset(offX, offY);
+        return mMap.screenToMap(env);
     }
 
 
@@ -283,6 +523,7 @@ public class MapView
         mDrawingState = DRAW_SATE_panning;
         mStartMouseLocation.set(e.getX(), e.getY());
         mCurrentMouseOffset.set(0, 0);
+        mPrefetchOffset.set(0, 0);
 
         mMap.buffer(0, 0, 1);
     }
@@ -324,10 +565,32 @@ public class MapView
             mCurrentMouseOffset.set(x, y);
             mMap.buffer(0, 0, 1);
             invalidate();
+
+            // the extent half a screen ahead in the pan direction
+            float dx = x - mPrefetchOffset.x;
+            float dy = y - mPrefetchOffset.y;
+            if (Math.abs(dx) > getWidth() / 4 || Math.abs(dy) > getHeight() / 4) {
+                mPrefetchOffset.set(x, y);
+                prefetch(x + Math.signum(dx) * getWidth() / 2,
+                        y + Math.signum(dy) * getHeight() / 2);
+            }
         }
     }
 
 
+    /**
+     * Loads the tiles of the screen extent with the pan offset
+     */
+    protected void prefetch(
+            float x,
+            float y)
+    {
+        GeoEnvelope bounds = mMap.getFullScreenBounds();
+        bounds.offset(x, y);
+        mPrefetcher.prefetch(mMap, bounds);
+    }
+
+
     protected void panStop()
     {
         //Log.d(Constants.TAG, "panStop state: " + mDrawingState);
@@ -427,9 +690,12 @@ public class MapView
                 (int) x, (int) y, -(int) velocityX, -(int) velocityY, (int) bounds.getMinX(),
                 (int) bounds.getMaxX(), (int) bounds.getMinY(), (int) bounds.getMaxY());
 
+        // the tiles of the fling end are loaded while the map is flinging
+        prefetch(mScroller.getFinalX(), mScroller.getFinalY());
+
         //Log.d(Constants.TAG, "Fling");
 
-        postInvalidate();
+        requestRedraw();
 
         return true;
     }
@@ -465,7 +731,7 @@ public class MapView
 
                     mCurrentMouseOffset.set(x, y);
 
-                    postInvalidate();
+                    requestRedraw();
                 }
             } else if (mScroller.isFinished()) {
                 mDrawingState = DRAW_SATE_panning;
@@ -579,7 +845,7 @@ public class MapView
         mScaleFactor = 2;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
+        mMap.buffer(0, 0, 1);
         invalidate();
 
 
@@ -596,7 +862,7 @@ public class MapView
         mScaleFactor = 0.5;
         mCurrentFocusLocation.set(-getWidth() / 2, -getHeight() / 2);
 
-        mMap.buffer(0, 0, 1); //TODO: zoom the buffer and just draw it, not draw with scale
+        mMap.buffer(0, 0, 1);
         invalidate();
 
         scheduleInvalidate();
@@ -631,21 +897,40 @@ public class MapView
     @Override
     public void onLayerAdded(int id)
     {
-        drawMapDrawable();
+        invalidateFrames();
+        drawMapLayers();
     }
 
 
     @Override
     public void onLayerDeleted(int id)
     {
-        drawMapDrawable();
+        invalidateFrames();
+        mLayerVisibility.remove(id);
+        mLayerVersions.remove(id);
+        drawMapLayers();
     }
 
 
     @Override
     public void onLayerChanged(int id)
     {
-        drawMapDrawable();
+        invalidateFrames();
+        if (!isTopLayer(id)) {
+            // the layer of a group, its content is not in the signature
+            drawMapDrawable();
+            return;
+        }
+
+        ILayer layer = mMap.getLayerById(id);
+        Boolean visible = isLayerVisible(layer);
+        Boolean previous = mLayerVisibility.put(id, visible);
+        if (null == previous || previous.equals(visible)) {
+            // not a visibility toggle, so the data or the style of the layer is changed
+            Integer version = mLayerVersions.get(id);
+            mLayerVersions.put(id, null == version ? 1 : version + 1);
+        }
+        drawMapLayers();
     }
 
 
@@ -661,22 +946,208 @@ public class MapView
     @Override
     public void onLayersReordered()
     {
-        drawMapDrawable();
+        invalidateFrames();
+        drawMapLayers();
+    }
+
+
+    /**
+     * The layers are changed, so the frames of the other extents are dropped
+     */
+    protected synchronized void invalidateFrames()
+    {
+        mMarginBuffer.invalidate();
+        mOverview.invalidate();
+        mIsBackBufferOutdated = true;
     }
 
 
+    /**
+     * Redraws all layers, the cached frames are dropped as their layers can be changed without
+     * the map event
+     */
     public void drawMapDrawable()
     {
         if (mMap != null) {
+            mFrameCache.clear();
+            mOverview.invalidate();
+            cancelDraw();
+            startDraw(getRenderSignature());
+        }
+    }
+
+
+    /**
+     * Redraws the map after the layer event. Nothing is drawn if no visible layer is changed, the
+     * recent frame of the same map state is shown from the frame cache.
+     */
+    protected void drawMapLayers()
+    {
+        if (mMap == null) {
+            return;
+        }
+
+        String signature = getRenderSignature();
+        synchronized (this) {
+            if (signature.equals(mFrameSignature)) {
+                mRenderMetrics.increment(RenderMetrics.COUNTER_DRAW_SKIPPED);
+                return;
+            }
+        }
+
+        cancelDraw();
+        synchronized (this) {
+            if (mFrameCache.restore(signature, mBackBuffer)) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(TAG, "drawMapLayers: the frame is restored from the cache");
+                }
+                mRenderMetrics.onDrawCached();
+                mIsBackBufferOutdated = false;
+                mFrameSignature = signature;
+                mDrawingState = DRAW_SATE_drawing;
+                mIsFrameCached = true;
+                mIsBufferStale = false;
+                mIsDrawComplete = true;
+                mMarginBuffer.refill(mMap, mOverview, getWidth(), getHeight());
+                requestRedraw();
+                return;
+            }
+        }
+        startDraw(signature);
+    }
+
+
+    protected void cancelDraw()
+    {
+        synchronized (this) {
+            // the layers of the superseded draw stop on the canceled progressor
+            if (null != mDrawGeneration) {
+                mDrawGeneration.cancel();
+            }
+        }
+        // out of the lock, the draw threads can wait for it in onLayerDrawFinished()
+        mMap.cancelDraw();
+    }
+
+
+    protected void startDraw(String signature)
+    {
+        DrawGeneration generation;
+        synchronized (this) {
+            generation = new DrawGeneration(++mDrawGenerationCount, signature);
+            mDrawGeneration = generation;
+            mFrameSignature = signature;
             mDrawingState = DRAW_SATE_drawing;
-            mStartDrawTime = System.currentTimeMillis();
-            mMap.runDraw(null);
+            mStartDrawTime = generation.getStartTime();
+            mIsFrameCached = false;
+            mIsBufferStale = true;
+            mIsDrawComplete = false;
+        }
+        mRenderMetrics.onDrawStarted(generation.getGeneration());
+        mMap.runDraw(generation);
+    }
+
+
+    /**
+     * The signature of the map frame: the view size, the extent and the ids with the content
+     * versions of the visible layers in the draw order. Called on the UI thread.
+     */
+    protected String getRenderSignature()
+    {
+        GeoEnvelope bounds = mMap.getCurrentBounds();
+        StringBuilder signature = new StringBuilder();
+        signature.append(getWidth()).append('x').append(getHeight())
+                .append(':').append(mMap.getZoomLevel())
+                .append(':').append(bounds.getMinX()).append(',').append(bounds.getMinY())
+                .append(',').append(bounds.getMaxX()).append(',').append(bounds.getMaxY());
+
+        for (int i = 0; i < mMap.getLayerCount(); i++) {
+            ILayer layer = mMap.getLayer(i);
+            boolean visible = isLayerVisible(layer);
+            if (!mLayerVisibility.containsKey(layer.getId())) {
+                mLayerVisibility.put(layer.getId(), visible);
+            }
+            if (!visible) {
+                continue;
+            }
+
+            Integer version = mLayerVersions.get(layer.getId());
+            signature.append('|').append(layer.getId())
+                    .append('v').append(null == version ? 0 : version);
+        }
+        return signature.toString();
+    }
+
+
+    protected boolean isLayerVisible(ILayer layer)
+    {
+        return !(layer instanceof Layer) || ((Layer) layer).isVisible();
+    }
+
+
+    protected boolean isTopLayer(int id)
+    {
+        for (int i = 0; i < mMap.getLayerCount(); i++) {
+            if (mMap.getLayer(i).getId() == id) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * @return the number of the started map draws
+     */
+    public synchronized long getDrawGeneration()
+    {
+        return mDrawGenerationCount;
+    }
+
+
+    /**
+     * The callback of the canceled draw can come after the new draw is started. The callback of
+     * the draw thread is matched by the draw which the thread has checked for the cancel. Other
+     * callbacks are stale only if the current draw is canceled.
+     */
+    protected boolean isStaleDrawCallback()
+    {
+        DrawGeneration generation = DrawGeneration.takeThreadGeneration();
+        if (null == mDrawGeneration) {
+            return null != generation;
+        }
+        if (null != generation) {
+            return generation.getGeneration() != mDrawGeneration.getGeneration();
         }
+        // not isCanceled(), it stamps the current thread
+        return mDrawGeneration.mIsCanceled;
     }
 
 
     @Override
-    public synchronized void onLayerDrawFinished(
+    public void onLayerDrawFinished(
+            int id,
+            float percent)
+    {
+        DrawGeneration generation = updateDrawState(id, percent);
+        if (null == generation) {
+            return;
+        }
+
+        // the frame cache copy and the metrics sinks are out of the lock
+        if (percent >= 1.0) {
+            // the frame of the complete draw is captured, nothing is copied if the newer draw
+            // has captured its frame already
+            mFrameCache.put(generation.getSignature(), mBackBuffer, generation.getGeneration());
+        }
+        mRenderMetrics.onLayerDrawFinished(generation.getGeneration(), id, percent);
+    }
+
+
+    /**
+     * @return the draw, null if the callback is not for the current draw
+     */
+    protected synchronized DrawGeneration updateDrawState(
             int id,
             float percent)
     {
@@ -685,20 +1156,53 @@ public class MapView
         }
 
         if (mDrawingState > DRAW_SATE_drawing_noclearbk) {
-            return;
+            return null;
+        }
+
+        // only the newest draw can buffer and show its result
+        if (isStaleDrawCallback()) {
+            return null;
         }
 
         if (System.currentTimeMillis() - mStartDrawTime > DISPLAY_REDRAW_TIMEOUT) {
             mStartDrawTime = System.currentTimeMillis();
             mMap.buffer(0, 0, 1);
-            postInvalidate();
+            mIsBufferStale = false;
+            if (percent >= 1.0) {
+                mIsDrawComplete = true;
+                captureFrame();
+            }
+            requestRedraw();
 
         } else if (/*id == mMap.getId() &&*/ percent >= 1.0) {
             //Log.d(TAG, "LayerDrawFinished: id - " + id + ", percent - " + percent);
 
             mMap.buffer(0, 0, 1);
-            postInvalidate();
+            mIsBufferStale = false;
+            mIsDrawComplete = true;
+            captureFrame();
+            requestRedraw();
+        }
+
+        return mDrawGeneration;
+    }
+
+
+    /**
+     * Keeps the complete frame for the next redraw. The previous frame of the lower zoom level
+     * becomes the overview, which fills the borders on zoom out. The frame is copied to the
+     * frame cache out of the lock by {@link #onLayerDrawFinished(int, float)}.
+     */
+    protected void captureFrame()
+    {
+        if (!mIsBackBufferOutdated && mBackBuffer.isValid()
+                && mBackBuffer.getZoom() < mMap.getZoomLevel()) {
+            mOverview.swap(mBackBuffer);
         }
+        mIsBackBufferOutdated = false;
+        long frameId = null == mDrawGeneration ? 0 : mDrawGeneration.getGeneration();
+        mBackBuffer.capture(mMap, getWidth(), getHeight(), frameId);
+        mMarginBuffer.refill(mMap, mOverview, getWidth(), getHeight());
     }
 
 
@@ -31,6 +31,7 @@ import android.os.Parcelable;
 import android.support.annotation.NonNull;
 import com.nextgis.maplib.datasource.GeoPoint;
 import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplibui.api.BufferedOverlay;
 import com.nextgis.maplibui.api.Overlay;
 
 import java.util.ArrayList;
@@ -73,33 +74,58 @@ public class MapViewOverlays
 
 
     @Override
-    protected void onDraw(Canvas canvas)
+    protected void drawMap(Canvas canvas)
     {
         if (isLockMap()) {
-            mMap.draw(canvas, 0, 0, false);
+            drawMapBuffer(canvas);
         } else {
-            super.onDraw(canvas);
+            super.drawMap(canvas);
         }
+    }
+
+
+    @Override
+    protected void drawOverlays(Canvas canvas)
+    {
+        boolean isMetricsEnabled = mRenderMetrics.isEnabled();
+        for (Overlay overlay : mOverlays) {
+            if (!overlay.isVisible())
+                continue;
+
+            long start = isMetricsEnabled ? System.nanoTime() : 0;
+            drawOverlay(canvas, overlay);
+            if (isMetricsEnabled)
+                mRenderMetrics.onOverlayDrawn(overlay, System.nanoTime() - start);
+        }
+    }
+
 
-        if (mMap != null) {
-            switch (mDrawingState) {
-                case DRAW_SATE_drawing:
-                case DRAW_SATE_drawing_noclearbk:
-                    for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
-                            overlay.draw(canvas, mMap);
-                    break;
-                case DRAW_SATE_panning:
-                case DRAW_SATE_panning_fling:
-                    for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
-                            overlay.drawOnPanning(canvas, mCurrentMouseOffset);
-                    break;
-                case DRAW_SATE_zooming:
-                    for (Overlay overlay : mOverlays)
-                        if (overlay.isVisible())
-                            overlay.drawOnZooming(canvas, mCurrentFocusLocation, (float) mScaleFactor);
-                    break;
+    protected void drawOverlay(Canvas canvas, Overlay overlay)
+    {
+        switch (mDrawingState) {
+            case DRAW_SATE_drawing:
+            case DRAW_SATE_drawing_noclearbk:
+                overlay.draw(canvas, mMap);
+                break;
+            case DRAW_SATE_panning:
+            case DRAW_SATE_panning_fling:
+                overlay.drawOnPanning(canvas, mCurrentMouseOffset);
+                break;
+            case DRAW_SATE_zooming:
+                overlay.drawOnZooming(canvas, mCurrentFocusLocation, (float) mScaleFactor);
+                break;
+        }
+    }
+
+
+    @Override
+    protected void onDetachedFromWindow()
+    {
+        super.onDetachedFromWindow();
+
+        for (Overlay overlay : mOverlays) {
+            if (overlay instanceof BufferedOverlay) {
+                ((BufferedOverlay) overlay).release();
             }
         }
     }
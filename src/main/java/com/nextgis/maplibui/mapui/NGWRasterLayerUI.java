@@ -25,16 +25,19 @@ package com.nextgis.maplibui.mapui;
 
 import android.content.Context;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.support.v4.app.FragmentActivity;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.NGWRasterLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
 import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.dialog.SelectZoomLevelsDialog;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileCacheEvictor;
 
 import java.io.File;
 
@@ -43,11 +46,15 @@ public class NGWRasterLayerUI
         extends NGWRasterLayer
         implements ILayerUI
 {
+    protected TileCacheEvictor mEvictor;
+
+
     public NGWRasterLayerUI(
             Context context,
             File path)
     {
         super(context, path);
+        mEvictor = TileCacheEvictor.getEvictor(path);
     }
 
 
@@ -67,6 +74,20 @@ public class NGWRasterLayerUI
         context.startActivity(settings);
     }
 
+
+    /**
+     * Records the tile access for the cache budget
+     */
+    @Override
+    public Bitmap getBitmap(TileItem tile)
+    {
+        Bitmap bitmap = super.getBitmap(tile);
+        if (null != bitmap) {
+            mEvictor.onTileAccess(tile.getZoomLevel(), tile.getX(), tile.getY());
+        }
+        return bitmap;
+    }
+
     public void downloadTiles(Context context, GeoEnvelope env) {
         FragmentActivity fragmentActivity = (FragmentActivity) context;
         SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
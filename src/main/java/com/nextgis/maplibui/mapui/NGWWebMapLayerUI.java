@@ -25,12 +25,14 @@ import android.app.Activity;
 import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
+import android.graphics.Bitmap;
 import android.graphics.drawable.Drawable;
 import android.support.v4.app.FragmentActivity;
 import android.support.v4.content.ContextCompat;
 import android.support.v7.app.AlertDialog;
 
 import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
 import com.nextgis.maplib.map.NGWWebMapLayer;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.activity.TMSLayerSettingsActivity;
@@ -38,12 +40,16 @@ import com.nextgis.maplibui.api.ILayerUI;
 import com.nextgis.maplibui.dialog.SelectZoomLevelsDialog;
 import com.nextgis.maplibui.util.ClearCacheTask;
 import com.nextgis.maplibui.util.ConstantsUI;
+import com.nextgis.maplibui.util.TileCacheEvictor;
 
 import java.io.File;
 
 public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
+    protected TileCacheEvictor mEvictor;
+
     public NGWWebMapLayerUI(Context context, File path) {
         super(context, path);
+        mEvictor = TileCacheEvictor.getEvictor(path);
     }
 
     @Override
@@ -59,6 +65,14 @@ public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
         context.startActivity(settings);
     }
 
+    @Override
+    public Bitmap getBitmap(TileItem tile) {
+        Bitmap bitmap = super.getBitmap(tile);
+        if (null != bitmap)
+            mEvictor.onTileAccess(tile.getZoomLevel(), tile.getX(), tile.getY());
+        return bitmap;
+    }
+
     public void downloadTiles(Context context, GeoEnvelope env) {
         FragmentActivity fragmentActivity = (FragmentActivity) context;
         SelectZoomLevelsDialog newFragment = new SelectZoomLevelsDialog();
@@ -100,7 +114,8 @@ public class NGWWebMapLayerUI extends NGWWebMapLayer implements ILayerUI {
                                 }
                             };
 
-                            new ClearCacheTask(activity, listener).execute(getPath());
+                            new ClearCacheTask(activity, listener).setPurgeInBackground(true)
+                                    .execute(getPath());
                             save();
                         }
                     }
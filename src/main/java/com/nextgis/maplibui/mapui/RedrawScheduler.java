@@ -0,0 +1,238 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+import android.view.Choreographer;
+import android.view.View;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Redraw scheduler of the map view. The redraw requests from any thread are coalesced to one
+ * invalidate per display frame (Choreographer on API 16+, the frame-aligned handler message
+ * before), the settle action is debounced on the same handler, so no thread is created per
+ * request. The draw time of the frames is collected for the statistics.
+ */
+public class RedrawScheduler
+{
+    protected static final long FRAME_TIME = 16;
+
+    protected final View          mView;
+    protected final Handler       mHandler;
+    protected final AtomicBoolean mRedrawPending;
+    protected final AtomicLong    mRequestCount;
+    protected final Runnable      mSettleAction;
+    protected final Runnable      mPostFrame;
+    protected final Runnable      mFrame;
+    protected       VsyncSource   mVsyncSource;
+
+    protected volatile long  mFrameCount;
+    protected volatile float mAverageDrawTime;
+    protected volatile float mMaxDrawTime;
+
+
+    public RedrawScheduler(
+            View view,
+            Runnable settleAction)
+    {
+        mView = view;
+        mHandler = new Handler(Looper.getMainLooper());
+        mRedrawPending = new AtomicBoolean();
+        mRequestCount = new AtomicLong();
+        mSettleAction = settleAction;
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            mVsyncSource = new VsyncSource(this);
+        }
+
+        mFrame = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                doFrame();
+            }
+        };
+
+        mPostFrame = new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if (null != mVsyncSource) {
+                    mVsyncSource.post();
+                } else {
+                    // align to the next frame of the 60 fps display
+                    long now = SystemClock.uptimeMillis();
+                    mHandler.postDelayed(mFrame, FRAME_TIME - now % FRAME_TIME);
+                }
+            }
+        };
+    }
+
+
+    /**
+     * Requests the view redraw on the next display frame. Can be called from any thread, the
+     * requests before the frame are merged.
+     */
+    public void requestRedraw()
+    {
+        mRequestCount.incrementAndGet();
+        if (mRedrawPending.compareAndSet(false, true)) {
+            mHandler.post(mPostFrame);
+        }
+    }
+
+
+    /**
+     * Runs the settle action after the delay, the next call restarts the delay
+     */
+    public void scheduleSettle(long delay)
+    {
+        mHandler.removeCallbacks(mSettleAction);
+        mHandler.postDelayed(mSettleAction, delay);
+    }
+
+
+    public void cancel()
+    {
+        mHandler.removeCallbacks(mSettleAction);
+        mHandler.removeCallbacks(mPostFrame);
+        mHandler.removeCallbacks(mFrame);
+        if (null != mVsyncSource) {
+            mVsyncSource.remove();
+        }
+        mRedrawPending.set(false);
+    }
+
+
+    protected void doFrame()
+    {
+        mRedrawPending.set(false);
+        mFrameCount++;
+        mView.invalidate();
+    }
+
+
+    /**
+     * Records the draw time of the view frame
+     *
+     * @param drawTime
+     *         the time of onDraw() in nanoseconds
+     */
+    public void onFrameDrawn(long drawTime)
+    {
+        float time = drawTime / 1000000f;
+        mAverageDrawTime = mAverageDrawTime == 0 ? time : mAverageDrawTime * 0.9f + time * 0.1f;
+        if (time > mMaxDrawTime) {
+            mMaxDrawTime = time;
+        }
+    }
+
+
+    /**
+     * @return the number of the redraw frames
+     */
+    public long getFrameCount()
+    {
+        return mFrameCount;
+    }
+
+
+    /**
+     * @return the number of the redraw requests, the requests / frames ratio shows how many
+     * invalidates were merged
+     */
+    public long getRequestCount()
+    {
+        return mRequestCount.get();
+    }
+
+
+    /**
+     * @return the moving average of onDraw() time in milliseconds
+     */
+    public float getAverageDrawTime()
+    {
+        return mAverageDrawTime;
+    }
+
+
+    public float getMaxDrawTime()
+    {
+        return mMaxDrawTime;
+    }
+
+
+    public void resetStats()
+    {
+        mFrameCount = 0;
+        mRequestCount.set(0);
+        mAverageDrawTime = 0;
+        mMaxDrawTime = 0;
+    }
+
+
+    /**
+     * Choreographer is not loaded before API 16, so it is used only from this class
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN)
+    protected static class VsyncSource
+            implements Choreographer.FrameCallback
+    {
+        protected final RedrawScheduler mScheduler;
+
+
+        protected VsyncSource(RedrawScheduler scheduler)
+        {
+            mScheduler = scheduler;
+        }
+
+
+        protected void post()
+        {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+
+        protected void remove()
+        {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+
+        @Override
+        public void doFrame(long frameTimeNanos)
+        {
+            mScheduler.doFrame();
+        }
+    }
+}
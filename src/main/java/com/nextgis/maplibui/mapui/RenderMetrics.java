@@ -0,0 +1,439 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.util.Log;
+
+import com.nextgis.maplibui.api.IRenderMetricsSink;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * The render metrics of the map view: the counters of the draws and the histograms of the draw
+ * time of the map, of each layer, of each overlay type and of the frames during pan and zoom.
+ * The metrics are passed to the sinks after each complete draw and periodically. The collection
+ * is disabled by default.
+ */
+public class RenderMetrics
+{
+    public static final String COUNTER_DRAW_STARTED  = "draw.started";
+    public static final String COUNTER_DRAW_CANCELED = "draw.canceled";
+    public static final String COUNTER_DRAW_CACHED   = "draw.cached";
+    public static final String COUNTER_DRAW_SKIPPED  = "draw.skipped";
+
+    public static final String HISTOGRAM_DRAW       = "draw";
+    public static final String HISTOGRAM_LAYER      = "layer.";
+    public static final String HISTOGRAM_OVERLAY    = "overlay.";
+    public static final String HISTOGRAM_FRAME      = "frame.draw";
+    public static final String HISTOGRAM_FRAME_PAN  = "frame.pan";
+    public static final String HISTOGRAM_FRAME_ZOOM = "frame.zoom";
+
+    protected static final long REPORT_INTERVAL = 30000;
+
+    protected final ConcurrentHashMap<String, AtomicLong> mCounters;
+    protected final ConcurrentHashMap<String, Histogram>  mHistograms;
+    protected final List<IRenderMetricsSink>              mSinks;
+    protected final Map<Integer, Long>                    mLayerTimes;
+
+    protected volatile boolean mIsEnabled;
+    protected          long    mGeneration;
+    protected          long    mDrawStartTime;
+    protected volatile long    mLastReportTime;
+    protected          long    mReportInterval;
+
+
+    public RenderMetrics()
+    {
+        mCounters = new ConcurrentHashMap<>();
+        mHistograms = new ConcurrentHashMap<>();
+        mSinks = new CopyOnWriteArrayList<>();
+        mLayerTimes = new HashMap<>();
+        mReportInterval = REPORT_INTERVAL;
+        mLastReportTime = System.currentTimeMillis();
+    }
+
+
+    public boolean isEnabled()
+    {
+        return mIsEnabled;
+    }
+
+
+    public void setEnabled(boolean enabled)
+    {
+        mIsEnabled = enabled;
+    }
+
+
+    public void addSink(IRenderMetricsSink sink)
+    {
+        mSinks.add(sink);
+    }
+
+
+    public void removeSink(IRenderMetricsSink sink)
+    {
+        mSinks.remove(sink);
+    }
+
+
+    /**
+     * @param reportInterval
+     *         the interval of the periodic report in milliseconds
+     */
+    public void setReportInterval(long reportInterval)
+    {
+        mReportInterval = reportInterval;
+    }
+
+
+    public void increment(String counter)
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        AtomicLong value = mCounters.get(counter);
+        if (null == value) {
+            value = new AtomicLong();
+            AtomicLong previous = mCounters.putIfAbsent(counter, value);
+            if (null != previous) {
+                value = previous;
+            }
+        }
+        value.incrementAndGet();
+    }
+
+
+    public long getCounter(String counter)
+    {
+        AtomicLong value = mCounters.get(counter);
+        return null == value ? 0 : value.get();
+    }
+
+
+    /**
+     * @param time
+     *         the time in milliseconds
+     */
+    public void record(
+            String histogram,
+            float time)
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        Histogram value = mHistograms.get(histogram);
+        if (null == value) {
+            value = new Histogram();
+            Histogram previous = mHistograms.putIfAbsent(histogram, value);
+            if (null != previous) {
+                value = previous;
+            }
+        }
+        value.record(time);
+    }
+
+
+    public Histogram getHistogram(String histogram)
+    {
+        return mHistograms.get(histogram);
+    }
+
+
+    /**
+     * @return the names of the histograms in the alphabetical order
+     */
+    public List<String> getHistogramNames()
+    {
+        List<String> names = new ArrayList<>(mHistograms.keySet());
+        Collections.sort(names);
+        return names;
+    }
+
+
+    public synchronized void onDrawStarted(long generation)
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        if (mDrawStartTime != 0) {
+            // the previous draw was not finished
+            increment(COUNTER_DRAW_CANCELED);
+        }
+        increment(COUNTER_DRAW_STARTED);
+        mGeneration = generation;
+        mDrawStartTime = System.currentTimeMillis();
+        mLayerTimes.clear();
+    }
+
+
+    /**
+     * The map is shown from the frame cache, the current draw is canceled
+     */
+    public synchronized void onDrawCached()
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        if (mDrawStartTime != 0) {
+            increment(COUNTER_DRAW_CANCELED);
+            mDrawStartTime = 0;
+        }
+        increment(COUNTER_DRAW_CACHED);
+    }
+
+
+    /**
+     * Records the time from the draw start to the layer finish. The map layers are drawn in the
+     * parallel threads, so the own time of a layer is not known.
+     */
+    public void onLayerDrawFinished(
+            long generation,
+            int layerId,
+            float percent)
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        long drawTime;
+        Map<Integer, Long> layerTimes = null;
+        synchronized (this) {
+            if (generation != mGeneration || 0 == mDrawStartTime) {
+                return;
+            }
+
+            drawTime = System.currentTimeMillis() - mDrawStartTime;
+            if (!mLayerTimes.containsKey(layerId)) {
+                mLayerTimes.put(layerId, drawTime);
+                record(HISTOGRAM_LAYER + layerId, drawTime);
+            }
+
+            if (percent >= 1.0) {
+                mDrawStartTime = 0;
+                record(HISTOGRAM_DRAW, drawTime);
+                layerTimes = new TreeMap<>(mLayerTimes);
+            }
+        }
+
+        if (null != layerTimes) {
+            for (IRenderMetricsSink sink : mSinks) {
+                sink.onDrawFinished(generation, drawTime, layerTimes);
+            }
+            reportIfNeeded();
+        }
+    }
+
+
+    /**
+     * Records the view frame time
+     *
+     * @param histogram
+     *         one of the frame histograms
+     * @param drawTime
+     *         the time of onDraw() in nanoseconds
+     */
+    public void onFrameDrawn(
+            String histogram,
+            long drawTime)
+    {
+        if (!mIsEnabled) {
+            return;
+        }
+
+        record(histogram, drawTime / 1000000f);
+        reportIfNeeded();
+    }
+
+
+    /**
+     * @param drawTime
+     *         the draw time of the overlay in nanoseconds
+     */
+    public void onOverlayDrawn(
+            Object overlay,
+            long drawTime)
+    {
+        record(HISTOGRAM_OVERLAY + overlay.getClass().getSimpleName(), drawTime / 1000000f);
+    }
+
+
+    protected void reportIfNeeded()
+    {
+        long now = System.currentTimeMillis();
+        if (now - mLastReportTime < mReportInterval) {
+            return;
+        }
+        mLastReportTime = now;
+        report();
+    }
+
+
+    /**
+     * Passes the metrics to the sinks immediately
+     */
+    public void report()
+    {
+        for (IRenderMetricsSink sink : mSinks) {
+            sink.onReport(this);
+        }
+    }
+
+
+    public void reset()
+    {
+        mCounters.clear();
+        mHistograms.clear();
+    }
+
+
+    @Override
+    public String toString()
+    {
+        StringBuilder builder = new StringBuilder();
+        for (String counter : new TreeMap<>(mCounters).keySet()) {
+            builder.append(counter).append(": ").append(getCounter(counter)).append('\n');
+        }
+        for (String histogram : getHistogramNames()) {
+            builder.append(histogram).append(": ").append(mHistograms.get(histogram)).append('\n');
+        }
+        return builder.toString();
+    }
+
+
+    /**
+     * The histogram of the times with the power of two buckets in milliseconds
+     */
+    public static class Histogram
+    {
+        // the upper bounds of the buckets, the last one is for the longer times
+        protected static final float[] BOUNDS =
+                {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024, 2048, 4096, Float.MAX_VALUE};
+
+        protected final long[] mBuckets = new long[BOUNDS.length];
+        protected long  mCount;
+        protected float mSum;
+        protected float mMax;
+
+
+        public synchronized void record(float time)
+        {
+            int i = 0;
+            while (time > BOUNDS[i]) {
+                i++;
+            }
+            mBuckets[i]++;
+            mCount++;
+            mSum += time;
+            if (time > mMax) {
+                mMax = time;
+            }
+        }
+
+
+        public synchronized long getCount()
+        {
+            return mCount;
+        }
+
+
+        public synchronized float getMean()
+        {
+            return 0 == mCount ? 0 : mSum / mCount;
+        }
+
+
+        public synchronized float getMax()
+        {
+            return mMax;
+        }
+
+
+        /**
+         * @param percentile
+         *         the percentile from 0 to 1
+         *
+         * @return the upper bound of the bucket with the percentile, not more than the max time
+         */
+        public synchronized float getPercentile(float percentile)
+        {
+            long rank = (long) Math.ceil(percentile * mCount);
+            long count = 0;
+            for (int i = 0; i < mBuckets.length; i++) {
+                count += mBuckets[i];
+                if (count >= rank && count > 0) {
+                    return Math.min(BOUNDS[i], mMax);
+                }
+            }
+            return mMax;
+        }
+
+
+        @Override
+        public synchronized String toString()
+        {
+            return String.format("count %d, mean %.1f ms, p50 %.0f ms, p95 %.0f ms, max %.1f ms",
+                    mCount, getMean(), getPercentile(0.5f), getPercentile(0.95f), mMax);
+        }
+    }
+
+
+    /**
+     * Writes the metrics to the log
+     */
+    public static class LogSink
+            implements IRenderMetricsSink
+    {
+        @Override
+        public void onDrawFinished(
+                long generation,
+                long drawTime,
+                Map<Integer, Long> layerTimes)
+        {
+            Log.d(TAG, "Map draw " + generation + ": " + drawTime + " ms, layers " + layerTimes);
+        }
+
+
+        @Override
+        public void onReport(RenderMetrics metrics)
+        {
+            Log.d(TAG, "Render metrics:\n" + metrics);
+        }
+    }
+}
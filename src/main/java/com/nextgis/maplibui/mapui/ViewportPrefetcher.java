@@ -0,0 +1,160 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.os.Process;
+import android.util.Log;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplibui.util.TileRangeCursor;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
+import static com.nextgis.maplib.util.Constants.TAG;
+
+
+/**
+ * Loads the raster tiles of the extent, which is about to become visible: the end extent of the
+ * fling or the extent ahead of the pan. The tiles are loaded to the memory cache of the layers
+ * on the background threads, so they are ready when the map is redrawn. The tiles of the
+ * previous request, which are not loaded yet, are dropped.
+ */
+public class ViewportPrefetcher
+{
+    protected static final int THREAD_COUNT = 2;
+    // the tiles of the prefetch are limited to the extent about the screen size
+    protected static final int MAX_TILES    = 64;
+
+    protected final ThreadPoolExecutor mThreadPool;
+
+    protected volatile boolean mIsEnabled;
+
+
+    public ViewportPrefetcher()
+    {
+        mThreadPool = new ThreadPoolExecutor(THREAD_COUNT, THREAD_COUNT, KEEP_ALIVE_TIME,
+                KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+        mThreadPool.allowCoreThreadTimeOut(true);
+        mIsEnabled = true;
+    }
+
+
+    public boolean isEnabled()
+    {
+        return mIsEnabled;
+    }
+
+
+    public void setEnabled(boolean enabled)
+    {
+        mIsEnabled = enabled;
+        if (!enabled) {
+            cancel();
+        }
+    }
+
+
+    /**
+     * Queues the loads of the visible TMS layers tiles, which are not in the memory cache
+     *
+     * @param screenBounds
+     *         the predicted extent in the screen coordinates of the current map extent
+     *
+     * @return the number of the queued tiles
+     */
+    public int prefetch(
+            MapDrawable map,
+            GeoEnvelope screenBounds)
+    {
+        if (!mIsEnabled || null == map) {
+            return 0;
+        }
+
+        cancel();
+
+        GeoEnvelope bounds = map.screenToMap(screenBounds);
+        int zoom = Math.round(map.getZoomLevel());
+        if (TileRangeCursor.getTileCount(bounds, zoom) > MAX_TILES) {
+            return 0;
+        }
+
+        List<Integer> zoomList = Collections.singletonList(zoom);
+        int count = 0;
+        for (int i = 0; i < map.getLayerCount(); i++) {
+            ILayer layer = map.getLayer(i);
+            if (!(layer instanceof TMSLayer)) {
+                continue;
+            }
+
+            final TMSLayer tmsLayer = (TMSLayer) layer;
+            if (!tmsLayer.isVisible() || zoom < tmsLayer.getMinZoom()
+                    || zoom > tmsLayer.getMaxZoom()) {
+                continue;
+            }
+
+            TileRangeCursor cursor = new TileRangeCursor(bounds, zoomList, tmsLayer.getTMSType());
+            while (cursor.next()) {
+                final TileItem tile = cursor.getTileItem();
+                if (null != tmsLayer.getBitmapFromCache(tile.getHash())) {
+                    continue;
+                }
+
+                mThreadPool.execute(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                        tmsLayer.getBitmap(tile);
+                    }
+                });
+                count++;
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(TAG, "ViewportPrefetcher: " + count + " tiles are queued for zoom " + zoom);
+        }
+        return count;
+    }
+
+
+    /**
+     * Drops the queued tile loads, the loads in progress are finished
+     */
+    public void cancel()
+    {
+        mThreadPool.getQueue().clear();
+    }
+}
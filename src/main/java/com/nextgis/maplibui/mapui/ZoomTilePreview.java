@@ -0,0 +1,147 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.mapui;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RectF;
+
+import com.nextgis.maplib.api.ILayer;
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.map.Layer;
+import com.nextgis.maplib.map.MapDrawable;
+import com.nextgis.maplib.map.TMSLayer;
+import com.nextgis.maplibui.util.TileRangeCursor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+
+/**
+ * Draws the raster tiles of the target zoom level, which are already in the memory cache of the
+ * layers, over the scaled map frame during the pinch zoom. Only the top visible TMS layers are
+ * used, the tiles of a raster layer under a vector one would hide the vector data.
+ */
+public class ZoomTilePreview
+{
+    // a tile preview is not worth it for a huge number of tiles
+    protected static final int MAX_TILES = 256;
+
+    protected final Paint          mPaint  = new Paint(Paint.FILTER_BITMAP_FLAG);
+    protected final RectF          mRect   = new RectF();
+    protected final List<TMSLayer> mLayers = new ArrayList<>();
+
+
+    /**
+     * @param bounds
+     *         the map extent, which will be shown after the zoom
+     * @param zoom
+     *         the tile zoom level of the extent
+     *
+     * @return the number of the drawn tiles
+     */
+    public int draw(
+            Canvas canvas,
+            MapDrawable map,
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        return draw(canvas, map, bounds, zoom, false);
+    }
+
+
+    /**
+     * @param load
+     *         load the tiles, which are not in the memory cache, only for the background thread
+     */
+    public int draw(
+            Canvas canvas,
+            MapDrawable map,
+            GeoEnvelope bounds,
+            int zoom,
+            boolean load)
+    {
+        getTopRasterLayers(map);
+        if (mLayers.isEmpty()) {
+            return 0;
+        }
+
+        List<Integer> zoomList = Collections.singletonList(zoom);
+        if (TileRangeCursor.getTileCount(bounds, zoom) > MAX_TILES) {
+            return 0;
+        }
+
+        int count = 0;
+        for (TMSLayer layer : mLayers) {
+            if (zoom < layer.getMinZoom() || zoom > layer.getMaxZoom()) {
+                continue;
+            }
+
+            TileRangeCursor cursor = new TileRangeCursor(bounds, zoomList, layer.getTMSType());
+            while (cursor.next()) {
+                TileItem tile = cursor.getTileItem();
+                Bitmap bitmap =
+                        load ? layer.getBitmap(tile) : layer.getBitmapFromCache(tile.getHash());
+                if (null == bitmap || bitmap.isRecycled()) {
+                    continue;
+                }
+
+                GeoEnvelope env = tile.getEnvelope();
+                GeoPoint topLeft = map.mapToScreen(new GeoPoint(env.getMinX(), env.getMaxY()));
+                GeoPoint bottomRight =
+                        map.mapToScreen(new GeoPoint(env.getMaxX(), env.getMinY()));
+                mRect.set((float) topLeft.getX(), (float) topLeft.getY(),
+                        (float) bottomRight.getX(), (float) bottomRight.getY());
+                canvas.drawBitmap(bitmap, null, mRect, mPaint);
+                count++;
+            }
+        }
+
+        return count;
+    }
+
+
+    /**
+     * Collects the visible TMS layers from the top of the map down to the first visible layer of
+     * the other type, in the draw order
+     */
+    protected void getTopRasterLayers(MapDrawable map)
+    {
+        mLayers.clear();
+        for (int i = map.getLayerCount() - 1; i >= 0; i--) {
+            ILayer layer = map.getLayer(i);
+            if (layer instanceof TMSLayer) {
+                if (((TMSLayer) layer).isVisible()) {
+                    mLayers.add(0, (TMSLayer) layer);
+                }
+            } else if (!(layer instanceof Layer) || ((Layer) layer).isVisible()) {
+                break;
+            }
+        }
+    }
+}
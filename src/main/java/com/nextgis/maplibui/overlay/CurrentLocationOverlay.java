@@ -225,7 +225,7 @@ public class CurrentLocationOverlay extends Overlay implements GpsEventListener
 
             if (update) {
                 mCurrentLocation = location;
-                mMapViewOverlays.postInvalidate();
+                mMapViewOverlays.requestRedraw();
             }
 
             if (mIsAutopanningEnabled) {
@@ -34,25 +34,26 @@ import android.net.Uri;
 import android.os.Handler;
 import com.nextgis.maplib.api.IGISApplication;
 import com.nextgis.maplib.datasource.GeoPoint;
-import com.nextgis.maplib.map.MapDrawable;
 import com.nextgis.maplib.map.TrackLayer;
 import com.nextgis.maplib.util.GeoConstants;
 import com.nextgis.maplibui.R;
-import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.api.BufferedOverlay;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.util.ControlHelper;
 
-import java.util.ArrayList;
-import java.util.List;
-
 
+/**
+ * The track being recorded, it is rendered on the background thread as the track points are
+ * added
+ */
 public class CurrentTrackOverlay
-        extends Overlay
+        extends BufferedOverlay
 {
-    private       Cursor         mCursor;
-    private final Uri            mContentUriTracks;
-    private       Paint          mPaint;
-    private       List<GeoPoint> mTrackpoints;
+    private          Cursor  mCursor;
+    private final    Uri     mContentUriTracks;
+    private          Paint   mPaint;
+    private volatile Paint   mRenderPaint;
+    private volatile boolean mIsCursorStale;
 
     String[] mProjection = new String[] {TrackLayer.FIELD_ID};
     String   mSelection  = TrackLayer.FIELD_VISIBLE + " = 1 AND (" + TrackLayer.FIELD_END +
@@ -73,8 +74,8 @@ public class CurrentTrackOverlay
         mPaint.setStrokeCap(Paint.Cap.ROUND);
         mPaint.setColor(ControlHelper.getColor(mContext, R.attr.colorAccent));
         mPaint.setStrokeWidth(4);
+        mRenderPaint = new Paint(mPaint);
 
-        mTrackpoints = new ArrayList<>();
         IGISApplication app = (IGISApplication) parent.getApplication();
         String authority = app.getAuthority();
         mContentUriTracks = Uri.parse("content://" + authority + "/" + TrackLayer.TABLE_TRACKS);
@@ -99,19 +100,7 @@ public class CurrentTrackOverlay
             return;
         }
 
-        if (mTrackpoints.size() < 2) {
-            return;
-        }
-
-        float x0, y0, x1, y1;
-
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            x0 = (float) mTrackpoints.get(i - 1).getX() - currentMouseOffset.x;
-            y0 = (float) mTrackpoints.get(i - 1).getY() - currentMouseOffset.y;
-            x1 = (float) mTrackpoints.get(i).getX() - currentMouseOffset.x;
-            y1 = (float) mTrackpoints.get(i).getY() - currentMouseOffset.y;
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-        }
+        super.drawOnPanning(canvas, currentMouseOffset);
     }
 
 
@@ -125,40 +114,26 @@ public class CurrentTrackOverlay
             return;
         }
 
-        float x0, y0, x1, y1;
-        double dx, dy;
-
-        if (mTrackpoints.size() < 2) {
-            return;
-        } else {
-            dx = mTrackpoints.get(0).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(0).getY() + currentFocusLocation.y;
-            x0 = (float) (mTrackpoints.get(0).getX() - (1 - scale) * dx);
-            y0 = (float) (mTrackpoints.get(0).getY() - (1 - scale) * dy);
-        }
-
-        for (int i = 1; i < mTrackpoints.size(); i++) {
-            dx = mTrackpoints.get(i).getX() + currentFocusLocation.x;
-            dy = mTrackpoints.get(i).getY() + currentFocusLocation.y;
-            x1 = (float) (mTrackpoints.get(i).getX() - (1 - scale) * dx);
-            y1 = (float) (mTrackpoints.get(i).getY() - (1 - scale) * dy);
-
-            canvas.drawLine(x0, y0, x1, y1, mPaint);
-            x0 = x1;
-            y0 = y1;
-        }
+        super.drawOnZooming(canvas, currentFocusLocation, scale);
     }
 
 
     @Override
-    public void draw(
+    protected boolean render(
             Canvas canvas,
-            MapDrawable mapDrawable)
+            RenderExtent extent)
     {
-        mTrackpoints.clear();
+        if (mCursor == null) {
+            return false;
+        }
 
-        if (mCursor == null || mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
-            return;
+        if (mIsCursorStale) {
+            mIsCursorStale = false;
+            mCursor.requery();
+        }
+
+        if (mCursor.getCount() == 0 || !mCursor.moveToFirst()) {
+            return false;
         }
 
         String id = mCursor.getString(0);
@@ -168,52 +143,59 @@ public class CurrentTrackOverlay
                 Uri.withAppendedPath(mContentUriTracks, id), proj, null, null, null);
 
         if (track == null) {
-            return;
+            return false;
         }
 
+        // the paint is replaced, not changed, by the UI thread
+        Paint paint = mRenderPaint;
+        boolean hasTrack = false;
         if (track.moveToFirst()) {
-            float x0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON)),
-                    y0 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT)), x1, y1;
+            int lonColumn = track.getColumnIndex(TrackLayer.FIELD_LON);
+            int latColumn = track.getColumnIndex(TrackLayer.FIELD_LAT);
+            float x0 = track.getFloat(lonColumn), y0 = track.getFloat(latColumn), x1, y1;
             GeoPoint point;
             point = new GeoPoint(x0, y0);
             point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
 
-            GeoPoint mts = mapDrawable.mapToScreen(point);
+            GeoPoint mts = extent.mapToScreen(point);
             x0 = (float) (mts.getX());
             y0 = (float) (mts.getY());
 
             while (track.moveToNext()) {
-                x1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LON));
-                y1 = track.getFloat(track.getColumnIndex(TrackLayer.FIELD_LAT));
+                x1 = track.getFloat(lonColumn);
+                y1 = track.getFloat(latColumn);
 
                 point = new GeoPoint(x1, y1);
                 point.setCRS(GeoConstants.CRS_WEB_MERCATOR);
 
-                mts = mapDrawable.mapToScreen(point);
+                mts = extent.mapToScreen(point);
 
-                canvas.drawLine(x0, y0, (float) mts.getX(), (float) mts.getY(), mPaint);
+                canvas.drawLine(x0, y0, (float) mts.getX(), (float) mts.getY(), paint);
+                hasTrack = true;
 
-                mTrackpoints.add(new GeoPoint(x0, y0));
                 x0 = (float) (mts.getX());
                 y0 = (float) (mts.getY());
             }
-
-            mTrackpoints.add(new GeoPoint(x0, y0));
         }
 
         track.close();
+        return hasTrack;
     }
 
 
     public void setLineColor(int color)
     {
         mPaint.setColor(color);
+        mRenderPaint = new Paint(mPaint);
+        invalidateOverlay();
     }
 
 
     public void setLineWidth(float width)
     {
         mPaint.setStrokeWidth(width);
+        mRenderPaint = new Paint(mPaint);
+        invalidateOverlay();
     }
 
 
@@ -232,8 +214,9 @@ public class CurrentTrackOverlay
         {
             super.onChange(selfChange);
 
-            mCursor.requery();
-            mMapViewOverlays.postInvalidate();
+            // the cursor is queried again on the render thread
+            mIsCursorStale = true;
+            invalidateOverlay();
         }
 
     }
@@ -32,6 +32,7 @@ import android.graphics.Bitmap;
 import android.graphics.BitmapFactory;
 import android.graphics.Canvas;
 import android.graphics.Color;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.PointF;
 import android.graphics.RectF;
@@ -68,12 +69,14 @@ import com.nextgis.maplibui.api.EditStyle;
 import com.nextgis.maplibui.api.MapViewEventListener;
 import com.nextgis.maplibui.api.Overlay;
 import com.nextgis.maplibui.api.OverlayItem;
+import com.nextgis.maplibui.api.OverlayPicture;
 import com.nextgis.maplibui.api.VertexStyle;
 import com.nextgis.maplibui.fragment.BottomToolbar;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.service.WalkEditService;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
+import com.nextgis.maplibui.util.FeaturePicker;
 import com.nextgis.maplibui.util.SettingsConstantsUI;
 
 import java.util.ArrayList;
@@ -122,7 +125,16 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
     protected Feature mFeature;
 
     protected List<DrawItem> mDrawItems;
+    protected OverlayPicture mItemsPicture;
+    protected Matrix mTransform;
     protected DrawItem mSelectedItem;
+    protected FeaturePicker mPicker;
+
+    // the geometry revision and the map transform of the draw items screen coordinates
+    protected long mGeometryRevision, mDrawItemsRevision;
+    protected GeoGeometry mDrawItemsGeometry;
+    protected GeoEnvelope mDrawItemsBounds;
+    protected int mDrawItemsWidth, mDrawItemsHeight;
 
     protected int mMode;
     protected boolean mHasEdits;
@@ -151,6 +163,9 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         mPaint.setStrokeWidth(LINE_WIDTH / 2);
 
         mDrawItems = new ArrayList<>();
+        mItemsPicture = new OverlayPicture();
+        mTransform = new Matrix();
+        mPicker = new FeaturePicker();
         mListeners = new ArrayList<>();
 
         mMap = mMapViewOverlays.getMap();
@@ -207,6 +222,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     public void setSelectedFeature(long featureId) {
         clearDrawItems();
+        invalidateDrawItems();
 
         if (mLayer != null && featureId > Constants.NOT_FOUND) {
             mFeature = new Feature(featureId, mLayer.getFields());
@@ -220,6 +236,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     public void setSelectedFeature(Feature feature) {
         clearDrawItems();
+        invalidateDrawItems();
         mFeature = feature;
         updateMap();
     }
@@ -255,6 +272,46 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
     protected void clearDrawItems() {
         mDrawItems.clear();
         mSelectedItem = null;
+        mDrawItemsGeometry = null;
+    }
+
+
+    /**
+     * The geometry of the feature is changed in place, its screen coordinates must be projected
+     * again on the next draw
+     */
+    public void invalidateDrawItems() {
+        mGeometryRevision++;
+    }
+
+
+    /**
+     * @return true if the draw items are projected from the same geometry revision with the
+     * current map transform
+     */
+    protected boolean isDrawItemsValid(GeoGeometry geometry) {
+        if (mDrawItems.isEmpty() || null == geometry || geometry != mDrawItemsGeometry
+                || mDrawItemsRevision != mGeometryRevision || null == mDrawItemsBounds)
+            return false;
+
+        if (mDrawItemsWidth != mMapViewOverlays.getWidth() || mDrawItemsHeight != mMapViewOverlays.getHeight())
+            return false;
+
+        GeoEnvelope bounds = mMap.getCurrentBounds();
+        return bounds.getMinX() == mDrawItemsBounds.getMinX() && bounds.getMinY() == mDrawItemsBounds.getMinY()
+                && bounds.getMaxX() == mDrawItemsBounds.getMaxX() && bounds.getMaxY() == mDrawItemsBounds.getMaxY();
+    }
+
+
+    /**
+     * Marks the draw items as the screen coordinates of the geometry in the current map transform
+     */
+    protected void setDrawItemsValid(GeoGeometry geometry) {
+        mDrawItemsGeometry = geometry;
+        mDrawItemsRevision = mGeometryRevision;
+        mDrawItemsBounds = mMap.getCurrentBounds();
+        mDrawItemsWidth = mMapViewOverlays.getWidth();
+        mDrawItemsHeight = mMapViewOverlays.getHeight();
     }
 
 
@@ -279,7 +336,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     protected void updateMap() {
         mMapViewOverlays.buffer();
-        mMapViewOverlays.postInvalidate();
+        mMapViewOverlays.requestRedraw();
     }
 
 
@@ -509,6 +566,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
         float[] geoPoints = getNewGeometry(mLayer.getGeometryType(), mTolerancePX, mMap);
         mSelectedItem = new DrawItem(DrawItem.TYPE_VERTEX, geoPoints);
+        mSelectedItem.setEdgesType(DrawItem.getEdgesType(mLayer.getGeometryType()));
         mDrawItems.add(mSelectedItem);
 
         update();
@@ -593,6 +651,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
             case GeoConstants.GTPolygon:
                 float[] geoPoints = getNewGeometry(geometryType, mTolerancePX, mMap);
                 mSelectedItem = new DrawItem(DrawItem.TYPE_VERTEX, geoPoints);
+                mSelectedItem.setEdgesType(DrawItem.getEdgesType(geometryType));
                 mDrawItems.add(mSelectedItem);
                 break;
         }
@@ -671,9 +730,11 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
         mFeature = new Feature();
         mFeature.setGeometry(geometry);
+        invalidateDrawItems();
 
         mDrawItems.clear();
         mSelectedItem = new DrawItem();
+        mSelectedItem.setEdgesType(DrawItem.getEdgesType(mLayer.getGeometryType()));
         mDrawItems.add(mSelectedItem);
     }
 
@@ -770,6 +831,12 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         }
 
         mFeature.setGeometry(geometry);
+
+        // the geometry is made from the draw items, so they are not projected again, the moved
+        // vertex is already in their screen coordinates
+        invalidateDrawItems();
+        if (null != geometry)
+            setDrawItemsValid(geometry);
     }
 
 
@@ -823,13 +890,19 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     @Override
     public void draw(Canvas canvas, MapDrawable mapDrawable) {
+        mItemsPicture.invalidate();
+
         if (mOverlayPoint.isVisible())
             drawOverlayItem(canvas, mOverlayPoint);
 
         if (mMode == MODE_CHANGE || mFeature == null)
             return;
 
-        fillDrawItems(mFeature.getGeometry());
+        GeoGeometry geometry = mFeature.getGeometry();
+        if (!isDrawItemsValid(geometry)) {
+            fillDrawItems(geometry);
+            setDrawItemsValid(geometry);
+        }
 
         for (DrawItem drawItem : mDrawItems) {
             boolean isSelected = mSelectedItem == drawItem;
@@ -847,20 +920,21 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         if (mOverlayPoint.isVisible())
             drawOnPanning(canvas, currentMouseOffset, mOverlayPoint);
 
-        List<DrawItem> drawItems = mDrawItems;
-        for (DrawItem drawItem : drawItems) {
-            boolean isSelected = mSelectedItem == drawItem;
-
-            if (mMode != MODE_CHANGE && mMode != MODE_EDIT_BY_TOUCH) {
-                drawItem = drawItem.pan(currentMouseOffset);
+        if (mMode != MODE_CHANGE && mMode != MODE_EDIT_BY_TOUCH && recordItems(canvas)) {
+            mItemsPicture.drawOnPanning(canvas, currentMouseOffset);
+            drawCross(canvas);
+            return;
+        }
 
-                if (isSelected) {
-                    drawItem.setSelectedRing(mSelectedItem.getSelectedRingId());
-                    drawItem.setSelectedPoint(mSelectedItem.getSelectedPointId());
-                }
-            }
+        Matrix transform = null;
+        if (mMode != MODE_CHANGE && mMode != MODE_EDIT_BY_TOUCH) {
+            mTransform.setTranslate(-currentMouseOffset.x, -currentMouseOffset.y);
+            transform = mTransform;
+        }
 
-            drawItem(drawItem, canvas, isSelected);
+        for (int i = 0; i < mDrawItems.size(); i++) {
+            DrawItem drawItem = mDrawItems.get(i);
+            drawItem(drawItem, canvas, mSelectedItem == drawItem, transform);
         }
 
         drawCross(canvas);
@@ -875,20 +949,34 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         if (mOverlayPoint.isVisible())
             drawOnZooming(canvas, currentFocusLocation, scale, mOverlayPoint, false);
 
-        List<DrawItem> drawItems = mDrawItems;
-        for (DrawItem drawItem : drawItems) {
-            boolean isSelected = mSelectedItem == drawItem;
-            drawItem = drawItem.zoom(currentFocusLocation, scale);
+        // the picture would scale the stroke widths and the vertex markers too
+        mTransform.setScale(scale, scale, -currentFocusLocation.x, -currentFocusLocation.y);
+        for (int i = 0; i < mDrawItems.size(); i++) {
+            DrawItem drawItem = mDrawItems.get(i);
+            drawItem(drawItem, canvas, mSelectedItem == drawItem, mTransform);
+        }
 
-            if (isSelected) {
-                drawItem.setSelectedRing(mSelectedItem.getSelectedRingId());
-                drawItem.setSelectedPoint(mSelectedItem.getSelectedPointId());
-            }
+        drawCross(canvas);
+    }
 
-            drawItem(drawItem, canvas, isSelected);
+
+    /**
+     * Records the draw items in the current map extent once per pan gesture
+     *
+     * @return false if the items can not be replayed on the canvas
+     */
+    protected boolean recordItems(Canvas canvas) {
+        if (mFeature == null || mFeature.getGeometry() == null || !OverlayPicture.isSupported(canvas))
+            return false;
+
+        if (!mItemsPicture.isRecorded()) {
+            Canvas recordingCanvas = mItemsPicture.beginRecording(canvas.getWidth(), canvas.getHeight());
+            for (DrawItem drawItem : mDrawItems)
+                drawItem(drawItem, recordingCanvas, mSelectedItem == drawItem);
+            mItemsPicture.endRecording();
         }
 
-        drawCross(canvas);
+        return true;
     }
 
 
@@ -958,6 +1046,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     protected void fillDrawPolygon(GeoPolygon polygon) {
         mSelectedItem = new DrawItem();
+        mSelectedItem.setEdgesType(DrawItem.EDGES_RING);
 
         fillDrawRing(polygon.getOuterRing());
         for (int i = 0; i < polygon.getInnerRingCount(); i++)
@@ -973,16 +1062,8 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         float[] points = mapToScreen(geoPoints);
 
         mSelectedItem = new DrawItem(DrawItem.TYPE_VERTEX, points);
+        mSelectedItem.setEdgesType(DrawItem.EDGES_LINE);
         mDrawItems.add(mSelectedItem);
-
-        if (points.length < 2)
-            return;
-
-        float[] edgePoints = new float[points.length - 2];
-        for (int i = 0; i < points.length - 2; i++)
-            edgePoints[i] = (points[i] + points[i + 2]) * .5f;
-
-        mSelectedItem.addEdges(edgePoints);
     }
 
 
@@ -990,19 +1071,11 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         GeoPoint[] geoPoints =
                 geoLinearRing.getPoints().toArray(new GeoPoint[geoLinearRing.getPointCount()]);
         float[] points = mapToScreen(geoPoints);
-        float[] edgePoints = new float[points.length];
-
-        if (points.length == 0 || edgePoints.length < 2)
+        if (points.length < 2)
             return;
 
-        for (int i = 0; i < points.length - 2; i++)
-            edgePoints[i] = (points[i] + points[i + 2]) * .5f;
-
-        edgePoints[edgePoints.length - 2] = (points[0] + points[points.length - 2]) * .5f;
-        edgePoints[edgePoints.length - 1] = (points[1] + points[points.length - 1]) * .5f;
-
+        // the edges are added by the draw item of the polygon
         mSelectedItem.addVertices(points);
-        mSelectedItem.addEdges(edgePoints);
     }
 
 
@@ -1023,18 +1096,26 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
 
     protected void drawItem(DrawItem drawItem, Canvas canvas, boolean isSelected) {
+        drawItem(drawItem, canvas, isSelected, null);
+    }
+
+
+    /**
+     * @param transform the pan or zoom transform of the screen coordinates, null to draw them as is
+     */
+    protected void drawItem(DrawItem drawItem, Canvas canvas, boolean isSelected, Matrix transform) {
         isSelected = isSelected && mMode == MODE_EDIT;
         switch (mFeature.getGeometry().getType()) {
             case GeoConstants.GTPoint:
             case GeoConstants.GTMultiPoint:
-                drawItem.drawPoints(canvas, isSelected);
+                drawItem.drawPoints(canvas, isSelected, transform);
                 break;
             case GeoConstants.GTLineString:
             case GeoConstants.GTMultiLineString:
             case GeoConstants.GTPolygon:
             case GeoConstants.GTMultiPolygon:
                 boolean closed = mFeature.getGeometry().getType() == GeoConstants.GTPolygon || mFeature.getGeometry().getType() == GeoConstants.GTMultiPolygon;
-                drawItem.drawLines(canvas, isSelected, mMode == MODE_EDIT || mMode == MODE_CHANGE, mMode == MODE_EDIT, closed);
+                drawItem.drawLines(canvas, isSelected, mMode == MODE_EDIT || mMode == MODE_CHANGE, mMode == MODE_EDIT, closed, transform);
                 break;
             default:
                 break;
@@ -1129,26 +1210,19 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         if (null == mapEnv)
             return false;
 
-        List<Long> items = mLayer.query(mapEnv);
-        if (items.isEmpty())
-            return false;
-
         long previousFeatureId = Constants.NOT_FOUND;
         if (null != mFeature)
             previousFeatureId = mFeature.getId();
 
-        for (int i = 0; i < items.size(); i++) {    // FIXME hack for bad RTree cache
-            long featureId = items.get(i);
-            GeoGeometry geometry = mLayer.getGeometryForId(featureId);
-            if (geometry != null && previousFeatureId != featureId) {
-                mFeature = new Feature(featureId, mLayer.getFields());
-                mFeature.setGeometry(mLayer.getGeometryForId(featureId));
-            }
-        }
-
-        if (mFeature == null || previousFeatureId == mFeature.getId())
+        // the nearest feature, the repeated tap selects the next one under it
+        mPicker.pick(mLayer, mapEnv, screenEnv);
+        FeaturePicker.Candidate candidate = mPicker.next(previousFeatureId);
+        if (candidate == null)
             return false;
 
+        mFeature = new Feature(candidate.getId(), mLayer.getFields());
+        mFeature.setGeometry(candidate.getGeometry());
+
         if (mMode == MODE_HIGHLIGHT) {
             mMapViewOverlays.invalidate();
             return false;
@@ -1189,6 +1263,9 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
 
     @Override
     public void panMoveTo(MotionEvent e) {
+        if (mMode == MODE_CHANGE || mMode == MODE_EDIT_BY_TOUCH)
+            mItemsPicture.invalidate();
+
         if (mMode == MODE_CHANGE) {
             mSelectedItem.setSelectedPointCoordinates(
                     e.getX() + mTempPointOffset.x, e.getY() + mTempPointOffset.y);
@@ -1283,7 +1360,7 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
         public void onReceive(Context context, Intent intent) {
             GeoGeometry geometry = (GeoGeometry) intent.getSerializableExtra(ConstantsUI.KEY_GEOMETRY);
             setGeometryFromWalkEdit(geometry);
-            mMapViewOverlays.postInvalidate();
+            mMapViewOverlays.requestRedraw();
         }
     }
 
@@ -1324,5 +1401,8 @@ public class EditLayerOverlay extends Overlay implements MapViewEventListener {
                 mFeature.setGeometry(multiPolygon);
                 break;
         }
+
+        // the multi geometries are changed in place
+        invalidateDrawItems();
     }
 }
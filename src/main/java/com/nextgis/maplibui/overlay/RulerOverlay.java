@@ -24,6 +24,7 @@ package com.nextgis.maplibui.overlay;
 import android.content.Context;
 import android.graphics.Canvas;
 import android.graphics.DashPathEffect;
+import android.graphics.Matrix;
 import android.graphics.Paint;
 import android.graphics.Path;
 import android.graphics.PointF;
@@ -40,6 +41,7 @@ import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.api.DrawItem;
 import com.nextgis.maplibui.api.MapViewEventListener;
 import com.nextgis.maplibui.api.Overlay;
+import com.nextgis.maplibui.api.OverlayPicture;
 import com.nextgis.maplibui.mapui.MapViewOverlays;
 import com.nextgis.maplibui.util.ConstantsUI;
 import com.nextgis.maplibui.util.ControlHelper;
@@ -54,6 +56,10 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
     protected boolean mMeasuring, mIsMoving;
     protected Paint mPaint;
     protected DrawItem mRulerItem;
+    protected OverlayPicture mRulerPicture;
+    protected Matrix mTransform;
+    protected Path mClosingPath;
+    protected float[] mClosingLine;
     protected GeoLineString mRulerString;
     protected GeoPolygon mRulerPolygon;
     protected OnRulerChanged mListener;
@@ -74,6 +80,10 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         mPaint.setAlpha(64);
 
         mTolerancePX = context.getResources().getDisplayMetrics().density * ConstantsUI.TOLERANCE_DP;
+        mRulerPicture = new OverlayPicture();
+        mTransform = new Matrix();
+        mClosingPath = new Path();
+        mClosingLine = new float[4];
     }
 
     public void startMeasuring(OnRulerChanged listener) {
@@ -97,7 +107,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
         mRulerPolygon = null;
         mListener = null;
         mMapViewOverlays.removeListener(this);
-        mMapViewOverlays.postInvalidate();
+        mMapViewOverlays.requestRedraw();
     }
 
     public boolean isMeasuring() {
@@ -119,6 +129,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
     }
 
     protected void fillDrawItem() {
+        mRulerPicture.invalidate();
         GeoPoint[] geoPoints = mRulerString.getPoints().toArray(new GeoPoint[mRulerString.getPointCount()]);
         if (geoPoints.length == 0)
             geoPoints = null;
@@ -158,6 +169,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
     @Override
     public void draw(Canvas canvas, MapDrawable mapDrawable) {
+        mRulerPicture.invalidate();
         if (isMeasuring()) {
             fillDrawItem();
             mRulerItem.drawLines(canvas, true, true, false, false);
@@ -168,32 +180,65 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
     @Override
     public void drawOnPanning(Canvas canvas, PointF currentMouseOffset) {
         if (isMeasuring()) {
-            DrawItem draw = mRulerItem;
+            if (!mIsMoving && recordRuler(canvas)) {
+                mRulerPicture.drawOnPanning(canvas, currentMouseOffset);
+                return;
+            }
 
-            if (!mIsMoving)
-                draw = mRulerItem.pan(currentMouseOffset);
+            Matrix transform = null;
+            if (!mIsMoving) {
+                mTransform.setTranslate(-currentMouseOffset.x, -currentMouseOffset.y);
+                transform = mTransform;
+            }
 
-            draw.drawLines(canvas, true, true, false, false);
-            drawClosingLine(canvas, draw);
+            mRulerItem.drawLines(canvas, true, true, false, false, transform);
+            drawClosingLine(canvas, mRulerItem, transform);
         }
     }
 
     @Override
     public void drawOnZooming(Canvas canvas, PointF currentFocusLocation, float scale) {
         if (isMeasuring()) {
-            DrawItem drawItem = mRulerItem.zoom(currentFocusLocation, scale);
-            drawItem.drawLines(canvas, true, true, false, false);
-            drawClosingLine(canvas, drawItem);
+            // the picture would scale the line widths too
+            mTransform.setScale(scale, scale, -currentFocusLocation.x, -currentFocusLocation.y);
+            mRulerItem.drawLines(canvas, true, true, false, false, mTransform);
+            drawClosingLine(canvas, mRulerItem, mTransform);
+        }
+    }
+
+    protected boolean recordRuler(Canvas canvas) {
+        if (!OverlayPicture.isSupported(canvas))
+            return false;
+
+        if (!mRulerPicture.isRecorded()) {
+            Canvas recordingCanvas = mRulerPicture.beginRecording(canvas.getWidth(), canvas.getHeight());
+            mRulerItem.drawLines(recordingCanvas, true, true, false, false);
+            drawClosingLine(recordingCanvas, mRulerItem);
+            mRulerPicture.endRecording();
         }
+
+        return true;
     }
 
     protected void drawClosingLine(Canvas canvas, DrawItem drawItem) {
-        float[] points = drawItem.getSelectedRing();
-        if (points != null && points.length >= 6) {
-            Path path = new Path();
-            path.moveTo(points[0], points[1]);
-            path.lineTo(points[points.length - 2], points[points.length - 1]);
-            canvas.drawPath(path, mPaint);
+        drawClosingLine(canvas, drawItem, null);
+    }
+
+    protected void drawClosingLine(Canvas canvas, DrawItem drawItem, Matrix transform) {
+        int ring = drawItem.getSelectedRingId();
+        int size = drawItem.getRingSize(ring);
+        if (size >= 6) {
+            mClosingLine[0] = drawItem.getCoordinate(ring, 0);
+            mClosingLine[1] = drawItem.getCoordinate(ring, 1);
+            mClosingLine[2] = drawItem.getCoordinate(ring, size - 2);
+            mClosingLine[3] = drawItem.getCoordinate(ring, size - 1);
+            if (transform != null)
+                transform.mapPoints(mClosingLine);
+
+            mClosingPath.rewind();
+            mClosingPath.moveTo(mClosingLine[0], mClosingLine[1]);
+            mClosingPath.lineTo(mClosingLine[2], mClosingLine[3]);
+            canvas.drawPath(mClosingPath, mPaint);
         }
     }
 
@@ -238,7 +283,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
             if (mRulerItem.intersectsVertices(screenEnv)) {
                 mMapViewOverlays.buffer();
-                mMapViewOverlays.postInvalidate();
+                mMapViewOverlays.requestRedraw();
                 return;
             }
 
@@ -251,7 +296,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
 
             fillGeometry();
             mMapViewOverlays.buffer();
-            mMapViewOverlays.postInvalidate();
+            mMapViewOverlays.requestRedraw();
         }
     }
 
@@ -284,7 +329,7 @@ public class RulerOverlay extends Overlay implements MapViewEventListener {
             mIsMoving = false;
             fillGeometry();
             mMapViewOverlays.buffer();
-            mMapViewOverlays.postInvalidate();
+            mMapViewOverlays.requestRedraw();
         }
     }
 
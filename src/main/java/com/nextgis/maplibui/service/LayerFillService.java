@@ -120,6 +120,8 @@ public class LayerFillService extends Service implements IProgressor {
     public static final String KEY_LAYER_GROUP_ID = "layer_group_id";
     public static final String KEY_TMS_TYPE   = "tms_type";
     public static final String KEY_TMS_CACHE   = "tms_cache";
+    public static final String KEY_TMS_PACKAGE = "tms_package";
+    public static final String KEY_TMS_SINGLE_FILE = "tms_single_file";
     public static final String NGFP_META = "ngfp_meta.json";
     protected final static String NGFP_FILE_META = "meta.json";
     protected final static String NGFP_FILE_DATA = "data.geojson";
@@ -623,14 +625,20 @@ public class LayerFillService extends Service implements IProgressor {
 
     private class LocalTMSFillTask extends LayerFillTask{
         boolean mIsNgrc;
+        boolean mIsPackage;
+        boolean mIsSingleFile;
 
         LocalTMSFillTask(Bundle bundle) {
             super(bundle);
             mLayer = new LocalTMSLayerUI(mLayerGroup.getContext(), mLayerPath);
-            mIsNgrc = !bundle.containsKey(KEY_TMS_TYPE);
+            mIsPackage = bundle.getBoolean(KEY_TMS_PACKAGE, false);
+            mIsNgrc = !mIsPackage && !bundle.containsKey(KEY_TMS_TYPE);
+            mIsSingleFile = bundle.getBoolean(KEY_TMS_SINGLE_FILE, false);
             ((LocalTMSLayerUI) mLayer).setCacheSizeMultiply(bundle.getInt(KEY_TMS_CACHE));
 
-            if (!mIsNgrc) { // it's zip
+            if (mIsPackage) // tms type is read from the package
+                initLayer();
+            else if (!mIsNgrc) { // it's zip
                 ((LocalTMSLayerUI) mLayer).setTMSType(bundle.getInt(KEY_TMS_TYPE));
                 initLayer();
             } else
@@ -644,8 +652,15 @@ public class LayerFillService extends Service implements IProgressor {
                 if (null == tmsLayer)
                     return false;
 
-                if (mIsNgrc)
+                if (mIsPackage)
+                    ((LocalTMSLayerUI) tmsLayer).fillFromPackage(mUri, progressor);
+                else if (mIsNgrc) {
                     tmsLayer.fillFromNgrc(mUri, progressor);
+                    // ngrc is unpacked by the layer, pack the tile files after it
+                    if (mIsSingleFile)
+                        ((LocalTMSLayerUI) tmsLayer).compactToPackage(progressor);
+                } else if (mIsSingleFile)
+                    ((LocalTMSLayerUI) tmsLayer).fillPackageFromZip(mUri, progressor);
                 else
                     tmsLayer.fillFromZip(mUri, progressor);
             } catch (IOException | NGException | RuntimeException e) {
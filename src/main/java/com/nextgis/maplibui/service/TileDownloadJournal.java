@@ -0,0 +1,189 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+/**
+ * Small on-disk journal of the tile download tasks. Each task is stored with its checkpoint
+ * (zoom index and tile index inside the zoom), so a killed or restarted service continues
+ * from the last completed batch instead of enumerating the whole extent again.
+ */
+public class TileDownloadJournal
+{
+    protected static final String JSON_TASKS_KEY = "tasks";
+    protected static final String TEMP_EXT       = ".tmp";
+
+    // do not rewrite the journal file more often than this
+    protected static final long CHECKPOINT_INTERVAL = 2000;
+
+    protected final File                                        mFile;
+    protected final Map<Long, TileDownloadService.DownloadTask> mTasks;
+    protected       long                                        mLastSave;
+
+
+    public TileDownloadJournal(File file)
+    {
+        mFile = file;
+        mTasks = new LinkedHashMap<>();
+    }
+
+
+    /**
+     * Reads the tasks from the file. The tasks, which are in the journal already, are kept as
+     * is, they can be running and their checkpoints are newer than the file.
+     */
+    public synchronized List<TileDownloadService.DownloadTask> load()
+    {
+        Map<Long, TileDownloadService.DownloadTask> liveTasks = new LinkedHashMap<>(mTasks);
+        mTasks.clear();
+
+        if (mFile.exists()) {
+            try {
+                JSONObject json = new JSONObject(FileUtil.readFromFile(mFile));
+                JSONArray tasks = json.getJSONArray(JSON_TASKS_KEY);
+                for (int i = 0; i < tasks.length(); i++) {
+                    TileDownloadService.DownloadTask task =
+                            TileDownloadService.DownloadTask.fromJSON(tasks.getJSONObject(i));
+                    TileDownloadService.DownloadTask liveTask = liveTasks.get(task.getId());
+                    mTasks.put(task.getId(), null != liveTask ? liveTask : task);
+                }
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+                // broken journal is useless, start from scratch
+                mTasks.clear();
+                //noinspection ResultOfMethodCallIgnored
+                mFile.delete();
+            }
+        }
+        mTasks.putAll(liveTasks);
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadJournal.load(), tasks: " + mTasks.size());
+        }
+
+        return new ArrayList<>(mTasks.values());
+    }
+
+
+    public synchronized long getNextId()
+    {
+        long id = 0;
+        for (Long key : mTasks.keySet()) {
+            if (key >= id) {
+                id = key + 1;
+            }
+        }
+        return id;
+    }
+
+
+    public synchronized void put(TileDownloadService.DownloadTask task)
+    {
+        mTasks.put(task.getId(), task);
+        save();
+    }
+
+
+    public synchronized void checkpoint(TileDownloadService.DownloadTask task)
+    {
+        if (!mTasks.containsKey(task.getId())) {
+            return;
+        }
+
+        if (System.currentTimeMillis() - mLastSave > CHECKPOINT_INTERVAL) {
+            save();
+        }
+    }
+
+
+    public synchronized void remove(TileDownloadService.DownloadTask task)
+    {
+        if (null != mTasks.remove(task.getId())) {
+            save();
+        }
+    }
+
+
+    public synchronized void clear()
+    {
+        mTasks.clear();
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+
+    public synchronized boolean isEmpty()
+    {
+        return mTasks.isEmpty();
+    }
+
+
+    protected void save()
+    {
+        mLastSave = System.currentTimeMillis();
+
+        if (mTasks.isEmpty()) {
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+            return;
+        }
+
+        try {
+            JSONArray tasks = new JSONArray();
+            for (TileDownloadService.DownloadTask task : mTasks.values()) {
+                tasks.put(task.toJSON());
+            }
+            JSONObject json = new JSONObject();
+            json.put(JSON_TASKS_KEY, tasks);
+
+            // write to the temp file and rename it, so a kill in the middle of writing
+            // keeps the previous checkpoint
+            File temp = new File(mFile.getParentFile(), mFile.getName() + TEMP_EXT);
+            FileUtil.writeToFile(temp, json.toString());
+            if (!temp.renameTo(mFile)) {
+                FileUtil.writeToFile(mFile, json.toString());
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+            }
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+}
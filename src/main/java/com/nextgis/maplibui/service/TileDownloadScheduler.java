@@ -0,0 +1,228 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.service;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * Per-host download scheduler. The number of simultaneous requests to the host is adapted
+ * AIMD-style: it grows by one after a window of successful requests and is halved after an
+ * error or when the latency becomes much worse than the best seen one. A series of errors
+ * pauses the host with the exponential backoff, so a rate-limited server gets time to recover.
+ */
+public class TileDownloadScheduler
+{
+    public static final int MAX_CONNECTIONS = 8;
+    public static final int MAX_ATTEMPTS    = 5;
+    public static final int FAILING_ERRORS  = 20;
+
+    protected static final int   MIN_CONNECTIONS   = 1;
+    protected static final int   START_CONNECTIONS = 2;
+    protected static final float EWMA_ALPHA        = 0.2f;
+    protected static final float SLOW_FACTOR       = 3;
+    protected static final long  MIN_SLOW_LATENCY  = 300;
+    protected static final long  DECREASE_INTERVAL = 1000;
+    protected static final int   PAUSE_ERRORS      = 3;
+    protected static final long  BACKOFF_BASE      = 500;
+    protected static final long  BACKOFF_MAX       = 60000;
+
+    protected static final ConcurrentHashMap<String, TileDownloadScheduler> mSchedulers =
+            new ConcurrentHashMap<>();
+
+    protected final String mHost;
+    protected final Random mRandom = new Random();
+
+    protected int   mLimit = START_CONNECTIONS;
+    protected int   mInFlight;
+    protected int   mSuccesses;
+    protected int   mConsecutiveErrors;
+    protected float mLatency;
+    protected float mMinLatency;
+    protected float mErrorRate;
+    protected long  mLastDecrease;
+    protected long  mPausedUntil;
+
+
+    protected TileDownloadScheduler(String host)
+    {
+        mHost = host;
+    }
+
+
+    /**
+     * @return the shared scheduler of the host, the state is kept between the tasks
+     */
+    public static TileDownloadScheduler getScheduler(String host)
+    {
+        TileDownloadScheduler scheduler = mSchedulers.get(host);
+        if (null == scheduler) {
+            scheduler = new TileDownloadScheduler(host);
+            TileDownloadScheduler previous = mSchedulers.putIfAbsent(host, scheduler);
+            if (null != previous) {
+                scheduler = previous;
+            }
+        }
+        return scheduler;
+    }
+
+
+    /**
+     * Blocks until the request to the host is allowed
+     */
+    public synchronized void acquire()
+            throws InterruptedException
+    {
+        while (true) {
+            long pause = mPausedUntil - System.currentTimeMillis();
+            if (pause <= 0 && mInFlight < mLimit) {
+                break;
+            }
+            wait(pause > 0 ? pause : 0);
+        }
+        mInFlight++;
+    }
+
+
+    /**
+     * Finishes the request, which was allowed by {@link #acquire()}
+     *
+     * @param latency
+     *         the request time in milliseconds
+     */
+    public synchronized void release(
+            boolean success,
+            long latency)
+    {
+        mInFlight--;
+        long now = System.currentTimeMillis();
+
+        if (success) {
+            mConsecutiveErrors = 0;
+            mErrorRate *= 1 - EWMA_ALPHA;
+            mLatency = mLatency == 0 ? latency : mLatency + EWMA_ALPHA * (latency - mLatency);
+            if (mMinLatency == 0 || latency < mMinLatency) {
+                mMinLatency = latency;
+            }
+
+            if (mLatency > MIN_SLOW_LATENCY && mLatency > mMinLatency * SLOW_FACTOR) {
+                // the server or the channel is overloaded
+                decrease(now);
+            } else if (++mSuccesses >= mLimit) {
+                mSuccesses = 0;
+                if (mLimit < MAX_CONNECTIONS) {
+                    mLimit++;
+                }
+            }
+        } else {
+            mConsecutiveErrors++;
+            mErrorRate += EWMA_ALPHA * (1 - mErrorRate);
+            decrease(now);
+
+            if (mConsecutiveErrors >= PAUSE_ERRORS) {
+                mPausedUntil = now + getBackoffDelay(mConsecutiveErrors - PAUSE_ERRORS);
+            }
+        }
+
+        notifyAll();
+    }
+
+
+    /**
+     * Finishes the request, which was answered that there is no such tile. The host is alive,
+     * but the fast empty answer says nothing about the load of the host.
+     */
+    public synchronized void releaseMissing()
+    {
+        mInFlight--;
+        mConsecutiveErrors = 0;
+        notifyAll();
+    }
+
+
+    protected void decrease(long now)
+    {
+        // one decrease per interval, the requests in flight report the same congestion
+        if (now - mLastDecrease < DECREASE_INTERVAL) {
+            return;
+        }
+
+        mLastDecrease = now;
+        mSuccesses = 0;
+        mLimit = Math.max(MIN_CONNECTIONS, mLimit / 2);
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadScheduler: " + mHost + " limit " + mLimit
+                    + ", latency " + (int) mLatency + " ms, error rate " + mErrorRate);
+        }
+    }
+
+
+    /**
+     * @return the exponential delay with jitter for the retry attempt, starting from 0
+     */
+    public long getBackoffDelay(int attempt)
+    {
+        long delay = BACKOFF_BASE << Math.min(attempt, 16);
+        if (delay > BACKOFF_MAX) {
+            delay = BACKOFF_MAX;
+        }
+        synchronized (mRandom) {
+            return delay / 2 + (long) (mRandom.nextFloat() * delay / 2);
+        }
+    }
+
+
+    /**
+     * @return true if the host does not answer for a long time, the task should be stopped and
+     * resumed later
+     */
+    public synchronized boolean isFailing()
+    {
+        return mConsecutiveErrors >= FAILING_ERRORS;
+    }
+
+
+    public synchronized int getLimit()
+    {
+        return mLimit;
+    }
+
+
+    public synchronized float getLatency()
+    {
+        return mLatency;
+    }
+
+
+    public synchronized float getErrorRate()
+    {
+        return mErrorRate;
+    }
+}
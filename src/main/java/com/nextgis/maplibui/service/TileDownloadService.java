@@ -28,10 +28,12 @@ import android.app.PendingIntent;
 import android.app.Service;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.os.Build;
+import android.net.Uri;
 import android.os.IBinder;
+import android.support.annotation.NonNull;
 import android.support.v4.app.NotificationCompat;
 import android.text.TextUtils;
+import android.text.format.Formatter;
 import android.util.Log;
 
 import com.nextgis.maplib.api.ILayer;
@@ -41,23 +43,35 @@ import com.nextgis.maplib.map.MapBase;
 import com.nextgis.maplib.map.RemoteTMSLayer;
 import com.nextgis.maplib.util.Constants;
 import com.nextgis.maplib.util.GeoConstants;
-import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 import com.nextgis.maplibui.util.NotificationHelper;
-
+import com.nextgis.maplibui.util.TileCacheUtil;
+import com.nextgis.maplibui.util.TileHttpClient;
+import com.nextgis.maplibui.util.TilePackage;
+import com.nextgis.maplibui.util.TilePins;
+import com.nextgis.maplibui.util.TilePresenceIndex;
+import com.nextgis.maplibui.util.TileRangeCursor;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.LinkedList;
 import java.util.List;
+import java.util.PriorityQueue;
 import java.util.Queue;
+import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.RejectedExecutionHandler;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicLong;
 
-import static com.nextgis.maplib.util.Constants.DRAWING_SEPARATE_THREADS;
 import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
 import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
 
@@ -68,29 +82,46 @@ import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
 public class TileDownloadService
         extends Service
 {
-    protected static final int TILE_DOWNLOAD_NOTIFICATION_ID = 7;
+    protected static final int TILE_DOWNLOAD_NOTIFICATION_ID        = 7;
+    protected static final int TILE_DOWNLOAD_PAUSED_NOTIFICATION_ID = 8;
 
     public static final String KEY_MINX        = "env_minx";
     public static final String KEY_MAXX        = "env_maxx";
     public static final String KEY_MINY        = "env_miny";
     public static final String KEY_MAXY        = "env_maxy";
     public static final String KEY_PATH        = "path";
+    public static final String KEY_PATH_LIST   = "path_list";
     public static final String KEY_ZOOM_FROM   = "zoom_from";
     public static final String KEY_ZOOM_TO     = "zoom_to";
     public static final String KEY_ZOOM_LIST   = "zoom_list";
+    public static final String KEY_REFRESH     = "refresh";
+    public static final String KEY_EXPORT_PATH = "export_path";
     public static final String ACTION_STOP     = "tile_download_stop";
     public static final String ACTION_ADD_TASK = "add_tile_download_task";
+    public static final String ACTION_RESUME   = "tile_download_resume";
+
+    protected static final String JOURNAL_FILE = "tile_download.journal";
+
+    // tiles are submitted to the pool by batches, the checkpoint is stored after each batch
+    protected static final int  DOWNLOAD_BATCH_SIZE = 256;
+    protected static final long RETRY_SLEEP_STEP    = 200;
 
     protected NotificationManager        mNotifyManager;
     protected NotificationCompat.Builder mBuilder;
 
-    protected Queue<DownloadTask> mQueue;
-    protected Thread              mDownloadThread;
+    protected          Queue<DownloadTask> mQueue;
+    protected          Thread              mDownloadThread;
+    protected volatile DownloadTask        mCurrentTask;
+    protected          TileDownloadJournal mJournal;
 
     protected volatile boolean mIsDownloadError = false;
 
     // Thread.currentThread().isInterrupted() is not work, so we use mIsDownloadInterrupted.
     protected volatile boolean mIsDownloadInterrupted = false;
+    // the user canceled the download, the task is not resumed
+    protected volatile boolean mIsDownloadCanceled = false;
+    // a task was stopped, because the host does not answer, the task is kept in the journal
+    protected volatile boolean mHasPausedTasks = false;
 
     @Override
     public void onCreate()
@@ -121,6 +152,65 @@ public class TileDownloadService
                         getString(R.string.cancel), stopService);
 
         mQueue = new ConcurrentLinkedQueue<>();
+
+        // resume the tasks which were not finished before the service was killed
+        mJournal = new TileDownloadJournal(new File(getFilesDir(), JOURNAL_FILE));
+        resumeTasks();
+    }
+
+
+    /**
+     * Starts the tasks of the journal, which are not in the queue
+     */
+    protected void resumeTasks()
+    {
+        mNotifyManager.cancel(TILE_DOWNLOAD_PAUSED_NOTIFICATION_ID);
+
+        List<DownloadTask> tasks = mJournal.load();
+        for (DownloadTask task : tasks) {
+            DownloadTask current = mCurrentTask;
+            boolean isQueued = null != current && current.mId == task.mId;
+            for (DownloadTask queued : mQueue) {
+                if (queued.mId == task.mId) {
+                    isQueued = true;
+                    break;
+                }
+            }
+            if (isQueued) {
+                continue;
+            }
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileDownloadService, resume task for "
+                        + task.getLayerPathNames() + " from zoom index " + task.getZoomIndex()
+                        + ", tile index " + task.getTileIndex());
+            }
+            startTask(task);
+        }
+    }
+
+
+    /**
+     * Tells the user, that the download is stopped, because the server does not answer. The
+     * notification action resumes the tasks from the journal.
+     */
+    protected void notifyDownloadPaused()
+    {
+        Intent intentResume = getStopIntent();
+        intentResume.setAction(ACTION_RESUME);
+        PendingIntent resumeService =
+                PendingIntent.getService(this, 0, intentResume, PendingIntent.FLAG_UPDATE_CURRENT);
+
+        NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
+        builder.setSmallIcon(R.drawable.ic_notification_download)
+                .setContentTitle(getString(R.string.download_tiles))
+                .setContentText(getString(R.string.download_tiles_paused))
+                .setWhen(System.currentTimeMillis())
+                .setAutoCancel(true)
+                .setContentIntent(resumeService)
+                .addAction(android.R.drawable.ic_menu_rotate, getString(R.string.retry),
+                        resumeService);
+        mNotifyManager.notify(TILE_DOWNLOAD_PAUSED_NOTIFICATION_ID, builder.build());
     }
 
     // For overriding in subclasses
@@ -166,6 +256,15 @@ public class TileDownloadService
                         cancelDownload();
                         stopSelf();
                         break;
+
+                    case ACTION_RESUME:
+                        if (Constants.DEBUG_MODE) {
+                            Log.d(
+                                    Constants.TAG,
+                                    "TileDownloadService.onStartCommand(), ACTION_RESUME");
+                        }
+                        resumeTasks();
+                        break;
                 }
             }
         }
@@ -177,20 +276,30 @@ public class TileDownloadService
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Add task to download queue");
         }
-        String layerPathName = intent.getStringExtra(KEY_PATH);
+        // several layers are downloaded by one job with the same tile plan
+        List<String> layerPathNames;
+        if (intent.hasExtra(KEY_PATH_LIST)) {
+            layerPathNames = intent.getStringArrayListExtra(KEY_PATH_LIST);
+        } else {
+            layerPathNames = new ArrayList<>(1);
+            layerPathNames.add(intent.getStringExtra(KEY_PATH));
+        }
         double dfMinX = intent.getDoubleExtra(KEY_MINX, 0);
         double dfMinY = intent.getDoubleExtra(KEY_MINY, 0);
         double dfMaxX = intent.getDoubleExtra(KEY_MAXX, GeoConstants.MERCATOR_MAX);
         double dfMaxY = intent.getDoubleExtra(KEY_MAXY, GeoConstants.MERCATOR_MAX);
         GeoEnvelope env = new GeoEnvelope(dfMinX, dfMaxX, dfMinY, dfMaxY);
+        boolean refresh = intent.getBooleanExtra(KEY_REFRESH, false);
+        // the directory to export the tile packages to after the download
+        String exportPath = intent.getStringExtra(KEY_EXPORT_PATH);
 
         if (intent.hasExtra(KEY_ZOOM_FROM) && intent.hasExtra(KEY_ZOOM_TO)) {
             int zoomFrom = intent.getIntExtra(KEY_ZOOM_FROM, 0);
             int zoomTo = intent.getIntExtra(KEY_ZOOM_TO, 18);
-            addTask(layerPathName, env, zoomFrom, zoomTo);
+            addTask(layerPathNames, env, zoomFrom, zoomTo, refresh, exportPath);
         } else if (intent.hasExtra(KEY_ZOOM_LIST)) {
             List<Integer> zoomList = intent.getIntegerArrayListExtra(KEY_ZOOM_LIST);
-            addTask(layerPathName, env, zoomList);
+            addTask(layerPathNames, env, zoomList, refresh, exportPath);
         }
     }
 
@@ -200,6 +309,9 @@ public class TileDownloadService
         if (Constants.DEBUG_MODE) {
             Log.d(Constants.TAG, "Cancel download queue");
         }
+        // the user cancels the download, nothing to resume
+        mIsDownloadCanceled = true;
+        mJournal.clear();
         clearResources();
     }
 
@@ -235,27 +347,40 @@ public class TileDownloadService
     }
 
     protected void addTask(
-            String layerPathName,
+            List<String> layerPathNames,
             GeoEnvelope env,
             int zoomFrom,
-            int zoomTo)
+            int zoomTo,
+            boolean refresh,
+            String exportPath)
     {
         List<Integer> zoomList = new ArrayList<>(zoomTo - zoomFrom + 1);
         for (int zoom = zoomFrom; zoom < zoomTo + 1; ++zoom) {
             zoomList.add(zoom);
         }
-        addTask(layerPathName, env, zoomList);
+        addTask(layerPathNames, env, zoomList, refresh, exportPath);
     }
 
     protected void addTask(
-            String layerPathName,
+            List<String> layerPathNames,
             GeoEnvelope env,
-            List<Integer> zoomList)
+            List<Integer> zoomList,
+            boolean refresh,
+            String exportPath)
+    {
+        DownloadTask task = new DownloadTask(mJournal.getNextId(), layerPathNames, env, zoomList);
+        task.setRefresh(refresh);
+        task.setExportPath(exportPath);
+        mJournal.put(task);
+        startTask(task);
+    }
+
+
+    protected void startTask(DownloadTask task)
     {
-        DownloadTask task = new DownloadTask(layerPathName, env, zoomList);
         mQueue.add(task);
 
-        if (mDownloadThread == null) {
+        if (mDownloadThread == null || !mDownloadThread.isAlive()) {
             if (Constants.DEBUG_MODE) {
                 Log.d(
                         Constants.TAG,
@@ -269,6 +394,8 @@ public class TileDownloadService
     private Thread createDownloadThread()
     {
         mIsDownloadInterrupted = false;
+        mIsDownloadCanceled = false;
+        mHasPausedTasks = false;
         return new Thread(new Runnable()
         {
             @Override
@@ -286,7 +413,13 @@ public class TileDownloadService
                         Log.d(Constants.TAG, "Tile download queue size " + mQueue.size());
                     }
                     DownloadTask task = mQueue.poll();
+                    mCurrentTask = task;
                     download(task);
+                    mCurrentTask = null;
+                }
+
+                if (mHasPausedTasks && !mIsDownloadInterrupted) {
+                    notifyDownloadPaused();
                 }
 
                 stopSelf();
@@ -300,12 +433,27 @@ public class TileDownloadService
     }
 
     // For overriding in subclasses
-    protected List<TileItem> getTileItems(
+    protected TileRangeCursor getTileCursor(
             GeoEnvelope bounds,
-            double zoom,
+            List<Integer> zoomList,
             RemoteTMSLayer tmsLayer)
     {
-        return MapUtil.getTileItems(bounds, zoom, tmsLayer.getTMSType());
+        return new TileRangeCursor(bounds, zoomList, tmsLayer.getTMSType());
+    }
+
+    /**
+     * Returns the client which downloads tiles over the kept alive connections, or null if the
+     * tiles of the layer should be downloaded by the layer itself.
+     */
+    // For overriding in subclasses
+    protected TileHttpClient getTileHttpClient(RemoteTMSLayer tmsLayer)
+    {
+        String url = tmsLayer.getURL();
+        if (!TileHttpClient.isSupported(url)) {
+            return null;
+        }
+        return new TileHttpClient(
+                tmsLayer.getPath(), url, tmsLayer.getLogin(), tmsLayer.getPassword());
     }
 
     protected void download(DownloadTask task)
@@ -319,196 +467,511 @@ public class TileDownloadService
 
         map.load(); // Reload map for new added layers from the main app process
 
-        ILayer layer = map.getLayerByPathName(task.getLayerPathName());
+        // all layers of the job share one tile plan
+        List<DownloadTarget> targets = new ArrayList<>();
+        for (String layerPathName : task.getLayerPathNames()) {
+            ILayer layer = map.getLayerByPathName(layerPathName);
+            if (null != layer && layer instanceof RemoteTMSLayer) { // process only tms layers
+                targets.add(createTarget((RemoteTMSLayer) layer));
+            } else if (Constants.DEBUG_MODE) {
+                if (layer == null) {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread, layer == null, path: "
+                                    + layerPathName);
+                } else {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread, layer type is not TMS, layer name: "
+                                    + layer.getName() + ", type: " + layer.getType());
+                }
+            }
+        }
 
-        if (null != layer && layer instanceof RemoteTMSLayer) { // process only tms layers
-            String notifyTitle = getString(R.string.download_tiles);
-            mBuilder.setContentTitle(notifyTitle).setWhen(System.currentTimeMillis());
-            mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
+        if (targets.isEmpty()) {
+            // the layers were deleted, nothing to resume
+            mJournal.remove(task);
+            return;
+        }
 
-            final RemoteTMSLayer tmsLayer = (RemoteTMSLayer) layer;
-            final List<TileItem> tiles = new LinkedList<>();
-            int zoomCount = task.getZoomList().size();
+        String notifyTitle = getString(R.string.download_tiles);
+        mBuilder.setContentTitle(notifyTitle).setWhen(System.currentTimeMillis());
+        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
 
-            sendProgressorsValues(zoomCount, 0, tmsLayer.getPath().getName());
+        StringBuilder names = new StringBuilder();
+        for (DownloadTarget target : targets) {
+            if (names.length() > 0) {
+                names.append(", ");
+            }
+            names.append(target.mLayer.getName());
+        }
 
-            for (Integer zoom : task.getZoomList()) {
-                if (mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 01");
-                    }
-                    return;
-                }
+        final boolean refresh = task.isRefresh();
+        List<Integer> zoomList = task.getZoomList();
 
-                tiles.addAll(getTileItems(task.getEnvelope(), zoom, tmsLayer));
+        // the prefetched tiles must stay in the cache with the limited size
+        for (DownloadTarget target : targets) {
+            TilePins.pin(target.mLayer.getPath(), task.getEnvelope(), zoomList,
+                    target.mLayer.getTMSType());
+        }
 
-                mBuilder.setProgress(zoomCount, zoom, false)
-                        .setContentText(getString(R.string.form_tiles_list));
-                mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                sendProgressorsValues(zoomCount, zoom, tmsLayer.getPath().getName());
+        TileRangeCursor cursor =
+                getTileCursor(task.getEnvelope(), zoomList, targets.get(0).mLayer);
+        long total = cursor.getCount();
+        long done = task.getTileIndex();
+        for (int i = 0; i < task.getZoomIndex() && i < zoomList.size(); i++) {
+            done += TileRangeCursor.getTileCount(task.getEnvelope(), zoomList.get(i));
+        }
+        cursor.seek(task.getZoomIndex(), task.getTileIndex());
 
-                if (tiles.size() > Constants.MAX_TILES_COUNT) {
-                    break;
+        for (DownloadTarget target : targets) {
+            sendProgressorsValues(total, done, target.mLayer.getPath().getName());
+        }
+
+        // the schedulers limit the requests to the hosts, the pool only has to be big enough
+        // for the schedulers maximum of every layer, so a slow host does not block the others
+        int threadCount = TileDownloadScheduler.MAX_CONNECTIONS * targets.size();
+        ThreadPoolExecutor threadPool =
+                new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME,
+                        KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+        List<TileRequest> batch = new ArrayList<>(DOWNLOAD_BATCH_SIZE);
+        List<TileRequest> failed = new ArrayList<>();
+        PriorityQueue<TileRequest> retryQueue = new PriorityQueue<>();
+        long startTime = System.currentTimeMillis();
+        long downloaded = 0;
+        long lost = 0;
+        boolean isCompleted = true;
+        boolean hasTiles = true;
+
+        while (hasTiles) {
+            if (mIsDownloadInterrupted) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread is interrupted, point 01");
                 }
+                isCompleted = false;
+                break;
             }
 
-            int threadCount = DRAWING_SEPARATE_THREADS;
-            int coreCount = Runtime.getRuntime().availableProcessors();
-
-            // FIXME: More than 1 pool size causing strange behaviour on 6.0.
-            // FIXME: Check this again after 29.06.2017.
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
-                coreCount = 1;
-            }
-
-            ThreadPoolExecutor threadPool =
-                    new ThreadPoolExecutor(coreCount, threadCount, KEEP_ALIVE_TIME,
-                            KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>(),
-                            new RejectedExecutionHandler()
-                            {
-                                @Override
-                                public void rejectedExecution(
-                                        Runnable r,
-                                        ThreadPoolExecutor executor)
-                                {
-                                    try {
-                                        executor.getQueue().put(r);
-                                    } catch (InterruptedException e) {
-                                        e.printStackTrace();
-                                        //throw new RuntimeException("Interrupted while submitting task", e);
-                                    }
-                                }
-                            });
-
-            int tilesSize = tiles.size();
-            List<Future> futures = new ArrayList<>(tilesSize);
-
-            int nStep = tilesSize / Constants.DRAW_NOTIFY_STEP_PERCENT;
-            if (nStep == 0) {
-                nStep = 1;
-            }
-
-            for (int i = 0; i < tilesSize; ++i) {
-                boolean isError = isDownloadError();
-                if (isError || mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 02, isDownloadError: "
-                                        + isError);
+            // only one batch of tile items is in memory at once, cached tiles are skipped
+            // without the file system access (or revalidated on the refresh). The requests of
+            // the layers are interleaved, so all layers are downloaded at the same time.
+            batch.clear();
+            int planned = 0;
+            while (planned < DOWNLOAD_BATCH_SIZE && (hasTiles = cursor.next())) {
+                planned++;
+                for (DownloadTarget target : targets) {
+                    int tmsType = target.mLayer.getTMSType();
+                    if (!refresh && target.mPresenceIndex.isPresent(
+                            cursor.getZoom(), cursor.getX(), cursor.getY(tmsType))) {
+                        continue;
                     }
+                    batch.add(new TileRequest(target, cursor.getTileItem(tmsType)));
+                }
+            }
+
+            failed.clear();
+            downloadBatch(threadPool, batch, failed, refresh);
+            downloaded += batch.size() - failed.size();
+
+            // the failed tiles are retried with the exponential backoff before the
+            // checkpoint, so the checkpoint never skips a tile which can be downloaded
+            lost += scheduleRetries(failed, retryQueue);
+            while (!retryQueue.isEmpty()) {
+                mIsDownloadError = isFailing(targets);
+                if (mIsDownloadInterrupted || isDownloadError()) {
                     break;
                 }
 
-                final TileItem tile = tiles.get(i);
-                futures.add(threadPool.submit(new Runnable()
-                {
-                    @Override
-                    public void run()
-                    {
-                        android.os.Process.setThreadPriority(
-                                Constants.DEFAULT_DRAW_THREAD_PRIORITY);
-
-                        if (!downloadTile(tmsLayer, tile)) {
-                            mIsDownloadError = true;
-                            if (Constants.DEBUG_MODE) {
-                                Log.d(
-                                        Constants.TAG,
-                                        "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
-                                                + tmsLayer.getName() + ", tile: "
-                                                + tile.toString());
-                            }
-                        }
+                long delay = retryQueue.peek().mTime - System.currentTimeMillis();
+                if (delay > 0) {
+                    try {
+                        Thread.sleep(Math.min(delay, RETRY_SLEEP_STEP));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
                     }
-                }));
+                    continue;
+                }
 
-                if (i % nStep == 0) {
-                    mBuilder.setProgress(tilesSize, i, false)
-                            .setContentText(
-                                    getString(R.string.processing) + " " + tmsLayer.getName());
-                    // Displays the progress bar for the first time.
-                    mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                    sendProgressorsValues(tilesSize, i, tmsLayer.getPath().getName());
+                List<TileRequest> retries = new ArrayList<>();
+                while (!retryQueue.isEmpty()
+                        && retryQueue.peek().mTime <= System.currentTimeMillis()) {
+                    retries.add(retryQueue.poll());
                 }
+
+                failed.clear();
+                downloadBatch(threadPool, retries, failed, refresh);
+                downloaded += retries.size() - failed.size();
+                lost += scheduleRetries(failed, retryQueue);
             }
 
-            // in separate thread
+            mIsDownloadError = isFailing(targets);
+            boolean isError = isDownloadError();
+            if (isError || mIsDownloadInterrupted || !retryQueue.isEmpty()) {
+                if (isError && !mIsDownloadInterrupted) {
+                    mHasPausedTasks = true;
+                }
+                if (Constants.DEBUG_MODE) {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread is interrupted, point 02, isDownloadError: "
+                                    + isError);
+                }
+                isCompleted = false;
+                break;
+            }
 
-            // wait for download ending
-            nStep = futures.size() / Constants.DRAW_NOTIFY_STEP_PERCENT;
-            if (nStep == 0) {
-                nStep = 1;
+            if (hasTiles) {
+                task.setCheckpoint(cursor.getZoomIndex(), cursor.getIndex() + 1);
+            } else {
+                task.setCheckpoint(zoomList.size(), 0);
             }
+            mJournal.checkpoint(task);
 
-            int futuresSize = futures.size();
-            for (int i = 0; i < futuresSize; ++i) {
-                boolean isError = isDownloadError();
-                if (isError || mIsDownloadInterrupted) {
-                    if (Constants.DEBUG_MODE) {
-                        Log.d(
-                                Constants.TAG,
-                                "TileDownloadService.mDownloadThread is interrupted, point 03, isDownloadError: "
-                                        + isError);
-                    }
+            done += planned;
+            long bytes = 0;
+            for (DownloadTarget target : targets) {
+                bytes += target.getBytesReceived();
+            }
+            float seconds = Math.max(1, System.currentTimeMillis() - startTime) / 1000f;
+            float tilesPerSecond = downloaded / seconds;
+            float bytesPerSecond = bytes / seconds;
+
+            int[] progress = getProgressValues(total, done);
+            mBuilder.setProgress(progress[0], progress[1], false)
+                    .setContentText(getString(R.string.processing) + " " + names + ", "
+                            + getString(R.string.download_speed, tilesPerSecond,
+                            Formatter.formatShortFileSize(this, (long) bytesPerSecond)));
+            mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
+            for (DownloadTarget target : targets) {
+                sendProgressorsValues(total, done, tilesPerSecond, bytesPerSecond,
+                        target.mLayer.getPath().getName());
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileDownloadService, " + names + ": " + downloaded
+                    + " tiles downloaded, " + lost + " tiles lost");
+            for (DownloadTarget target : targets) {
+                Log.d(Constants.TAG, "TileDownloadService, " + target.mLayer.getName()
+                        + ": " + target.mMissingCount.get() + " tiles missing on the server"
+                        + ", limit " + target.mScheduler.getLimit() + ", latency "
+                        + (int) target.mScheduler.getLatency() + " ms, error rate "
+                        + target.mScheduler.getErrorRate());
+            }
+        }
+
+        if (isCompleted && null != task.getExportPath()) {
+            File exportDir = new File(task.getExportPath());
+            //noinspection ResultOfMethodCallIgnored
+            exportDir.mkdirs();
+            for (DownloadTarget target : targets) {
+                String name = target.mLayer.getPath().getName() + TilePackage.EXT;
+                File file = new File(exportDir, name);
+                if (!exportPackage(task, target.mLayer, file)) {
+                    isCompleted = false;
                     break;
                 }
+            }
+        }
+
+        if (isCompleted) {
+            mJournal.remove(task);
+        }
+
+        // the pins of the task, which will be resumed, are kept
+        if (isCompleted || mIsDownloadCanceled) {
+            for (DownloadTarget target : targets) {
+                TilePins.unpin(target.mLayer.getPath(), task.getEnvelope(), zoomList,
+                        target.mLayer.getTMSType());
+            }
+        }
+
+        for (DownloadTarget target : targets) {
+            if (null != target.mHttpClient) {
+                target.mHttpClient.close();
+            }
+            // the index of the UI process is read again with the downloaded tiles
+            TilePresenceIndex.notifyChanged(target.mLayer.getPath());
+            // the canceled or paused task keeps its last progress
+            if (isCompleted) {
+                sendProgressorsValues(total, total, target.mLayer.getPath().getName());
+            }
+        }
+
+        threadPool.shutdownNow(); // Cancel currently executing tasks
+        try {
+            // Wait a while for tasks to respond to being cancelled
+            if (!threadPool.awaitTermination(2000, Constants.KEEP_ALIVE_TIME_UNIT)) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(
+                            Constants.TAG,
+                            "TileDownloadService.mDownloadThread, threadPool did not terminate");
+                }
+            }
+        } catch (InterruptedException e) {
+            // (Re-)Cancel if current thread also interrupted
+            threadPool.shutdownNow();
+            // Preserve interrupt status
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * Packs the cached tiles of the task extent to the single file package
+     *
+     * @return false if the export is failed or interrupted
+     */
+    protected boolean exportPackage(
+            DownloadTask task,
+            RemoteTMSLayer tmsLayer,
+            File file)
+    {
+        TilePresenceIndex presenceIndex = TilePresenceIndex.getIndex(tmsLayer.getPath());
+        TileRangeCursor cursor = getTileCursor(task.getEnvelope(), task.getZoomList(), tmsLayer);
+        long total = cursor.getCount();
+        long done = 0;
+
+        TilePackage.Writer writer = null;
+        try {
+            writer = new TilePackage.Writer(file, tmsLayer.getTMSType());
+            while (cursor.next()) {
+                if (mIsDownloadInterrupted) {
+                    writer.abort();
+                    return false;
+                }
 
-                try {
-                    Future future = futures.get(i);
-                    future.get(); // wait for task ending
-
-                    if (i % nStep == 0) {
-                        mBuilder.setProgress(futuresSize, i, false)
-                                .setContentText(
-                                        getString(R.string.processing) + " " + tmsLayer.getName());
-                        // Displays the progress bar for the first time.
-                        mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
-                        sendProgressorsValues(futuresSize, i, tmsLayer.getPath().getName());
+                int zoom = cursor.getZoom(), x = cursor.getX(), y = cursor.getY();
+                if (presenceIndex.isPresent(zoom, x, y)) {
+                    try {
+                        writer.addTile(zoom, x, y,
+                                TileCacheUtil.getTileFile(tmsLayer.getPath(), zoom, x, y));
+                    } catch (FileNotFoundException e) {
+                        // the tile was evicted from the cache
+                        presenceIndex.setPresent(zoom, x, y, false);
                     }
+                }
 
-                } catch (CancellationException | InterruptedException e) {
-                    //e.printStackTrace();
-                } catch (ExecutionException e) {
-                    e.printStackTrace();
+                if (++done % DOWNLOAD_BATCH_SIZE == 0) {
+                    int[] progress = getProgressValues(total, done);
+                    mBuilder.setProgress(progress[0], progress[1], false)
+                            .setContentText(getString(R.string.processing) + " " + file.getName());
+                    mNotifyManager.notify(TILE_DOWNLOAD_NOTIFICATION_ID, mBuilder.build());
                 }
             }
+            writer.finish();
+
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileDownloadService, exported " + writer.getTileCount()
+                        + " tiles to " + file.getAbsolutePath());
+            }
+            return true;
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (null != writer) {
+                writer.abort();
+            }
+            return false;
+        }
+    }
 
-            sendProgressorsValues(futuresSize, futuresSize, tmsLayer.getPath().getName());
 
-            threadPool.shutdownNow(); // Cancel currently executing tasks
-            try {
-                // Wait a while for tasks to respond to being cancelled
-                if (!threadPool.awaitTermination(2000, Constants.KEEP_ALIVE_TIME_UNIT)) {
+    /**
+     * Schedules the next attempts of the failed requests with the backoff
+     *
+     * @return the number of the requests, which are dropped after the last attempt
+     */
+    protected static int scheduleRetries(
+            List<TileRequest> failed,
+            PriorityQueue<TileRequest> retryQueue)
+    {
+        int lost = 0;
+        for (TileRequest request : failed) {
+            int attempt = request.mAttempt;
+            if (attempt + 1 < TileDownloadScheduler.MAX_ATTEMPTS) {
+                request.schedule(attempt + 1);
+                retryQueue.add(request);
+                continue;
+            }
+
+            lost++;
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileDownloadService, tile is not downloaded after "
+                        + TileDownloadScheduler.MAX_ATTEMPTS + " attempts, layer: "
+                        + request.mTarget.mLayer.getName() + ", tile: "
+                        + request.mTile.toString());
+            }
+        }
+        return lost;
+    }
+
+
+    protected DownloadTarget createTarget(RemoteTMSLayer tmsLayer)
+    {
+        return new DownloadTarget(tmsLayer, getScheduler(tmsLayer),
+                TilePresenceIndex.getIndex(tmsLayer.getPath()), getTileHttpClient(tmsLayer));
+    }
+
+
+    protected static boolean isFailing(List<DownloadTarget> targets)
+    {
+        for (DownloadTarget target : targets) {
+            if (target.mScheduler.isFailing()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * Returns the scheduler which limits simultaneous connections to the layer host. The
+     * scheduler is shared by all tasks (and layers) which download tiles from the same host.
+     */
+    protected TileDownloadScheduler getScheduler(RemoteTMSLayer tmsLayer)
+    {
+        String host = null;
+        String url = tmsLayer.getURL();
+        if (!TextUtils.isEmpty(url)) {
+            host = Uri.parse(url).getHost();
+        }
+        if (TextUtils.isEmpty(host)) {
+            host = tmsLayer.getPath().getName();
+        }
+
+        return TileDownloadScheduler.getScheduler(host);
+    }
+
+
+    /**
+     * Downloads the tiles on the pool and waits for the end of the downloading
+     *
+     * @param failed
+     *         receives the requests which are not downloaded and can be retried, the missing
+     *         tiles are not retried
+     */
+    protected void downloadBatch(
+            ThreadPoolExecutor threadPool,
+            List<TileRequest> requests,
+            List<TileRequest> failed,
+            final boolean refresh)
+    {
+        List<Future<Boolean>> futures = new ArrayList<>(requests.size());
+        for (final TileRequest request : requests) {
+            futures.add(threadPool.submit(new Callable<Boolean>()
+            {
+                @Override
+                public Boolean call()
+                {
+                    android.os.Process.setThreadPriority(Constants.DEFAULT_DRAW_THREAD_PRIORITY);
+
+                    TileItem tile = request.mTile;
+                    DownloadTarget target = request.mTarget;
+                    int result = downloadTile(target, tile, refresh);
+                    if (result == TileHttpClient.RESULT_MISSING) {
+                        // nothing to retry
+                        target.mMissingCount.incrementAndGet();
+                        return true;
+                    }
+                    if (result != TileHttpClient.RESULT_ERROR) {
+                        target.mPresenceIndex.setPresent(
+                                tile.getZoomLevel(), tile.getX(), tile.getY(), true);
+                        return true;
+                    }
+
                     if (Constants.DEBUG_MODE) {
                         Log.d(
                                 Constants.TAG,
-                                "TileDownloadService.mDownloadThread, threadPool did not terminate");
+                                "TileDownloadService.mDownloadThread, downloadTile() with error, layer: "
+                                        + target.mLayer.getName() + ", tile: " + tile.toString());
                     }
+                    return false;
                 }
+            }));
+        }
+
+        // wait for the batch ending
+        for (int i = 0; i < futures.size(); i++) {
+            boolean result = false;
+            try {
+                result = futures.get(i).get();
+            } catch (CancellationException e) {
+                //e.printStackTrace();
             } catch (InterruptedException e) {
-                // (Re-)Cancel if current thread also interrupted
-                threadPool.shutdownNow();
-                // Preserve interrupt status
                 Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
             }
-        } else {
-            if (Constants.DEBUG_MODE) {
-                if (layer == null) {
-                    Log.d(
-                            Constants.TAG,
-                            "TileDownloadService.mDownloadThread, layer == null, exit");
-                    return;
-                }
-                Log.d(
-                        Constants.TAG,
-                        "TileDownloadService.mDownloadThread, layer type is not TMS, layer name: "
-                                + layer.getName() + ", type: " + layer.getType() + ", exit");
+            if (!result) {
+                failed.add(requests.get(i));
             }
         }
     }
 
+
+    /**
+     * @return one of TileHttpClient.RESULT_* constants
+     */
+    protected int downloadTile(
+            DownloadTarget target,
+            TileItem tile,
+            boolean refresh)
+    {
+        try {
+            target.mScheduler.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return TileHttpClient.RESULT_ERROR;
+        }
+
+        long start = System.currentTimeMillis();
+        int result = TileHttpClient.RESULT_ERROR;
+        try {
+            if (null != target.mHttpClient) {
+                result = target.mHttpClient.fetch(tile, refresh);
+            } else if (downloadTile(target.mLayer, tile)) {
+                result = TileHttpClient.RESULT_DOWNLOADED;
+                target.mLayerBytes.addAndGet(TileCacheUtil.getTileFile(
+                        target.mLayer.getPath(), tile.getZoomLevel(), tile.getX(),
+                        tile.getY()).length());
+            }
+            return result;
+        } finally {
+            // the missing tile is not the failure of the host
+            if (result == TileHttpClient.RESULT_MISSING) {
+                target.mScheduler.releaseMissing();
+            } else {
+                target.mScheduler.release(result != TileHttpClient.RESULT_ERROR,
+                        System.currentTimeMillis() - start);
+            }
+        }
+    }
+
+
+    protected void sendProgressorsValues(
+            long total,
+            long done,
+            float tilesPerSecond,
+            float bytesPerSecond,
+            String layerPathName)
+    {
+        sendProgressorsValues(total, done, layerPathName);
+    }
+
+
+    protected void sendProgressorsValues(
+            long total,
+            long done,
+            String layerPathName)
+    {
+        int[] progress = getProgressValues(total, done);
+        sendProgressorsValues(progress[0], progress[1], layerPathName);
+    }
+
+
     protected void sendProgressorsValues(
             int maxValue,
             int value,
@@ -517,6 +980,20 @@ public class TileDownloadService
         // do nothing
     }
 
+
+    /**
+     * Scales the tile counters to int values for the progress bars
+     *
+     * @return {maxValue, value}
+     */
+    protected static int[] getProgressValues(
+            long total,
+            long done)
+    {
+        long divider = total / Integer.MAX_VALUE + 1;
+        return new int[] {(int) (total / divider), (int) (done / divider)};
+    }
+
     // For overriding in subclasses
     protected boolean downloadTile(
             RemoteTMSLayer tmsLayer,
@@ -528,31 +1005,131 @@ public class TileDownloadService
     // For overriding in subclasses
     protected boolean isDownloadError()
     {
-        return false;
+        // the host does not answer even after the backoff, stop the task and keep it in
+        // the journal to resume later
+        return mIsDownloadError;
+    }
+
 
-        // Example for error checking
-        //return mIsDownloadError;
+    /**
+     * The layer of the download job with its download state
+     */
+    protected static class DownloadTarget
+    {
+        final RemoteTMSLayer        mLayer;
+        final TileDownloadScheduler mScheduler;
+        final TilePresenceIndex     mPresenceIndex;
+        final TileHttpClient        mHttpClient;
+        final AtomicLong            mLayerBytes;
+        final AtomicLong            mMissingCount;
+
+        DownloadTarget(
+                RemoteTMSLayer layer,
+                TileDownloadScheduler scheduler,
+                TilePresenceIndex presenceIndex,
+                TileHttpClient httpClient)
+        {
+            mLayer = layer;
+            mScheduler = scheduler;
+            mPresenceIndex = presenceIndex;
+            mHttpClient = httpClient;
+            mLayerBytes = new AtomicLong();
+            mMissingCount = new AtomicLong();
+        }
+
+        long getBytesReceived()
+        {
+            long bytes = mLayerBytes.get();
+            if (null != mHttpClient) {
+                bytes += mHttpClient.getBytesReceived();
+            }
+            return bytes;
+        }
     }
 
-    public class DownloadTask
+
+    /**
+     * The tile of the layer to download, ordered by the retry time in the retry queue
+     */
+    protected static class TileRequest
+            implements Comparable<TileRequest>
     {
-        String        mLayerPathName;
+        final DownloadTarget mTarget;
+        final TileItem       mTile;
+        // the index of the current attempt, 0 is the first download
+        int                  mAttempt;
+        long                 mTime;
+
+        TileRequest(
+                DownloadTarget target,
+                TileItem tile)
+        {
+            mTarget = target;
+            mTile = tile;
+        }
+
+        /**
+         * @param attempt
+         *         the index of the next attempt, starting from 1 for the first retry
+         */
+        void schedule(int attempt)
+        {
+            mAttempt = attempt;
+            mTime = System.currentTimeMillis() + mTarget.mScheduler.getBackoffDelay(attempt - 1);
+        }
+
+        @Override
+        public int compareTo(@NonNull TileRequest other)
+        {
+            return mTime < other.mTime ? -1 : (mTime == other.mTime ? 0 : 1);
+        }
+    }
+
+
+    public static class DownloadTask
+    {
+        protected static final String JSON_ID_KEY         = "id";
+        protected static final String JSON_PATH_KEY       = "path";
+        protected static final String JSON_PATHS_KEY      = "paths";
+        protected static final String JSON_MINX_KEY       = "minx";
+        protected static final String JSON_MAXX_KEY       = "maxx";
+        protected static final String JSON_MINY_KEY       = "miny";
+        protected static final String JSON_MAXY_KEY       = "maxy";
+        protected static final String JSON_ZOOMS_KEY      = "zooms";
+        protected static final String JSON_ZOOM_INDEX_KEY = "zoom_index";
+        protected static final String JSON_TILE_INDEX_KEY = "tile_index";
+        protected static final String JSON_REFRESH_KEY    = "refresh";
+        protected static final String JSON_EXPORT_KEY     = "export";
+
+        long          mId;
+        List<String>  mLayerPathNames;
         GeoEnvelope   mEnvelope;
         List<Integer> mZoomList;
+        volatile int  mZoomIndex;
+        volatile long mTileIndex;
+        boolean       mRefresh;
+        String        mExportPath;
 
         DownloadTask(
-                String layerPathName,
+                long id,
+                List<String> layerPathNames,
                 GeoEnvelope envelope,
                 List<Integer> zoomList)
         {
-            mLayerPathName = layerPathName;
+            mId = id;
+            mLayerPathNames = layerPathNames;
             mEnvelope = envelope;
             mZoomList = zoomList;
         }
 
-        public String getLayerPathName()
+        public long getId()
+        {
+            return mId;
+        }
+
+        public List<String> getLayerPathNames()
         {
-            return mLayerPathName;
+            return mLayerPathNames;
         }
 
         GeoEnvelope getEnvelope()
@@ -564,5 +1141,104 @@ public class TileDownloadService
         {
             return mZoomList;
         }
+
+        int getZoomIndex()
+        {
+            return mZoomIndex;
+        }
+
+        long getTileIndex()
+        {
+            return mTileIndex;
+        }
+
+        boolean isRefresh()
+        {
+            return mRefresh;
+        }
+
+        void setRefresh(boolean refresh)
+        {
+            mRefresh = refresh;
+        }
+
+        String getExportPath()
+        {
+            return mExportPath;
+        }
+
+        void setExportPath(String exportPath)
+        {
+            mExportPath = exportPath;
+        }
+
+        void setCheckpoint(
+                int zoomIndex,
+                long tileIndex)
+        {
+            mZoomIndex = zoomIndex;
+            mTileIndex = tileIndex;
+        }
+
+        JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put(JSON_ID_KEY, mId);
+            JSONArray paths = new JSONArray();
+            for (String path : mLayerPathNames) {
+                paths.put(path);
+            }
+            json.put(JSON_PATHS_KEY, paths);
+            json.put(JSON_MINX_KEY, mEnvelope.getMinX());
+            json.put(JSON_MAXX_KEY, mEnvelope.getMaxX());
+            json.put(JSON_MINY_KEY, mEnvelope.getMinY());
+            json.put(JSON_MAXY_KEY, mEnvelope.getMaxY());
+            JSONArray zooms = new JSONArray();
+            for (Integer zoom : mZoomList) {
+                zooms.put(zoom);
+            }
+            json.put(JSON_ZOOMS_KEY, zooms);
+            json.put(JSON_ZOOM_INDEX_KEY, mZoomIndex);
+            json.put(JSON_TILE_INDEX_KEY, mTileIndex);
+            json.put(JSON_REFRESH_KEY, mRefresh);
+            if (null != mExportPath) {
+                json.put(JSON_EXPORT_KEY, mExportPath);
+            }
+            return json;
+        }
+
+        static DownloadTask fromJSON(JSONObject json)
+                throws JSONException
+        {
+            GeoEnvelope envelope = new GeoEnvelope(json.getDouble(JSON_MINX_KEY),
+                    json.getDouble(JSON_MAXX_KEY), json.getDouble(JSON_MINY_KEY),
+                    json.getDouble(JSON_MAXY_KEY));
+            JSONArray zooms = json.getJSONArray(JSON_ZOOMS_KEY);
+            List<Integer> zoomList = new ArrayList<>(zooms.length());
+            for (int i = 0; i < zooms.length(); i++) {
+                zoomList.add(zooms.getInt(i));
+            }
+
+            List<String> pathList = new ArrayList<>();
+            JSONArray paths = json.optJSONArray(JSON_PATHS_KEY);
+            if (null != paths) {
+                for (int i = 0; i < paths.length(); i++) {
+                    pathList.add(paths.getString(i));
+                }
+            } else {
+                // the journal of the single layer task
+                pathList.add(json.getString(JSON_PATH_KEY));
+            }
+
+            DownloadTask task =
+                    new DownloadTask(json.getLong(JSON_ID_KEY), pathList, envelope, zoomList);
+            task.setCheckpoint(json.optInt(JSON_ZOOM_INDEX_KEY), json.optLong(JSON_TILE_INDEX_KEY));
+            task.setRefresh(json.optBoolean(JSON_REFRESH_KEY));
+            if (json.has(JSON_EXPORT_KEY)) {
+                task.setExportPath(json.getString(JSON_EXPORT_KEY));
+            }
+            return task;
+        }
     }
 }
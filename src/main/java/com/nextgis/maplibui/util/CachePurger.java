@@ -0,0 +1,232 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static com.nextgis.maplib.util.Constants.DRAWING_SEPARATE_THREADS;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME;
+import static com.nextgis.maplib.util.Constants.KEEP_ALIVE_TIME_UNIT;
+
+
+/**
+ * Tile cache purge engine. The zoom directories of the layer are renamed to the trash
+ * directory first, which is instant on the same file system, so the layer can be used (and
+ * filled again) at once. The trash is deleted in parallel by the x directories, either in the
+ * caller thread with the progress or in the background.
+ */
+public class CachePurger
+{
+    public static final String TRASH_PREFIX = ".trash_";
+
+    // background purges run one by one, the deletion itself is parallel
+    protected static final ExecutorService mBackground = Executors.newSingleThreadExecutor();
+
+
+    public interface OnProgressListener
+    {
+        /**
+         * Called from the delete threads
+         */
+        void onProgress(
+                int doneDirs,
+                int totalDirs,
+                long deletedFiles,
+                long freedBytes);
+    }
+
+
+    private CachePurger()
+    {
+    }
+
+
+    /**
+     * Moves the tile zoom directories of the layer to the new trash directory
+     *
+     * @return false if some directory can not be moved and was deleted in place
+     */
+    public static boolean moveToTrash(File layerPath)
+    {
+        File[] files = layerPath.listFiles();
+        if (null == files) {
+            return true;
+        }
+
+        File trash = new File(layerPath, TRASH_PREFIX + System.currentTimeMillis());
+        boolean result = true;
+        for (File file : files) {
+            if (!file.isDirectory() || !MapUtil.isParsable(file.getName())) {
+                continue;
+            }
+
+            if ((trash.exists() || trash.mkdirs()) && file.renameTo(
+                    new File(trash, file.getName()))) {
+                continue;
+            }
+
+            FileUtil.deleteRecursive(file);
+            result = false;
+        }
+        return result;
+    }
+
+
+    /**
+     * @return the trash directories of the layer, including the ones left by a killed process
+     */
+    public static List<File> getTrash(File layerPath)
+    {
+        List<File> trash = new ArrayList<>();
+        File[] files = layerPath.listFiles();
+        if (null != files) {
+            for (File file : files) {
+                if (file.isDirectory() && file.getName().startsWith(TRASH_PREFIX)) {
+                    trash.add(file);
+                }
+            }
+        }
+        return trash;
+    }
+
+
+    public static void purgeInBackground(final File layerPath)
+    {
+        mBackground.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                android.os.Process.setThreadPriority(
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                purge(getTrash(layerPath), null);
+            }
+        });
+    }
+
+
+    /**
+     * Deletes the directories with zoom/x/y layout. The x directories are deleted in parallel.
+     */
+    public static void purge(
+            List<File> roots,
+            final OnProgressListener listener)
+    {
+        long start = System.currentTimeMillis();
+
+        List<File> units = new ArrayList<>();
+        for (File root : roots) {
+            File[] zoomDirs = root.listFiles();
+            if (null == zoomDirs) {
+                continue;
+            }
+            for (File zoomDir : zoomDirs) {
+                File[] xDirs = zoomDir.listFiles();
+                if (null == xDirs) {
+                    continue;
+                }
+                for (File xDir : xDirs) {
+                    units.add(xDir);
+                }
+            }
+        }
+
+        final int total = units.size();
+        final AtomicInteger done = new AtomicInteger();
+        final AtomicLong files = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        int threadCount = DRAWING_SEPARATE_THREADS;
+        ThreadPoolExecutor threadPool =
+                new ThreadPoolExecutor(threadCount, threadCount, KEEP_ALIVE_TIME,
+                        KEEP_ALIVE_TIME_UNIT, new LinkedBlockingQueue<Runnable>());
+        List<Future> futures = new ArrayList<>(total);
+        for (final File unit : units) {
+            futures.add(threadPool.submit(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    File[] tiles = unit.listFiles();
+                    if (null != tiles) {
+                        for (File tile : tiles) {
+                            long length = tile.length();
+                            if (tile.isDirectory()) {
+                                FileUtil.deleteRecursive(tile);
+                            } else if (tile.delete()) {
+                                files.incrementAndGet();
+                                bytes.addAndGet(length);
+                            }
+                        }
+                    }
+                    //noinspection ResultOfMethodCallIgnored
+                    unit.delete();
+
+                    int count = done.incrementAndGet();
+                    if (null != listener) {
+                        listener.onProgress(count, total, files.get(), bytes.get());
+                    }
+                }
+            }));
+        }
+
+        for (Future future : futures) {
+            try {
+                future.get();
+            } catch (CancellationException | InterruptedException e) {
+                //e.printStackTrace();
+            } catch (ExecutionException e) {
+                e.printStackTrace();
+            }
+        }
+        threadPool.shutdown();
+
+        // the empty zoom directories and anything else left
+        for (File root : roots) {
+            FileUtil.deleteRecursive(root);
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "CachePurger: " + files.get() + " files, " + bytes.get()
+                    + " bytes deleted in " + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+}
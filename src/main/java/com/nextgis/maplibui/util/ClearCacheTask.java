@@ -25,23 +25,33 @@ import android.app.Activity;
 import android.app.ProgressDialog;
 import android.content.DialogInterface;
 import android.os.AsyncTask;
+import android.text.format.Formatter;
 
-import com.nextgis.maplib.util.FileUtil;
-import com.nextgis.maplib.util.MapUtil;
 import com.nextgis.maplibui.R;
 
 import java.io.File;
 
-public class ClearCacheTask extends AsyncTask<File, Integer, Void> {
+/**
+ * Clears the tile cache of the layer. The zoom directories are moved to the trash at once, then
+ * the trash is deleted in parallel with the per directory progress, or in the background if
+ * {@link #setPurgeInBackground(boolean)} is set, so the layer is usable right away.
+ */
+public class ClearCacheTask extends AsyncTask<File, Long, Void> {
     private Activity mActivity;
     private ProgressDialog mProgressDialog;
     private DialogInterface.OnDismissListener mListener;
+    private boolean mPurgeInBackground;
 
     public ClearCacheTask(Activity activity, DialogInterface.OnDismissListener listener) {
         mActivity = activity;
         mListener = listener;
     }
 
+    public ClearCacheTask setPurgeInBackground(boolean purgeInBackground) {
+        mPurgeInBackground = purgeInBackground;
+        return this;
+    }
+
     @Override
     protected void onPreExecute() {
         super.onPreExecute();
@@ -57,13 +67,24 @@ public class ClearCacheTask extends AsyncTask<File, Integer, Void> {
     protected Void doInBackground(File... path) {
         if (path.length > 0) {
             if (path[0].exists() && path[0].isDirectory()) {
-                File[] data = path[0].listFiles();
-                int c = 0;
-                for (File file : data) {
-                    publishProgress(++c, data.length);
-                    if (file.isDirectory() && MapUtil.isParsable(file.getName()))
-                        FileUtil.deleteRecursive(file);
+                CachePurger.moveToTrash(path[0]);
+                TilePresenceIndex.invalidate(path[0]);
+                TilePins.clear(path[0]);
+                TileCacheEvictor.getEvictor(path[0]).clearAccessLog();
+
+                if (mPurgeInBackground) {
+                    CachePurger.purgeInBackground(path[0]);
+                } else {
+                    CachePurger.OnProgressListener listener = new CachePurger.OnProgressListener() {
+                        @Override
+                        public void onProgress(int doneDirs, int totalDirs, long files, long bytes) {
+                            publishProgress((long) doneDirs, (long) totalDirs, files, bytes);
+                        }
+                    };
+                    CachePurger.purge(CachePurger.getTrash(path[0]), listener);
                 }
+            } else {
+                TilePresenceIndex.invalidate(path[0]);
             }
         }
 
@@ -71,11 +92,14 @@ public class ClearCacheTask extends AsyncTask<File, Integer, Void> {
     }
 
     @Override
-    protected void onProgressUpdate(Integer... values) {
+    protected void onProgressUpdate(Long... values) {
         super.onProgressUpdate(values);
         if (mProgressDialog != null) {
-            mProgressDialog.setMax(values[1]);
-            mProgressDialog.setProgress(values[0]);
+            mProgressDialog.setMax(values[1].intValue());
+            mProgressDialog.setProgress(values[0].intValue());
+            String freed = Formatter.formatShortFileSize(mActivity, values[3]);
+            String message = mActivity.getString(R.string.cache_purge_progress, values[2], freed);
+            mProgressDialog.setMessage(message);
         }
     }
 
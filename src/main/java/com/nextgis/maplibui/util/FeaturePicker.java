@@ -0,0 +1,219 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.GeoGeometry;
+import com.nextgis.maplib.datasource.GeoGeometryCollection;
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+import com.nextgis.maplib.map.VectorLayer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * Picks the features of the vector layer under the tap. The index is queried once, the geometry
+ * of each candidate is fetched once and the exact distance from the tap to it is measured, so
+ * the features whose envelope only touches the tap area are dropped. The candidates are ranked
+ * nearest first, the repeated taps on the overlapping features go through them in turn.
+ */
+public class FeaturePicker {
+    protected final List<Candidate> mCandidates = new ArrayList<>();
+    protected final Comparator<Candidate> mComparator = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate lhs, Candidate rhs) {
+            int result = Double.compare(lhs.mDistance, rhs.mDistance);
+            // the tap inside of the nested polygons selects the inner one first
+            if (result == 0)
+                result = Double.compare(lhs.mArea, rhs.mArea);
+            if (result == 0)
+                result = lhs.mId < rhs.mId ? -1 : (lhs.mId == rhs.mId ? 0 : 1);
+            return result;
+        }
+    };
+
+    /**
+     * Collects the features under the tap ranked by the distance
+     *
+     * @param mapEnv    the tap area in the map coordinates
+     * @param screenEnv the same tap area on the screen, its center is the tap point
+     * @return the ranked candidates, the list is reused by the next pick
+     */
+    public List<Candidate> pick(VectorLayer layer, GeoEnvelope mapEnv, GeoEnvelope screenEnv) {
+        mCandidates.clear();
+        if (screenEnv.width() <= 0)
+            return mCandidates;
+
+        List<Long> ids = layer.query(mapEnv);
+        if (ids.isEmpty())
+            return mCandidates;
+
+        // map to screen is the uniform scale, so the map distance is ranked and measured in pixels
+        double scale = mapEnv.width() / screenEnv.width();
+        double tolerance = screenEnv.width() / 2;
+        double x = (mapEnv.getMinX() + mapEnv.getMaxX()) / 2;
+        double y = (mapEnv.getMinY() + mapEnv.getMaxY()) / 2;
+
+        for (Long id : ids) {
+            GeoGeometry geometry = layer.getGeometryForId(id);
+            if (geometry == null)
+                continue;
+
+            double distance = Math.sqrt(getDistanceSquared(geometry, x, y)) / scale;
+            if (distance > tolerance)
+                continue;
+
+            GeoEnvelope envelope = geometry.getEnvelope();
+            double area = envelope == null ? 0 : envelope.width() * envelope.height();
+            mCandidates.add(new Candidate(id, geometry, distance, area));
+        }
+
+        Collections.sort(mCandidates, mComparator);
+        return mCandidates;
+    }
+
+    /**
+     * @param currentId the id of the selected feature
+     * @return the nearest candidate, or the one after the selected feature if it is among the
+     * candidates, null if there is no other candidate
+     */
+    public Candidate next(long currentId) {
+        int size = mCandidates.size();
+        for (int i = 0; i < size; i++) {
+            if (mCandidates.get(i).mId != currentId)
+                continue;
+
+            Candidate next = mCandidates.get((i + 1) % size);
+            return next.mId == currentId ? null : next;
+        }
+
+        return size > 0 ? mCandidates.get(0) : null;
+    }
+
+    public List<Candidate> getCandidates() {
+        return mCandidates;
+    }
+
+    /**
+     * @return the squared distance from the point to the geometry, 0 inside of a polygon
+     */
+    public static double getDistanceSquared(GeoGeometry geometry, double x, double y) {
+        if (geometry instanceof GeoPoint) {
+            GeoPoint point = (GeoPoint) geometry;
+            double dx = point.getX() - x, dy = point.getY() - y;
+            return dx * dx + dy * dy;
+        }
+
+        if (geometry instanceof GeoPolygon) {
+            GeoPolygon polygon = (GeoPolygon) geometry;
+            boolean inside = isInside(polygon.getOuterRing(), x, y);
+            double distance = getDistanceSquared(polygon.getOuterRing(), x, y);
+            for (int i = 0; i < polygon.getInnerRingCount(); i++) {
+                GeoLineString ring = polygon.getInnerRing(i);
+                if (inside && isInside(ring, x, y))
+                    inside = false;
+                distance = Math.min(distance, getDistanceSquared(ring, x, y));
+            }
+            return inside ? 0 : distance;
+        }
+
+        if (geometry instanceof GeoLineString) {
+            List<GeoPoint> points = ((GeoLineString) geometry).getPoints();
+            double distance = Double.MAX_VALUE;
+            for (int i = 0; i < points.size(); i++) {
+                GeoPoint a = points.get(i);
+                GeoPoint b = points.get(i + 1 < points.size() ? i + 1 : i);
+                distance = Math.min(distance, getSegmentDistanceSquared(a.getX(), a.getY(), b.getX(), b.getY(), x, y));
+            }
+            return distance;
+        }
+
+        if (geometry instanceof GeoGeometryCollection) {
+            GeoGeometryCollection collection = (GeoGeometryCollection) geometry;
+            double distance = Double.MAX_VALUE;
+            for (int i = 0; i < collection.size(); i++)
+                distance = Math.min(distance, getDistanceSquared(collection.get(i), x, y));
+            return distance;
+        }
+
+        return Double.MAX_VALUE;
+    }
+
+    protected static double getSegmentDistanceSquared(double ax, double ay, double bx, double by, double x, double y) {
+        double dx = bx - ax, dy = by - ay;
+        double length = dx * dx + dy * dy;
+        double t = length == 0 ? 0 : ((x - ax) * dx + (y - ay) * dy) / length;
+        t = Math.max(0, Math.min(1, t));
+        double px = ax + t * dx - x, py = ay + t * dy - y;
+        return px * px + py * py;
+    }
+
+    /**
+     * The even-odd ray casting test
+     */
+    protected static boolean isInside(GeoLineString ring, double x, double y) {
+        List<GeoPoint> points = ring.getPoints();
+        boolean inside = false;
+        for (int i = 0, j = points.size() - 1; i < points.size(); j = i++) {
+            GeoPoint a = points.get(i), b = points.get(j);
+            if ((a.getY() > y) != (b.getY() > y)
+                    && x < (b.getX() - a.getX()) * (y - a.getY()) / (b.getY() - a.getY()) + a.getX())
+                inside = !inside;
+        }
+        return inside;
+    }
+
+    public static class Candidate {
+        protected final long mId;
+        protected final GeoGeometry mGeometry;
+        protected final double mDistance, mArea;
+
+        public Candidate(long id, GeoGeometry geometry, double distance, double area) {
+            mId = id;
+            mGeometry = geometry;
+            mDistance = distance;
+            mArea = area;
+        }
+
+        public long getId() {
+            return mId;
+        }
+
+        public GeoGeometry getGeometry() {
+            return mGeometry;
+        }
+
+        /**
+         * @return the distance from the tap in pixels
+         */
+        public double getDistance() {
+            return mDistance;
+        }
+    }
+}
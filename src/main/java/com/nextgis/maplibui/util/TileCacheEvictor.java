@@ -0,0 +1,584 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.util.Log;
+
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.MapUtil;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+
+/**
+ * Keeps the remote TMS layer cache in the budget of bytes and tiles. The draw threads record
+ * the tile access time in memory, the log is saved to the layer directory by the background
+ * evict run. The run scans the cache, drops the least recently used tiles until the cache is
+ * below the budget, preferring high zoom tiles outside the recently viewed areas, and never
+ * touches the tiles pinned by the running prefetch job ({@link TilePins}). The pinned tiles
+ * take at most {@link #MAX_PINNED_SHARE} of the budget, so the pins never push the rest of the
+ * cache out.
+ */
+public class TileCacheEvictor
+{
+    public static final String BUDGET_FILE = "cache_budget.json";
+    public static final String ACCESS_FILE = "tile_access.bin";
+
+    protected static final String JSON_MAX_BYTES_KEY = "max_bytes";
+    protected static final String JSON_MAX_TILES_KEY = "max_tiles";
+
+    protected static final long  EVICT_INTERVAL = 5 * 60 * 1000;
+    protected static final long  RECENT_PERIOD  = 3 * 24 * 60 * 60 * 1000;
+    protected static final long  TOUCH_STEP     = 60 * 1000;
+    protected static final int   RECENT_ZOOM    = 10;
+    // evict a bit more than needed, so the next run is not triggered by the next tile
+    protected static final float LOW_WATERMARK  = 0.9f;
+    // the part of the budget which is counted for the pinned tiles at most
+    protected static final float MAX_PINNED_SHARE = 0.5f;
+
+    protected static final ConcurrentHashMap<String, TileCacheEvictor> mEvictors =
+            new ConcurrentHashMap<>();
+    protected static final ExecutorService mBackground = Executors.newSingleThreadExecutor();
+
+    protected final File            mPath;
+    protected final Map<Long, Long> mAccess;
+    protected final Map<Long, Long> mLoggedAccess;
+
+    protected volatile long    mMaxBytes;
+    protected volatile long    mMaxTiles;
+    protected volatile long    mLastRun;
+    protected volatile boolean mScheduled;
+
+
+    protected TileCacheEvictor(File path)
+    {
+        mPath = path;
+        mAccess = new ConcurrentHashMap<>();
+        mLoggedAccess = new ConcurrentHashMap<>();
+        mLastRun = System.currentTimeMillis();
+        loadBudget();
+    }
+
+
+    /**
+     * @return the shared evictor for the layer cache directory
+     */
+    public static TileCacheEvictor getEvictor(File layerPath)
+    {
+        String key = layerPath.getAbsolutePath();
+        TileCacheEvictor evictor = mEvictors.get(key);
+        if (null == evictor) {
+            evictor = new TileCacheEvictor(layerPath);
+            TileCacheEvictor previous = mEvictors.putIfAbsent(key, evictor);
+            if (null != previous) {
+                evictor = previous;
+            }
+        }
+        return evictor;
+    }
+
+
+    /**
+     * Records the tile access. It is called from the draw threads, so it only updates the
+     * memory log and schedules the evict run from time to time.
+     */
+    public void onTileAccess(
+            int zoom,
+            int x,
+            int y)
+    {
+        if (!hasBudget()) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+        long key = TileCacheUtil.getTileKey(zoom, x, y);
+        Long time = mAccess.get(key);
+        if (null == time || now - time > TOUCH_STEP) {
+            mAccess.put(key, now);
+        }
+
+        if (now - mLastRun > EVICT_INTERVAL) {
+            schedule();
+        }
+    }
+
+
+    public boolean hasBudget()
+    {
+        return mMaxBytes > 0 || mMaxTiles > 0;
+    }
+
+
+    public long getMaxBytes()
+    {
+        return mMaxBytes;
+    }
+
+
+    public long getMaxTiles()
+    {
+        return mMaxTiles;
+    }
+
+
+    /**
+     * Sets the cache budget, 0 means no limit. The cache is checked at once.
+     */
+    public void setBudget(
+            long maxBytes,
+            long maxTiles)
+    {
+        mMaxBytes = maxBytes;
+        mMaxTiles = maxTiles;
+
+        try {
+            JSONObject json = new JSONObject();
+            json.put(JSON_MAX_BYTES_KEY, maxBytes);
+            json.put(JSON_MAX_TILES_KEY, maxTiles);
+            FileUtil.writeToFile(new File(mPath, BUDGET_FILE), json.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+
+        if (hasBudget()) {
+            schedule();
+        }
+    }
+
+
+    protected void loadBudget()
+    {
+        File file = new File(mPath, BUDGET_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        try {
+            JSONObject json = new JSONObject(FileUtil.readFromFile(file));
+            mMaxBytes = json.optLong(JSON_MAX_BYTES_KEY);
+            mMaxTiles = json.optLong(JSON_MAX_TILES_KEY);
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    /**
+     * Drops the access log, for example, after the cache is cleared
+     */
+    public void clearAccessLog()
+    {
+        mAccess.clear();
+        mLoggedAccess.clear();
+        //noinspection ResultOfMethodCallIgnored
+        new File(mPath, ACCESS_FILE).delete();
+    }
+
+
+    public synchronized void schedule()
+    {
+        if (mScheduled) {
+            return;
+        }
+        mScheduled = true;
+        mLastRun = System.currentTimeMillis();
+
+        mBackground.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                android.os.Process.setThreadPriority(
+                        android.os.Process.THREAD_PRIORITY_BACKGROUND);
+                try {
+                    evict();
+                } finally {
+                    mLastRun = System.currentTimeMillis();
+                    mScheduled = false;
+                }
+            }
+        });
+    }
+
+
+    /**
+     * Scans the cache and evicts the tiles over the budget. The access log is compacted to the
+     * tiles which are still in the cache and saved.
+     */
+    protected void evict()
+    {
+        long start = System.currentTimeMillis();
+        if (mLoggedAccess.isEmpty()) {
+            readAccessLog();
+        }
+
+        TilePins pins = TilePins.load(mPath);
+        Tiles tiles = new Tiles();
+        File[] zoomDirs = mPath.listFiles();
+        if (null == zoomDirs) {
+            return;
+        }
+
+        for (File zoomDir : zoomDirs) {
+            if (!zoomDir.isDirectory() || !MapUtil.isParsable(zoomDir.getName())) {
+                continue;
+            }
+            int zoom = Integer.parseInt(zoomDir.getName());
+            File[] xDirs = zoomDir.listFiles();
+            if (null == xDirs) {
+                continue;
+            }
+
+            for (File xDir : xDirs) {
+                int x = TileCacheUtil.parseTileNumber(xDir.getName());
+                File[] files = xDir.listFiles();
+                if (x < 0 || null == files) {
+                    continue;
+                }
+
+                for (File file : files) {
+                    int y = TileCacheUtil.parseTileName(file.getName());
+                    if (y < 0) {
+                        continue;
+                    }
+                    long key = TileCacheUtil.getTileKey(zoom, x, y);
+                    long size = file.length();
+                    if (!pins.isEmpty() && pins.isPinned(zoom, x, y)) {
+                        tiles.mPinnedBytes += size;
+                        tiles.mPinnedCount++;
+                        continue;
+                    }
+                    tiles.mTotalBytes += size;
+                    tiles.mTotalCount++;
+                    tiles.add(key, getAccessTime(key, file), size);
+                }
+            }
+        }
+
+        // the budget of the evictable tiles
+        long maxBytes = getUnpinnedBudget(mMaxBytes, tiles.mPinnedBytes);
+        long maxTiles = getUnpinnedBudget(mMaxTiles, tiles.mPinnedCount);
+        boolean overBytes = maxBytes > 0 && tiles.mTotalBytes > maxBytes;
+        boolean overTiles = maxTiles > 0 && tiles.mTotalCount > maxTiles;
+        int evicted = 0;
+        if (overBytes || overTiles) {
+            evicted = evict(tiles, (long) (maxBytes * LOW_WATERMARK),
+                    (long) (maxTiles * LOW_WATERMARK));
+        }
+
+        writeAccessLog(tiles);
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TileCacheEvictor: " + mPath.getName() + ", " + tiles.mTotalCount
+                    + " tiles, " + tiles.mTotalBytes + " bytes, " + tiles.mPinnedCount
+                    + " pinned tiles, " + evicted + " evicted in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+    }
+
+
+    /**
+     * @return the budget left for the tiles which are not pinned, 0 for no limit
+     */
+    protected static long getUnpinnedBudget(
+            long budget,
+            long pinned)
+    {
+        if (budget <= 0) {
+            return 0;
+        }
+        return budget - Math.min(pinned, (long) (budget * MAX_PINNED_SHARE));
+    }
+
+
+    protected int evict(
+            final Tiles tiles,
+            long targetBytes,
+            long targetTiles)
+    {
+        // the areas viewed lately, as the tile keys of the coarse zoom levels
+        final Set<Long> recent = new HashSet<>();
+        addRecent(recent, mLoggedAccess);
+        addRecent(recent, mAccess);
+
+        final boolean[] outside = new boolean[tiles.mCount];
+        Integer[] order = new Integer[tiles.mCount];
+        for (int i = 0; i < tiles.mCount; i++) {
+            order[i] = i;
+            long key = tiles.mKeys[i];
+            long parent = getParentKey(key, Math.min(getZoom(key), RECENT_ZOOM));
+            outside[i] = !recent.contains(parent);
+        }
+
+        Arrays.sort(order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare(
+                    Integer lhs,
+                    Integer rhs)
+            {
+                if (outside[lhs] != outside[rhs]) {
+                    return outside[lhs] ? -1 : 1;
+                }
+                if (outside[lhs]) {
+                    int lZoom = getZoom(tiles.mKeys[lhs]), rZoom = getZoom(tiles.mKeys[rhs]);
+                    if (lZoom != rZoom) {
+                        return lZoom > rZoom ? -1 : 1;
+                    }
+                }
+                long l = tiles.mTimes[lhs], r = tiles.mTimes[rhs];
+                return l < r ? -1 : (l == r ? 0 : 1);
+            }
+        });
+
+        TilePresenceIndex index = TilePresenceIndex.getIndex(mPath);
+        Set<File> xDirs = new HashSet<>();
+        int evicted = 0;
+        for (Integer i : order) {
+            boolean bytesDone = targetBytes <= 0 || tiles.mTotalBytes <= targetBytes;
+            boolean tilesDone = targetTiles <= 0 || tiles.mTotalCount <= targetTiles;
+            if (bytesDone && tilesDone) {
+                break;
+            }
+
+            long key = tiles.mKeys[i];
+            int zoom = getZoom(key), x = getX(key), y = getY(key);
+            File file = TileCacheUtil.getTileFile(mPath, zoom, x, y);
+            if (file.delete()) {
+                tiles.mTotalBytes -= tiles.mSizes[i];
+                tiles.mTotalCount--;
+                tiles.mTimes[i] = -1;
+                index.setPresent(zoom, x, y, false);
+                mAccess.remove(key);
+                xDirs.add(file.getParentFile());
+                evicted++;
+            }
+        }
+
+        // the empty directories, delete() does nothing for the others
+        for (File xDir : xDirs) {
+            //noinspection ResultOfMethodCallIgnored
+            xDir.delete();
+        }
+
+        if (evicted > 0) {
+            // the index of the tile download service process is read again
+            TilePresenceIndex.notifyChanged(mPath);
+        }
+
+        return evicted;
+    }
+
+
+    protected void addRecent(
+            Set<Long> recent,
+            Map<Long, Long> access)
+    {
+        long recentTime = System.currentTimeMillis() - RECENT_PERIOD;
+        for (Map.Entry<Long, Long> entry : access.entrySet()) {
+            if (entry.getValue() > recentTime) {
+                long key = entry.getKey();
+                for (int zoom = Math.min(getZoom(key), RECENT_ZOOM); zoom >= 0; zoom--) {
+                    recent.add(getParentKey(key, zoom));
+                }
+            }
+        }
+    }
+
+
+    protected long getAccessTime(
+            long key,
+            File file)
+    {
+        Long time = mAccess.get(key);
+        if (null == time) {
+            time = mLoggedAccess.get(key);
+        }
+        // the tile is not drawn since the download
+        return null == time ? file.lastModified() : time;
+    }
+
+
+    protected void readAccessLog()
+    {
+        File file = new File(mPath, ACCESS_FILE);
+        if (!file.exists()) {
+            return;
+        }
+
+        DataInputStream input = null;
+        try {
+            input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            while (true) {
+                long key = input.readLong();
+                mLoggedAccess.put(key, input.readLong());
+            }
+        } catch (EOFException e) {
+            // the end of the log
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (null != input) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    /**
+     * Saves the access time of the tiles left in the cache, so the log does not grow with the
+     * evicted tiles
+     */
+    protected void writeAccessLog(Tiles tiles)
+    {
+        mLoggedAccess.clear();
+        File file = new File(mPath, ACCESS_FILE);
+        File temp = new File(mPath, ACCESS_FILE + ".tmp");
+        DataOutputStream output = null;
+        try {
+            output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            for (int i = 0; i < tiles.mCount; i++) {
+                long time = tiles.mTimes[i];
+                if (time < 0) {
+                    continue;
+                }
+                output.writeLong(tiles.mKeys[i]);
+                output.writeLong(time);
+                mLoggedAccess.put(tiles.mKeys[i], time);
+            }
+            output.close();
+            output = null;
+
+            if (file.exists() && !file.delete() || !temp.renameTo(file)) {
+                throw new IOException("Failed to write the tile access log");
+            }
+            // keep only the access recorded after the scan
+            for (Map.Entry<Long, Long> entry : mAccess.entrySet()) {
+                if (entry.getValue().equals(mLoggedAccess.get(entry.getKey()))) {
+                    mAccess.remove(entry.getKey());
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            if (null != output) {
+                try {
+                    output.close();
+                } catch (IOException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    protected static int getZoom(long key)
+    {
+        return (int) (key >>> 50);
+    }
+
+
+    protected static int getX(long key)
+    {
+        return (int) ((key >>> 25) & 0x1FFFFFF);
+    }
+
+
+    protected static int getY(long key)
+    {
+        return (int) (key & 0x1FFFFFF);
+    }
+
+
+    /**
+     * The parent tile is the same for both TMS types, the y flip is symmetric for the shift
+     */
+    protected static long getParentKey(
+            long key,
+            int zoom)
+    {
+        int shift = getZoom(key) - zoom;
+        return TileCacheUtil.getTileKey(zoom, getX(key) >> shift, getY(key) >> shift);
+    }
+
+
+    /**
+     * The cached tiles which can be evicted, in primitive arrays, as the cache can hold
+     * hundreds of thousands of tiles
+     */
+    protected static class Tiles
+    {
+        protected long[] mKeys  = new long[1024];
+        protected long[] mTimes = new long[1024];
+        protected int[]  mSizes = new int[1024];
+        protected int    mCount;
+        // the tiles which can be evicted
+        protected long   mTotalBytes;
+        protected long   mTotalCount;
+        protected long   mPinnedBytes;
+        protected long   mPinnedCount;
+
+
+        protected void add(
+                long key,
+                long time,
+                long size)
+        {
+            if (mCount == mKeys.length) {
+                int length = mCount * 2;
+                mKeys = Arrays.copyOf(mKeys, length);
+                mTimes = Arrays.copyOf(mTimes, length);
+                mSizes = Arrays.copyOf(mSizes, length);
+            }
+            mKeys[mCount] = key;
+            mTimes[mCount] = time;
+            mSizes[mCount] = (int) size;
+            mCount++;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import java.io.File;
+
+
+/**
+ * Helpers for the TMS layer tile cache directory, which is laid out as zoom/x/y.tile
+ */
+public final class TileCacheUtil
+{
+    public static final String TILE_EXT = ".tile";
+
+
+    private TileCacheUtil()
+    {
+    }
+
+
+    public static File getTileFile(
+            File layerPath,
+            int zoom,
+            int x,
+            int y)
+    {
+        return new File(layerPath, zoom + File.separator + x + File.separator + y + TILE_EXT);
+    }
+
+
+    /**
+     * @return the single number key of the tile, x and y are less than 2^25 for all zoom levels
+     */
+    public static long getTileKey(
+            int zoom,
+            int x,
+            int y)
+    {
+        return ((long) zoom << 50) | ((long) x << 25) | y;
+    }
+
+
+    /**
+     * @return the tile number from the cache file name y.tile, or -1 if the name is not the
+     * name of a complete tile file, e.g. y.tile.part of an interrupted download
+     */
+    public static int parseTileName(String name)
+    {
+        if (!name.endsWith(TILE_EXT)) {
+            return -1;
+        }
+        int end = name.length() - TILE_EXT.length();
+        return name.indexOf('.') == end ? parseNumber(name, end) : -1;
+    }
+
+
+    /**
+     * @return the number before the first dot of the name, like the x directory or the y.png
+     * tile of a tile archive, or -1 if there is no number
+     */
+    public static int parseTileNumber(String name)
+    {
+        int end = name.indexOf('.');
+        if (end < 0) {
+            end = name.length();
+        }
+        return parseNumber(name, end);
+    }
+
+
+    protected static int parseNumber(
+            String name,
+            int end)
+    {
+        if (end == 0 || end > 9) {
+            return -1;
+        }
+
+        int value = 0;
+        for (int i = 0; i < end; i++) {
+            char c = name.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + (c - '0');
+        }
+        return value;
+    }
+}
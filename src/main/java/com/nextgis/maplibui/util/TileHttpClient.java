@@ -0,0 +1,386 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteException;
+import android.text.TextUtils;
+import android.util.Base64;
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.NetworkUtil;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * Tile fetch client for the bulk download. Connections are kept alive and returned to the
+ * platform pool after every tile (the response body is read to the end and the connection is
+ * not disconnected), so the requests to the same host go over the already opened connections.
+ * Cached tiles can be revalidated with If-Modified-Since and If-None-Match headers, the
+ * server answers 304 without the tile body if the tile is not changed.
+ */
+public class TileHttpClient
+{
+    public static final int RESULT_ERROR        = 0;
+    public static final int RESULT_DOWNLOADED   = 1;
+    public static final int RESULT_NOT_MODIFIED = 2;
+    // the server has no such tile, e.g. out of the coverage, the request should not be retried
+    public static final int RESULT_MISSING      = 3;
+
+    protected static final String ETAG_DB_FILE = "tile_etags.sqlite";
+    protected static final String ETAG_TABLE   = "etags";
+    protected static final String ETAG_KEY     = "tile";
+    protected static final String ETAG_VALUE   = "etag";
+
+    protected static final int TIMEOUT_CONNECTION = 10000;
+    protected static final int TIMEOUT_SOCKET     = 20000;
+
+    protected static final int BUFFER_SIZE = 8192;
+
+    protected final String   mUrlTemplate;
+    protected final String   mAuthorization;
+    protected final File     mLayerPath;
+    // the subdomains of the layer URL like http://{a,b,c}.tile.openstreetmap.org/{z}/{x}/{y}.png
+    protected final String   mSubdomainsMask;
+    protected final String[] mSubdomains;
+
+    protected final AtomicLong mBytesReceived = new AtomicLong();
+
+    protected SQLiteDatabase mETags;
+
+    // the client is shared by the download threads, each thread reads to its own buffer
+    protected final ThreadLocal<byte[]> mBuffer = new ThreadLocal<byte[]>()
+    {
+        @Override
+        protected byte[] initialValue()
+        {
+            return new byte[BUFFER_SIZE];
+        }
+    };
+
+
+    public TileHttpClient(
+            File layerPath,
+            String urlTemplate,
+            String login,
+            String password)
+    {
+        mLayerPath = layerPath;
+        mUrlTemplate = urlTemplate;
+        mSubdomainsMask = getSubdomainsMask(urlTemplate);
+        mSubdomains = null == mSubdomainsMask
+                      ? null
+                      : mSubdomainsMask.substring(1, mSubdomainsMask.length() - 1).split(",");
+
+        if (!TextUtils.isEmpty(login) && null != password) {
+            String credentials = login + ":" + password;
+            mAuthorization =
+                    "Basic " + Base64.encodeToString(credentials.getBytes(), Base64.NO_WRAP);
+        } else {
+            mAuthorization = null;
+        }
+    }
+
+
+    /**
+     * @return true if the URL template can be resolved by the client, otherwise the tile should
+     * be downloaded by the layer itself
+     */
+    public static boolean isSupported(String urlTemplate)
+    {
+        if (TextUtils.isEmpty(urlTemplate) || !urlTemplate.contains("{x}")
+                || !urlTemplate.contains("{y}") || !urlTemplate.contains("{z}")) {
+            return false;
+        }
+
+        // the other placeholders are resolved by the layer only
+        String url = urlTemplate.replace("{x}", "").replace("{y}", "").replace("{z}", "");
+        String mask = getSubdomainsMask(url);
+        if (null != mask) {
+            url = url.replace(mask, "");
+        }
+        return !url.contains("{");
+    }
+
+
+    /**
+     * @return the subdomains list of the URL template like {a,b,c} or null
+     */
+    public static String getSubdomainsMask(String urlTemplate)
+    {
+        int start = urlTemplate.indexOf('{');
+        while (start >= 0) {
+            int end = urlTemplate.indexOf('}', start);
+            if (end < 0) {
+                return null;
+            }
+            int comma = urlTemplate.indexOf(',', start);
+            if (comma >= 0 && comma < end) {
+                return urlTemplate.substring(start, end + 1);
+            }
+            start = urlTemplate.indexOf('{', end);
+        }
+        return null;
+    }
+
+
+    public String getTileUrl(TileItem tile)
+    {
+        String url = mUrlTemplate.replace("{x}", Integer.toString(tile.getX()))
+                .replace("{y}", Integer.toString(tile.getY()))
+                .replace("{z}", Integer.toString(tile.getZoomLevel()));
+
+        if (null != mSubdomains) {
+            int index = (tile.getX() + tile.getY()) % mSubdomains.length;
+            url = url.replace(mSubdomainsMask, mSubdomains[index].trim());
+        }
+
+        return url;
+    }
+
+
+    /**
+     * Downloads the tile to the layer cache. If the tile is already cached and revalidate is
+     * true, the conditional request is sent and the tile body is transferred only if it is
+     * changed on the server.
+     *
+     * @return one of RESULT_* constants
+     */
+    public int fetch(
+            TileItem tile,
+            boolean revalidate)
+    {
+        byte[] buffer = mBuffer.get();
+        File tileFile = TileCacheUtil.getTileFile(
+                mLayerPath, tile.getZoomLevel(), tile.getX(), tile.getY());
+        boolean isCached = tileFile.exists();
+        long key = TileCacheUtil.getTileKey(tile.getZoomLevel(), tile.getX(), tile.getY());
+
+        HttpURLConnection connection = null;
+        InputStream input = null;
+        try {
+            // the connection of maplib has the same User-Agent as the tile requests of the layer,
+            // the tile servers with the usage policy reject the default one
+            connection = NetworkUtil.getHttpConnection("GET", getTileUrl(tile), null, null);
+            if (null == connection) {
+                return RESULT_ERROR;
+            }
+            connection.setConnectTimeout(TIMEOUT_CONNECTION);
+            connection.setReadTimeout(TIMEOUT_SOCKET);
+            connection.setRequestProperty("Connection", "keep-alive");
+            if (null != mAuthorization) {
+                connection.setRequestProperty("Authorization", mAuthorization);
+            }
+
+            if (revalidate && isCached) {
+                connection.setIfModifiedSince(tileFile.lastModified());
+                String etag = getETag(key);
+                if (null != etag) {
+                    connection.setRequestProperty("If-None-Match", etag);
+                }
+            }
+
+            int code = connection.getResponseCode();
+            if (code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                //noinspection ResultOfMethodCallIgnored
+                tileFile.setLastModified(System.currentTimeMillis());
+                drain(connection.getInputStream(), buffer);
+                return RESULT_NOT_MODIFIED;
+            }
+
+            if (code != HttpURLConnection.HTTP_OK) {
+                if (Constants.DEBUG_MODE) {
+                    Log.d(Constants.TAG, "TileHttpClient, response " + code + " for " + tile);
+                }
+                // read the error body to return the connection to the pool
+                drain(code < HttpURLConnection.HTTP_BAD_REQUEST
+                      ? connection.getInputStream()
+                      : connection.getErrorStream(), buffer);
+                return isMissing(code) ? RESULT_MISSING : RESULT_ERROR;
+            }
+
+            input = connection.getInputStream();
+            File parent = tileFile.getParentFile();
+            if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+                drain(input, buffer);
+                return RESULT_ERROR;
+            }
+
+            // write to the temp file, a half written tile must never be visible in the cache
+            File temp = new File(parent, tileFile.getName() + ".part");
+            OutputStream output = new FileOutputStream(temp);
+            try {
+                int count;
+                while ((count = input.read(buffer)) != -1) {
+                    output.write(buffer, 0, count);
+                    mBytesReceived.addAndGet(count);
+                }
+            } finally {
+                output.close();
+            }
+
+            if (!temp.renameTo(tileFile)) {
+                //noinspection ResultOfMethodCallIgnored
+                temp.delete();
+                return RESULT_ERROR;
+            }
+
+            String etag = connection.getHeaderField("ETag");
+            if (null != etag) {
+                putETag(key, etag);
+            }
+
+            return RESULT_DOWNLOADED;
+        } catch (IOException | RuntimeException e) {
+            if (Constants.DEBUG_MODE) {
+                Log.d(Constants.TAG, "TileHttpClient, " + tile + ": " + e.getLocalizedMessage());
+            }
+            // the connection is in unknown state, do not return it to the pool
+            if (null != connection) {
+                connection.disconnect();
+            }
+            return RESULT_ERROR;
+        } finally {
+            if (null != input) {
+                try {
+                    input.close();
+                } catch (IOException e) {
+                    // do nothing
+                }
+            }
+        }
+    }
+
+
+    /**
+     * @return true if the response is the permanent answer, that the tile does not exist. The
+     * other errors, including the rejected credentials (401, 403), are the errors of the host, so
+     * the download is paused and the user is notified instead of skipping every tile.
+     */
+    public static boolean isMissing(int code)
+    {
+        return code == HttpURLConnection.HTTP_NO_CONTENT
+                || code == HttpURLConnection.HTTP_NOT_FOUND
+                || code == HttpURLConnection.HTTP_GONE;
+    }
+
+
+    /**
+     * @return the number of the tile body bytes received by the client
+     */
+    public long getBytesReceived()
+    {
+        return mBytesReceived.get();
+    }
+
+
+    public synchronized void close()
+    {
+        if (null != mETags) {
+            mETags.close();
+            mETags = null;
+        }
+    }
+
+
+    protected void drain(
+            InputStream input,
+            byte[] buffer)
+            throws IOException
+    {
+        if (null == input) {
+            return;
+        }
+
+        try {
+            //noinspection StatementWithEmptyBody
+            while (input.read(buffer) != -1) {
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+
+    protected synchronized SQLiteDatabase getETags()
+    {
+        if (null == mETags) {
+            try {
+                mETags = SQLiteDatabase.openOrCreateDatabase(
+                        new File(mLayerPath, ETAG_DB_FILE), null);
+                mETags.execSQL("CREATE TABLE IF NOT EXISTS " + ETAG_TABLE + " (" + ETAG_KEY
+                        + " INTEGER PRIMARY KEY, " + ETAG_VALUE + " TEXT)");
+            } catch (SQLiteException e) {
+                e.printStackTrace();
+                mETags = null;
+            }
+        }
+        return mETags;
+    }
+
+
+    protected synchronized String getETag(long key)
+    {
+        SQLiteDatabase db = getETags();
+        if (null == db) {
+            return null;
+        }
+
+        Cursor cursor = db.rawQuery("SELECT " + ETAG_VALUE + " FROM " + ETAG_TABLE + " WHERE "
+                + ETAG_KEY + " = ?", new String[] {Long.toString(key)});
+        try {
+            return cursor.moveToFirst() ? cursor.getString(0) : null;
+        } finally {
+            cursor.close();
+        }
+    }
+
+
+    protected synchronized void putETag(
+            long key,
+            String etag)
+    {
+        SQLiteDatabase db = getETags();
+        if (null == db) {
+            return;
+        }
+
+        try {
+            db.execSQL("INSERT OR REPLACE INTO " + ETAG_TABLE + " (" + ETAG_KEY + ", " + ETAG_VALUE
+                    + ") VALUES (?, ?)", new Object[] {key, etag});
+        } catch (SQLiteException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Comparator;
+
+
+/**
+ * Single file tile package. The file starts with the header, then the tile data follows back to
+ * back, and the sorted index of the tiles (tile key, data offset and data length) is at the end
+ * of the file. The package is copied between devices as one file and a tile is read by the
+ * binary search in the index plus one copy from the memory mapped data.
+ * <p>
+ * Header: magic (4 bytes), version (int), TMS type (int), tile count (int), index offset (long).
+ * All numbers are big-endian.
+ */
+public class TilePackage
+{
+    public static final String EXT           = ".ngtp";
+    // the package of the local TMS layer in the layer directory
+    public static final String LAYER_PACKAGE = "tiles" + EXT;
+
+    protected static final int MAGIC       = 0x4E475450; // NGTP
+    protected static final int VERSION     = 1;
+    protected static final int HEADER_SIZE = 24;
+    protected static final int ENTRY_SIZE  = 20;
+
+    // the data is mapped by chunks, so a big package does not need one huge address range
+    protected static final long MAP_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    protected final File        mFile;
+    protected final FileChannel mChannel;
+    protected final int         mTmsType;
+    protected final long[]      mKeys;
+    protected final long[]      mOffsets;
+    protected final int[]       mLengths;
+
+    protected MappedByteBuffer[] mChunks;
+
+
+    protected TilePackage(
+            File file,
+            FileChannel channel,
+            int tmsType,
+            long[] keys,
+            long[] offsets,
+            int[] lengths)
+    {
+        mFile = file;
+        mChannel = channel;
+        mTmsType = tmsType;
+        mKeys = keys;
+        mOffsets = offsets;
+        mLengths = lengths;
+    }
+
+
+    /**
+     * Maps the package data to memory. If the mapping is failed (for example, there is no free
+     * address space) the tiles are read by the positional reads.
+     */
+    protected void map(long dataEnd)
+    {
+        int count = (int) ((dataEnd + MAP_CHUNK_SIZE - 1) / MAP_CHUNK_SIZE);
+        MappedByteBuffer[] chunks = new MappedByteBuffer[count];
+        try {
+            for (int i = 0; i < count; i++) {
+                long position = i * MAP_CHUNK_SIZE;
+                long size = Math.min(MAP_CHUNK_SIZE, dataEnd - position);
+                chunks[i] = mChannel.map(FileChannel.MapMode.READ_ONLY, position, size);
+            }
+            mChunks = chunks;
+        } catch (IOException | OutOfMemoryError e) {
+            e.printStackTrace();
+            mChunks = null;
+        }
+    }
+
+
+    /**
+     * Opens the package and reads the tile index to memory
+     */
+    public static TilePackage open(File file)
+            throws IOException
+    {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            header.flip();
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a tile package: " + file.getName());
+            }
+            int version = header.getInt();
+            if (version > VERSION) {
+                throw new IOException("Unsupported tile package version " + version);
+            }
+            int tmsType = header.getInt();
+            int count = header.getInt();
+            long indexOffset = header.getLong();
+
+            ByteBuffer index = ByteBuffer.allocate(count * ENTRY_SIZE);
+            readFully(channel, index, indexOffset);
+            index.flip();
+
+            long[] keys = new long[count];
+            long[] offsets = new long[count];
+            int[] lengths = new int[count];
+            for (int i = 0; i < count; i++) {
+                keys[i] = index.getLong();
+                offsets[i] = index.getLong();
+                lengths[i] = index.getInt();
+            }
+
+            TilePackage tilePackage =
+                    new TilePackage(file, channel, tmsType, keys, offsets, lengths);
+            tilePackage.map(indexOffset);
+            return tilePackage;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+
+    public File getFile()
+    {
+        return mFile;
+    }
+
+
+    public int getTmsType()
+    {
+        return mTmsType;
+    }
+
+
+    public int getTileCount()
+    {
+        return mKeys.length;
+    }
+
+
+    public boolean hasTile(
+            int zoom,
+            int x,
+            int y)
+    {
+        return Arrays.binarySearch(mKeys, TileCacheUtil.getTileKey(zoom, x, y)) >= 0;
+    }
+
+
+    /**
+     * Reads the tile data. The mapped chunk is duplicated for the read and the positional read
+     * does not move the channel position, so the tiles can be read by several draw threads at
+     * once.
+     *
+     * @return the tile data or null if there is no such tile in the package
+     */
+    public byte[] getTile(
+            int zoom,
+            int x,
+            int y)
+            throws IOException
+    {
+        int i = Arrays.binarySearch(mKeys, TileCacheUtil.getTileKey(zoom, x, y));
+        if (i < 0) {
+            return null;
+        }
+        return getTileData(i);
+    }
+
+
+    protected byte[] getTileData(int i)
+            throws IOException
+    {
+        byte[] data = new byte[mLengths[i]];
+        long offset = mOffsets[i];
+
+        MappedByteBuffer[] chunks = mChunks;
+        if (null != chunks) {
+            int chunk = (int) (offset / MAP_CHUNK_SIZE);
+            int position = (int) (offset - chunk * MAP_CHUNK_SIZE);
+            if (position + data.length <= chunks[chunk].capacity()) {
+                ByteBuffer buffer = chunks[chunk].duplicate();
+                buffer.position(position);
+                buffer.get(data);
+                return data;
+            }
+            // the tile crosses the chunk border
+        }
+
+        readFully(mChannel, ByteBuffer.wrap(data), offset);
+        return data;
+    }
+
+
+    public void close()
+    {
+        mChunks = null;
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    protected static void readFully(
+            FileChannel channel,
+            ByteBuffer buffer,
+            long position)
+            throws IOException
+    {
+        while (buffer.hasRemaining()) {
+            int count = channel.read(buffer, position);
+            if (count < 0) {
+                throw new IOException("Unexpected end of the tile package");
+            }
+            position += count;
+        }
+    }
+
+
+    /**
+     * Writes the package to the temp file, which is renamed to the target file on
+     * {@link #finish()}, so a broken write never replaces the existing package.
+     */
+    public static class Writer
+    {
+        protected final File             mFile;
+        protected final File             mTemp;
+        protected final RandomAccessFile mOutput;
+        protected final int              mTmsType;
+        protected final byte[]           mBuffer = new byte[8192];
+
+        protected long[] mKeys    = new long[1024];
+        protected long[] mOffsets = new long[1024];
+        protected int[]  mLengths = new int[1024];
+        protected int    mCount;
+        protected long   mPosition;
+
+
+        public Writer(
+                File file,
+                int tmsType)
+                throws IOException
+        {
+            mFile = file;
+            mTemp = new File(file.getParentFile(), file.getName() + ".tmp");
+            mTmsType = tmsType;
+            mOutput = new RandomAccessFile(mTemp, "rw");
+            mOutput.setLength(0);
+            mOutput.write(new byte[HEADER_SIZE]);
+            mPosition = HEADER_SIZE;
+        }
+
+
+        public void addTile(
+                int zoom,
+                int x,
+                int y,
+                File tileFile)
+                throws IOException
+        {
+            InputStream input = new FileInputStream(tileFile);
+            try {
+                addTile(zoom, x, y, input);
+            } finally {
+                input.close();
+            }
+        }
+
+
+        public void addTile(
+                int zoom,
+                int x,
+                int y,
+                InputStream input)
+                throws IOException
+        {
+            int count;
+            int length = 0;
+            while ((count = input.read(mBuffer)) != -1) {
+                mOutput.write(mBuffer, 0, count);
+                length += count;
+            }
+
+            add(TileCacheUtil.getTileKey(zoom, x, y), length);
+            mPosition += length;
+        }
+
+
+        protected void add(
+                long key,
+                int length)
+        {
+            if (mCount == mKeys.length) {
+                int size = mCount * 2;
+                mKeys = Arrays.copyOf(mKeys, size);
+                mOffsets = Arrays.copyOf(mOffsets, size);
+                mLengths = Arrays.copyOf(mLengths, size);
+            }
+            mKeys[mCount] = key;
+            mOffsets[mCount] = mPosition;
+            mLengths[mCount] = length;
+            mCount++;
+        }
+
+
+        /**
+         * Copies all tiles of the other package, for example, to add new tiles to the existing
+         * package
+         */
+        public void addAll(TilePackage source)
+                throws IOException
+        {
+            for (int i = 0; i < source.mKeys.length; i++) {
+                byte[] data = source.getTileData(i);
+                add(source.mKeys[i], data.length);
+                mOutput.write(data);
+                mPosition += data.length;
+            }
+        }
+
+
+        public int getTileCount()
+        {
+            return mCount;
+        }
+
+
+        /**
+         * Writes the sorted index and the header and replaces the target file
+         */
+        public void finish()
+                throws IOException
+        {
+            try {
+                Integer[] order = new Integer[mCount];
+                for (int i = 0; i < mCount; i++) {
+                    order[i] = i;
+                }
+                Arrays.sort(order, new Comparator<Integer>()
+                {
+                    @Override
+                    public int compare(
+                            Integer lhs,
+                            Integer rhs)
+                    {
+                        long l = mKeys[lhs], r = mKeys[rhs];
+                        return l < r ? -1 : (l == r ? 0 : 1);
+                    }
+                });
+
+                ByteBuffer index = ByteBuffer.allocate(mCount * ENTRY_SIZE);
+                long previous = -1;
+                int count = 0;
+                for (Integer i : order) {
+                    // the last added tile wins, the index keys must be unique
+                    if (mKeys[i] == previous) {
+                        index.position(index.position() - ENTRY_SIZE);
+                        count--;
+                    }
+                    index.putLong(mKeys[i]);
+                    index.putLong(mOffsets[i]);
+                    index.putInt(mLengths[i]);
+                    previous = mKeys[i];
+                    count++;
+                }
+                mOutput.write(index.array(), 0, index.position());
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putInt(MAGIC);
+                header.putInt(VERSION);
+                header.putInt(mTmsType);
+                header.putInt(count);
+                header.putLong(mPosition);
+                mOutput.seek(0);
+                mOutput.write(header.array());
+                mOutput.getFD().sync();
+            } finally {
+                mOutput.close();
+            }
+
+            if (mFile.exists() && !mFile.delete() || !mTemp.renameTo(mFile)) {
+                throw new IOException("Failed to write the tile package " + mFile.getName());
+            }
+        }
+
+
+        /**
+         * Drops the not finished package
+         */
+        public void abort()
+        {
+            try {
+                mOutput.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            mTemp.delete();
+        }
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.util.FileUtil;
+import com.nextgis.maplib.util.GeoConstants;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * The tile ranges of the layer, which are downloaded by the prefetch job and must not be
+ * evicted from the cache until the job is finished or canceled. The pins are kept in the layer
+ * directory, because the download service runs in the separate process, and are dropped with
+ * the cache.
+ */
+public class TilePins
+{
+    public static final String PINS_FILE = "tile_pins.json";
+
+    protected static final String JSON_MINX_KEY     = "minx";
+    protected static final String JSON_MAXX_KEY     = "maxx";
+    protected static final String JSON_MINY_KEY     = "miny";
+    protected static final String JSON_MAXY_KEY     = "maxy";
+    protected static final String JSON_ZOOMS_KEY    = "zooms";
+    protected static final String JSON_TMS_TYPE_KEY = "tms_type";
+
+    protected final List<Pin> mPins;
+
+
+    protected TilePins(List<Pin> pins)
+    {
+        mPins = pins;
+    }
+
+
+    /**
+     * Pins the tiles of the extent, the same pin is not added twice
+     */
+    public static synchronized void pin(
+            File layerPath,
+            GeoEnvelope env,
+            List<Integer> zoomList,
+            int tmsType)
+    {
+        TilePins pins = load(layerPath);
+        Pin pin = new Pin(env, zoomList, tmsType);
+        for (Pin existing : pins.mPins) {
+            if (existing.equals(pin)) {
+                return;
+            }
+        }
+        pins.mPins.add(pin);
+        save(layerPath, pins);
+    }
+
+
+    /**
+     * Releases the pin of the finished or canceled prefetch job
+     */
+    public static synchronized void unpin(
+            File layerPath,
+            GeoEnvelope env,
+            List<Integer> zoomList,
+            int tmsType)
+    {
+        TilePins pins = load(layerPath);
+        if (!pins.mPins.remove(new Pin(env, zoomList, tmsType))) {
+            return;
+        }
+
+        if (pins.mPins.isEmpty()) {
+            clear(layerPath);
+            return;
+        }
+        save(layerPath, pins);
+    }
+
+
+    protected static void save(
+            File layerPath,
+            TilePins pins)
+    {
+        try {
+            JSONArray array = new JSONArray();
+            for (Pin item : pins.mPins) {
+                array.put(item.toJSON());
+            }
+            FileUtil.writeToFile(new File(layerPath, PINS_FILE), array.toString());
+        } catch (IOException | JSONException e) {
+            e.printStackTrace();
+        }
+    }
+
+
+    public static synchronized void clear(File layerPath)
+    {
+        //noinspection ResultOfMethodCallIgnored
+        new File(layerPath, PINS_FILE).delete();
+    }
+
+
+    public static synchronized TilePins load(File layerPath)
+    {
+        List<Pin> pins = new ArrayList<>();
+        File file = new File(layerPath, PINS_FILE);
+        if (file.exists()) {
+            try {
+                JSONArray array = new JSONArray(FileUtil.readFromFile(file));
+                for (int i = 0; i < array.length(); i++) {
+                    pins.add(Pin.fromJSON(array.getJSONObject(i)));
+                }
+            } catch (IOException | JSONException e) {
+                e.printStackTrace();
+            }
+        }
+        return new TilePins(pins);
+    }
+
+
+    public boolean isEmpty()
+    {
+        return mPins.isEmpty();
+    }
+
+
+    /**
+     * @param x
+     *         the wrapped tile x
+     * @param y
+     *         the tile y as it is stored in the cache directory
+     */
+    public boolean isPinned(
+            int zoom,
+            int x,
+            int y)
+    {
+        for (Pin pin : mPins) {
+            if (pin.contains(zoom, x, y)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    protected static class Pin
+    {
+        protected final GeoEnvelope   mEnvelope;
+        protected final List<Integer> mZoomList;
+        protected final int           mTmsType;
+
+
+        protected Pin(
+                GeoEnvelope envelope,
+                List<Integer> zoomList,
+                int tmsType)
+        {
+            mEnvelope = envelope;
+            mZoomList = zoomList;
+            mTmsType = tmsType;
+        }
+
+
+        protected boolean contains(
+                int zoom,
+                int x,
+                int y)
+        {
+            if (!mZoomList.contains(zoom)) {
+                return false;
+            }
+
+            int tilesInMap = 1 << zoom;
+            int[] range = TileRangeCursor.getRange(mEnvelope, zoom);
+            int fromY = range[2], toY = range[3];
+            if (mTmsType == GeoConstants.TMSTYPE_OSM) {
+                fromY = tilesInMap - range[3];
+                toY = tilesInMap - range[2];
+            }
+            if (y < fromY || y >= toY) {
+                return false;
+            }
+
+            // the range x is not wrapped
+            int dx = (x - range[0]) % tilesInMap;
+            if (dx < 0) {
+                dx += tilesInMap;
+            }
+            return dx < range[1] - range[0];
+        }
+
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof Pin)) {
+                return false;
+            }
+            Pin other = (Pin) o;
+            return mTmsType == other.mTmsType && mZoomList.equals(other.mZoomList)
+                    && mEnvelope.getMinX() == other.mEnvelope.getMinX()
+                    && mEnvelope.getMaxX() == other.mEnvelope.getMaxX()
+                    && mEnvelope.getMinY() == other.mEnvelope.getMinY()
+                    && mEnvelope.getMaxY() == other.mEnvelope.getMaxY();
+        }
+
+
+        @Override
+        public int hashCode()
+        {
+            return mZoomList.hashCode() + mTmsType;
+        }
+
+
+        protected JSONObject toJSON()
+                throws JSONException
+        {
+            JSONObject json = new JSONObject();
+            json.put(JSON_MINX_KEY, mEnvelope.getMinX());
+            json.put(JSON_MAXX_KEY, mEnvelope.getMaxX());
+            json.put(JSON_MINY_KEY, mEnvelope.getMinY());
+            json.put(JSON_MAXY_KEY, mEnvelope.getMaxY());
+            json.put(JSON_TMS_TYPE_KEY, mTmsType);
+            JSONArray zooms = new JSONArray();
+            for (Integer zoom : mZoomList) {
+                zooms.put(zoom);
+            }
+            json.put(JSON_ZOOMS_KEY, zooms);
+            return json;
+        }
+
+
+        protected static Pin fromJSON(JSONObject json)
+                throws JSONException
+        {
+            GeoEnvelope env = new GeoEnvelope(json.getDouble(JSON_MINX_KEY),
+                    json.getDouble(JSON_MAXX_KEY), json.getDouble(JSON_MINY_KEY),
+                    json.getDouble(JSON_MAXY_KEY));
+            JSONArray zooms = json.getJSONArray(JSON_ZOOMS_KEY);
+            List<Integer> zoomList = new ArrayList<>(zooms.length());
+            for (int i = 0; i < zooms.length(); i++) {
+                zoomList.add(zooms.getInt(i));
+            }
+            return new Pin(env, zoomList, json.getInt(JSON_TMS_TYPE_KEY));
+        }
+    }
+}
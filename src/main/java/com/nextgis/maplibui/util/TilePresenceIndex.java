@@ -0,0 +1,467 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import android.util.Log;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.util.Constants;
+import com.nextgis.maplib.util.GeoConstants;
+import com.nextgis.maplib.util.MapUtil;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+
+/**
+ * In-memory index of the tiles which are present in the TMS layer cache directory. The index
+ * keeps the sorted packed (x, y) keys of the cached tiles per zoom level, 8 bytes per tile, so
+ * the check of the tile and the count of cached tiles in the range do not touch the file system. A zoom level is read from the cache
+ * directory once, on the first request, and then kept up to date by {@link #setPresent}.
+ * <p>
+ * The index is kept per process, the UI and the tile download service run in the different
+ * processes. The process which deletes the tiles bumps the cache generation in the layer
+ * directory ({@link #invalidate}, {@link #notifyChanged}), the index of the other process is
+ * dropped by the next {@link #getIndex} with the other generation.
+ */
+public class TilePresenceIndex
+{
+    protected static final String GENERATION_FILE = ".tile_generation";
+
+    protected static final ConcurrentHashMap<String, TilePresenceIndex> mIndexes =
+            new ConcurrentHashMap<>();
+    protected static final Random mRandom = new Random();
+
+    protected final File                   mPath;
+    protected final Map<Integer, ZoomKeys> mZooms;
+
+    protected volatile long mGeneration;
+
+
+    protected TilePresenceIndex(
+            File path,
+            long generation)
+    {
+        mPath = path;
+        mZooms = new HashMap<>();
+        mGeneration = generation;
+    }
+
+
+    /**
+     * @return the shared index for the layer cache directory, the index is read again if the
+     * cache was changed by the other process
+     */
+    public static TilePresenceIndex getIndex(File layerPath)
+    {
+        String key = layerPath.getAbsolutePath();
+        long generation = readGeneration(layerPath);
+        TilePresenceIndex index = mIndexes.get(key);
+        while (null == index || index.mGeneration != generation) {
+            TilePresenceIndex fresh = new TilePresenceIndex(layerPath, generation);
+            boolean replaced = null == index
+                               ? null == mIndexes.putIfAbsent(key, fresh)
+                               : mIndexes.replace(key, index, fresh);
+            index = replaced ? fresh : mIndexes.get(key);
+        }
+        return index;
+    }
+
+
+    /**
+     * Drops the index of all processes, for example, after the cache is cleared. The next
+     * request reads the cache directory again.
+     */
+    public static void invalidate(File layerPath)
+    {
+        writeGeneration(layerPath);
+        mIndexes.remove(layerPath.getAbsolutePath());
+    }
+
+
+    /**
+     * Tells the other processes, that the tiles were deleted or added by this process. The
+     * index of this process is kept, it is updated by {@link #setPresent}.
+     */
+    public static void notifyChanged(File layerPath)
+    {
+        long generation = writeGeneration(layerPath);
+        TilePresenceIndex index = mIndexes.get(layerPath.getAbsolutePath());
+        if (null != index) {
+            index.mGeneration = generation;
+        }
+    }
+
+
+    protected static long readGeneration(File layerPath)
+    {
+        File file = new File(layerPath, GENERATION_FILE);
+        if (!file.exists()) {
+            return 0;
+        }
+
+        DataInputStream stream = null;
+        try {
+            stream = new DataInputStream(new FileInputStream(file));
+            return stream.readLong();
+        } catch (IOException e) {
+            // the file is being written, the index is read again on the next request
+            return -1;
+        } finally {
+            if (null != stream) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+
+    protected static long writeGeneration(File layerPath)
+    {
+        if (!layerPath.isDirectory()) {
+            return 0;
+        }
+
+        long generation;
+        synchronized (mRandom) {
+            do {
+                generation = mRandom.nextLong();
+            } while (generation == 0 || generation == -1);
+        }
+
+        File file = new File(layerPath, GENERATION_FILE);
+        File temp = new File(layerPath, GENERATION_FILE + ".tmp");
+        DataOutputStream stream = null;
+        try {
+            stream = new DataOutputStream(new FileOutputStream(temp));
+            stream.writeLong(generation);
+            stream.close();
+            stream = null;
+            if (!temp.renameTo(file)) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+                //noinspection ResultOfMethodCallIgnored
+                temp.renameTo(file);
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (null != stream) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return generation;
+    }
+
+
+    protected static long getKey(
+            int x,
+            int y)
+    {
+        return ((long) x << 32) | (y & 0xFFFFFFFFL);
+    }
+
+
+    public synchronized boolean isPresent(
+            int zoom,
+            int x,
+            int y)
+    {
+        return getZoom(zoom).contains(getKey(x, y));
+    }
+
+
+    public synchronized void setPresent(
+            int zoom,
+            int x,
+            int y,
+            boolean present)
+    {
+        ZoomKeys keys = getZoom(zoom);
+        if (present) {
+            keys.add(getKey(x, y));
+        } else {
+            keys.remove(getKey(x, y));
+        }
+    }
+
+
+    /**
+     * Counts the cached tiles of the extent without the file system access
+     */
+    public synchronized long countPresent(
+            GeoEnvelope bounds,
+            int zoom,
+            int tmsType)
+    {
+        ZoomKeys keys = getZoom(zoom);
+        if (keys.isEmpty()) {
+            return 0;
+        }
+
+        int tilesInMap = 1 << zoom;
+        int[] range = TileRangeCursor.getRange(bounds, zoom);
+        int fromY = range[2], toY = range[3];
+        if (tmsType == GeoConstants.TMSTYPE_OSM) {
+            fromY = tilesInMap - range[3];
+            toY = tilesInMap - range[2];
+        }
+        if (fromY >= toY) {
+            return 0;
+        }
+
+        long count = 0;
+        for (int x = range[0]; x < range[1]; x++) {
+            int realX = x % tilesInMap;
+            if (realX < 0) {
+                realX += tilesInMap;
+            }
+            count += keys.count(getKey(realX, fromY), getKey(realX, toY));
+        }
+        return count;
+    }
+
+
+    protected ZoomKeys getZoom(int zoom)
+    {
+        ZoomKeys keys = mZooms.get(zoom);
+        if (null == keys) {
+            keys = read(zoom);
+            mZooms.put(zoom, keys);
+        }
+        return keys;
+    }
+
+
+    protected ZoomKeys read(int zoom)
+    {
+        long start = System.currentTimeMillis();
+
+        File[] xDirs = new File(mPath, Integer.toString(zoom)).listFiles();
+        if (null == xDirs) {
+            return new ZoomKeys(new long[0], 0);
+        }
+
+        long[] keys = new long[64];
+        int count = 0;
+        for (File xDir : xDirs) {
+            if (!xDir.isDirectory() || !MapUtil.isParsable(xDir.getName())) {
+                continue;
+            }
+
+            String[] names = xDir.list();
+            if (null == names) {
+                continue;
+            }
+
+            int x = Integer.parseInt(xDir.getName());
+            if (x < 0) {
+                continue;
+            }
+            if (keys.length - count < names.length) {
+                keys = Arrays.copyOf(keys, Math.max(count + names.length, keys.length * 2));
+            }
+            for (String name : names) {
+                int y = TileCacheUtil.parseTileName(name);
+                if (y >= 0) {
+                    keys[count++] = getKey(x, y);
+                }
+            }
+        }
+
+        Arrays.sort(keys, 0, count);
+        // the x directories like 1 and 01 give the same keys
+        int size = 0;
+        for (int i = 0; i < count; i++) {
+            if (0 == size || keys[size - 1] != keys[i]) {
+                keys[size++] = keys[i];
+            }
+        }
+
+        if (Constants.DEBUG_MODE) {
+            Log.d(Constants.TAG, "TilePresenceIndex: zoom " + zoom + " of " + mPath.getName()
+                    + ", " + size + " tiles, read in " + (System.currentTimeMillis() - start)
+                    + " ms");
+        }
+
+        return new ZoomKeys(keys, size);
+    }
+
+
+    /**
+     * The sorted keys of the cached tiles of one zoom level. The added keys are collected in the
+     * small sorted buffer, which is merged to the main array when it is full, so the download of
+     * the tile does not move the whole array.
+     */
+    protected static class ZoomKeys
+    {
+        protected static final int MAX_PENDING = 1024;
+
+        protected long[] mKeys;
+        protected int    mSize;
+        protected long[] mPending;
+        protected int    mPendingSize;
+
+
+        /**
+         * @param keys the sorted keys without duplicates
+         */
+        protected ZoomKeys(
+                long[] keys,
+                int size)
+        {
+            mKeys = keys;
+            mSize = size;
+            mPending = new long[0];
+        }
+
+
+        public boolean isEmpty()
+        {
+            return 0 == mSize && 0 == mPendingSize;
+        }
+
+
+        public int size()
+        {
+            return mSize + mPendingSize;
+        }
+
+
+        public boolean contains(long key)
+        {
+            return Arrays.binarySearch(mKeys, 0, mSize, key) >= 0
+                   || Arrays.binarySearch(mPending, 0, mPendingSize, key) >= 0;
+        }
+
+
+        public void add(long key)
+        {
+            if (Arrays.binarySearch(mKeys, 0, mSize, key) >= 0) {
+                return;
+            }
+
+            // the tiles are mostly downloaded in the order of keys
+            if (0 == mPendingSize && (0 == mSize || key > mKeys[mSize - 1])) {
+                if (mSize == mKeys.length) {
+                    mKeys = Arrays.copyOf(mKeys, mSize + Math.max(16, mSize / 2));
+                }
+                mKeys[mSize++] = key;
+                return;
+            }
+
+            int index = Arrays.binarySearch(mPending, 0, mPendingSize, key);
+            if (index >= 0) {
+                return;
+            }
+            index = -index - 1;
+            if (mPendingSize == mPending.length) {
+                mPending = Arrays.copyOf(mPending, Math.min(MAX_PENDING, mPendingSize * 2 + 16));
+            }
+            System.arraycopy(mPending, index, mPending, index + 1, mPendingSize - index);
+            mPending[index] = key;
+            mPendingSize++;
+
+            if (mPendingSize == MAX_PENDING) {
+                merge();
+            }
+        }
+
+
+        public void remove(long key)
+        {
+            int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+            if (index >= 0) {
+                System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+                mSize--;
+                return;
+            }
+
+            index = Arrays.binarySearch(mPending, 0, mPendingSize, key);
+            if (index >= 0) {
+                System.arraycopy(mPending, index + 1, mPending, index, mPendingSize - index - 1);
+                mPendingSize--;
+            }
+        }
+
+
+        /**
+         * @return the count of keys from the from key inclusive to the to key exclusive
+         */
+        public int count(
+                long from,
+                long to)
+        {
+            merge();
+            return lowerBound(to) - lowerBound(from);
+        }
+
+
+        protected int lowerBound(long key)
+        {
+            int index = Arrays.binarySearch(mKeys, 0, mSize, key);
+            return index >= 0 ? index : -index - 1;
+        }
+
+
+        protected void merge()
+        {
+            if (0 == mPendingSize) {
+                return;
+            }
+
+            int size = mSize + mPendingSize;
+            long[] keys = mKeys.length >= size ? mKeys : new long[size + size / 2];
+            // merged from the end, so the main array can be merged in place
+            int i = mSize - 1, j = mPendingSize - 1;
+            for (int k = size - 1; k >= 0; k--) {
+                if (j < 0 || (i >= 0 && mKeys[i] > mPending[j])) {
+                    keys[k] = mKeys[i--];
+                } else {
+                    keys[k] = mPending[j--];
+                }
+            }
+
+            mKeys = keys;
+            mSize = size;
+            mPendingSize = 0;
+        }
+    }
+}
@@ -0,0 +1,266 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.datasource.TileItem;
+import com.nextgis.maplib.util.GeoConstants;
+
+import java.util.List;
+
+
+/**
+ * Lazy cursor over the tiles of an extent for the list of zoom levels. The cursor keeps only
+ * the primitive x/y ranges of the current zoom, so the memory does not depend on the extent
+ * size. The enumeration order is the same as in MapUtil.getTileItems(): x columns from left to
+ * right, tiles inside a column from bottom to top.
+ */
+public class TileRangeCursor
+{
+    protected final GeoEnvelope   mBounds;
+    protected final List<Integer> mZoomList;
+    protected final int           mTmsType;
+
+    protected int  mZoomIndex;
+    protected int  mZoom;
+    protected int  mTilesInMap;
+    protected int  mBegX, mEndX, mBegY, mEndY;
+    protected long mIndex;  // tile index inside the current zoom
+    protected int  mX, mY;  // not wrapped grid position
+    protected boolean mHasTile;
+
+
+    public TileRangeCursor(
+            GeoEnvelope bounds,
+            List<Integer> zoomList,
+            int tmsType)
+    {
+        mBounds = bounds;
+        mZoomList = zoomList;
+        mTmsType = tmsType;
+        seek(0, 0);
+    }
+
+
+    /**
+     * Moves the cursor before the tile with index tileIndex of zoom level with index
+     * zoomIndex. The next call of {@link #next()} returns this tile.
+     */
+    public void seek(
+            int zoomIndex,
+            long tileIndex)
+    {
+        mHasTile = false;
+        mZoomIndex = zoomIndex;
+        if (mZoomIndex < mZoomList.size()) {
+            setZoom(mZoomList.get(mZoomIndex));
+        }
+        mIndex = tileIndex - 1;
+    }
+
+
+    /**
+     * Moves the cursor to the next tile.
+     *
+     * @return false if there are no more tiles
+     */
+    public boolean next()
+    {
+        while (mZoomIndex < mZoomList.size()) {
+            long count = getZoomTileCount();
+            if (++mIndex < count) {
+                int height = mEndY - mBegY;
+                mX = mBegX + (int) (mIndex / height);
+                mY = mBegY + (int) (mIndex % height);
+                mHasTile = true;
+                return true;
+            }
+
+            if (++mZoomIndex < mZoomList.size()) {
+                setZoom(mZoomList.get(mZoomIndex));
+                mIndex = -1;
+            }
+        }
+
+        mHasTile = false;
+        return false;
+    }
+
+
+    public boolean hasTile()
+    {
+        return mHasTile;
+    }
+
+
+    public int getZoomIndex()
+    {
+        return mZoomIndex;
+    }
+
+
+    public int getZoom()
+    {
+        return mZoom;
+    }
+
+
+    /**
+     * @return the current tile index inside the current zoom level
+     */
+    public long getIndex()
+    {
+        return mIndex;
+    }
+
+
+    public int getX()
+    {
+        int x = mX % mTilesInMap;
+        return x < 0 ? x + mTilesInMap : x;
+    }
+
+
+    public int getY()
+    {
+        return getY(mTmsType);
+    }
+
+
+    /**
+     * @return the tile y for the layer with other TMS type, so one plan can be used for
+     * several layers
+     */
+    public int getY(int tmsType)
+    {
+        return tmsType == GeoConstants.TMSTYPE_OSM ? mTilesInMap - mY - 1 : mY;
+    }
+
+
+    /**
+     * @return the number of tiles of the current zoom level
+     */
+    public long getZoomTileCount()
+    {
+        return (long) (mEndX - mBegX) * (mEndY - mBegY);
+    }
+
+
+    /**
+     * @return the number of tiles for all zoom levels
+     */
+    public long getCount()
+    {
+        long count = 0;
+        for (Integer zoom : mZoomList) {
+            count += getTileCount(mBounds, zoom);
+        }
+        return count;
+    }
+
+
+    /**
+     * Creates the tile item for the current tile. Call it only when the object is really
+     * needed, the cursor itself does not allocate anything per tile.
+     */
+    public TileItem getTileItem()
+    {
+        return getTileItem(mTmsType);
+    }
+
+
+    public TileItem getTileItem(int tmsType)
+    {
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / mTilesInMap;
+        double minX = -GeoConstants.MERCATOR_MAX + mX * tileSize;
+        double minY = -GeoConstants.MERCATOR_MAX + mY * tileSize;
+        GeoEnvelope env = new GeoEnvelope(minX, minX + tileSize, minY, minY + tileSize);
+        return new TileItem(getX(), getY(tmsType), mZoom, env);
+    }
+
+
+    protected void setZoom(int zoom)
+    {
+        mZoom = zoom;
+        mTilesInMap = 1 << zoom;
+        int[] range = getRange(mBounds, zoom);
+        mBegX = range[0];
+        mEndX = range[1];
+        mBegY = range[2];
+        mEndY = range[3];
+    }
+
+
+    /**
+     * @return {begX, endX, begY, endY} of the not wrapped tile grid, the end values are
+     * exclusive
+     */
+    protected static int[] getRange(
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        int tilesInMap = 1 << zoom;
+        double halfTilesInMap = tilesInMap * 0.5;
+        double tileSize = GeoConstants.MERCATOR_MAX * 2 / tilesInMap;
+
+        int begX = (int) Math.floor(bounds.getMinX() / tileSize + halfTilesInMap);
+        int begY = (int) Math.floor(bounds.getMinY() / tileSize + halfTilesInMap);
+        int endX = (int) Math.ceil(bounds.getMaxX() / tileSize + halfTilesInMap);
+        int endY = (int) Math.ceil(bounds.getMaxY() / tileSize + halfTilesInMap);
+
+        if (begX == endX) {
+            endX++;
+        }
+        if (begY == endY) {
+            endY++;
+        }
+        if (begY < 0) {
+            begY = 0;
+        }
+        if (endY > tilesInMap) {
+            endY = tilesInMap;
+        }
+        if (endY < begY) {
+            endY = begY;
+        }
+        // do not walk the same wrapped column twice
+        if (endX - begX > tilesInMap) {
+            endX = begX + tilesInMap;
+        }
+
+        return new int[] {begX, endX, begY, endY};
+    }
+
+
+    /**
+     * Counts the tiles of the extent for the zoom level without enumeration
+     */
+    public static long getTileCount(
+            GeoEnvelope bounds,
+            int zoom)
+    {
+        int[] range = getRange(bounds, zoom);
+        return (long) (range[1] - range[0]) * (range[3] - range[2]);
+    }
+}
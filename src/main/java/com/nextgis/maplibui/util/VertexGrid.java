@@ -0,0 +1,196 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * The uniform grid index over the screen points of the rings. The index is built once for the
+ * point arrays and answers the nearest point query in the rectangle without allocations, so the
+ * tap on a geometry with tens of thousands of vertices does not scan every vertex.
+ */
+public class VertexGrid {
+    // the average number of the points in a cell
+    protected static final int POINTS_PER_CELL = 4;
+    protected static final int MAX_CELLS_PER_SIDE = 1024;
+
+    protected float mMinX, mMinY, mCellWidth, mCellHeight;
+    protected int mColumns, mRows;
+    protected int[] mCellStart = new int[0];
+    protected int[] mEntryRing = new int[0];
+    protected int[] mEntryPoint = new int[0];
+    protected List<float[]> mRings;
+
+    protected int mResultRing, mResultPoint;
+
+
+    /**
+     * Indexes the points of the rings, the arrays are kept by the reference and must not be
+     * changed until the next build
+     */
+    public void build(List<float[]> rings) {
+        mRings = rings;
+
+        int count = 0;
+        float minX = Float.MAX_VALUE, minY = Float.MAX_VALUE;
+        float maxX = -Float.MAX_VALUE, maxY = -Float.MAX_VALUE;
+        for (float[] items : rings) {
+            for (int i = 0; i < items.length - 1; i += 2) {
+                minX = Math.min(minX, items[i]);
+                maxX = Math.max(maxX, items[i]);
+                minY = Math.min(minY, items[i + 1]);
+                maxY = Math.max(maxY, items[i + 1]);
+                count++;
+            }
+        }
+
+        if (count == 0) {
+            mColumns = mRows = 0;
+            return;
+        }
+
+        float width = Math.max(maxX - minX, 1);
+        float height = Math.max(maxY - minY, 1);
+        // square cells with about POINTS_PER_CELL points in each
+        float cellSize = (float) Math.sqrt(width * height * POINTS_PER_CELL / count);
+        mColumns = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (int) Math.ceil(width / cellSize)));
+        mRows = Math.max(1, Math.min(MAX_CELLS_PER_SIDE, (int) Math.ceil(height / cellSize)));
+        mMinX = minX;
+        mMinY = minY;
+        mCellWidth = width / mColumns;
+        mCellHeight = height / mRows;
+
+        int cells = mColumns * mRows;
+        if (mCellStart.length < cells + 1)
+            mCellStart = new int[cells + 1];
+        else
+            Arrays.fill(mCellStart, 0, cells + 1, 0);
+        if (mEntryRing.length < count) {
+            mEntryRing = new int[count];
+            mEntryPoint = new int[count];
+        }
+
+        // the counting sort of the points by the cells
+        for (float[] items : rings) {
+            for (int i = 0; i < items.length - 1; i += 2)
+                mCellStart[getCell(items[i], items[i + 1]) + 1]++;
+        }
+        for (int cell = 0; cell < cells; cell++)
+            mCellStart[cell + 1] += mCellStart[cell];
+
+        for (int ring = 0; ring < rings.size(); ring++) {
+            float[] items = rings.get(ring);
+            for (int i = 0; i < items.length - 1; i += 2) {
+                int cell = getCell(items[i], items[i + 1]);
+                // the start of the cell is moved while it is filled and restored below
+                int entry = mCellStart[cell]++;
+                mEntryRing[entry] = ring;
+                mEntryPoint[entry] = i;
+            }
+        }
+        for (int cell = cells; cell > 0; cell--)
+            mCellStart[cell] = mCellStart[cell - 1];
+        mCellStart[0] = 0;
+    }
+
+
+    protected int getCell(float x, float y) {
+        return getRow(y) * mColumns + getColumn(x);
+    }
+
+
+    protected int getColumn(float x) {
+        return Math.max(0, Math.min(mColumns - 1, (int) ((x - mMinX) / mCellWidth)));
+    }
+
+
+    protected int getRow(float y) {
+        return Math.max(0, Math.min(mRows - 1, (int) ((y - mMinY) / mCellHeight)));
+    }
+
+
+    /**
+     * Finds the point in the rectangle, which is the nearest to its center
+     *
+     * @return false if there is no point in the rectangle
+     */
+    public boolean findNearest(double minX, double minY, double maxX, double maxY) {
+        if (mColumns == 0 || maxX < mMinX || maxY < mMinY
+                || minX > mMinX + mCellWidth * mColumns || minY > mMinY + mCellHeight * mRows)
+            return false;
+
+        double centerX = (minX + maxX) / 2;
+        double centerY = (minY + maxY) / 2;
+        double nearest = Double.MAX_VALUE;
+        int startColumn = getColumn((float) minX), endColumn = getColumn((float) maxX);
+        int startRow = getRow((float) minY), endRow = getRow((float) maxY);
+
+        for (int row = startRow; row <= endRow; row++) {
+            for (int column = startColumn; column <= endColumn; column++) {
+                int cell = row * mColumns + column;
+                for (int entry = mCellStart[cell]; entry < mCellStart[cell + 1]; entry++) {
+                    float[] items = mRings.get(mEntryRing[entry]);
+                    int point = mEntryPoint[entry];
+                    float x = items[point], y = items[point + 1];
+                    if (x < minX || x > maxX || y < minY || y > maxY)
+                        continue;
+
+                    double distance = (x - centerX) * (x - centerX) + (y - centerY) * (y - centerY);
+                    // the first point of the rings order wins on the same distance
+                    if (distance < nearest || distance == nearest && isBefore(entry)) {
+                        nearest = distance;
+                        mResultRing = mEntryRing[entry];
+                        mResultPoint = point;
+                    }
+                }
+            }
+        }
+
+        return nearest != Double.MAX_VALUE;
+    }
+
+
+    protected boolean isBefore(int entry) {
+        return mEntryRing[entry] < mResultRing
+                || mEntryRing[entry] == mResultRing && mEntryPoint[entry] < mResultPoint;
+    }
+
+
+    /**
+     * @return the ring of the found point
+     */
+    public int getResultRing() {
+        return mResultRing;
+    }
+
+
+    /**
+     * @return the index of the found point X coordinate in the ring array
+     */
+    public int getResultPoint() {
+        return mResultPoint;
+    }
+}
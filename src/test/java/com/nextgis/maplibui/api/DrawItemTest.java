@@ -0,0 +1,159 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.api;
+
+import com.nextgis.maplib.util.GeoConstants;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+
+public class DrawItemTest
+{
+    protected static final float DELTA = 1e-6f;
+
+
+    @Test
+    public void lineEdges()
+    {
+        DrawItem item = new DrawItem(DrawItem.TYPE_VERTEX, new float[] {0, 0, 10, 0, 10, 10});
+        item.setEdgesType(DrawItem.EDGES_LINE);
+
+        assertEquals(1, item.getEdges().size());
+        assertArrayEquals(new float[] {5, 0, 10, 5}, item.getEdges().get(0), DELTA);
+    }
+
+
+    @Test
+    public void moveVertex()
+    {
+        DrawItem item = newSquare();
+        item.setSelectedRing(0);
+        item.setSelectedPoint(0);
+        item.setSelectedPointCoordinates(-2, -2);
+
+        assertEdges(item);
+        // the closing edge and the first one
+        assertArrayEquals(new float[] {4, -1, 10, 5, 5, 10, -1, 4}, item.getEdges().get(0), DELTA);
+
+        DrawItem line = new DrawItem(DrawItem.TYPE_VERTEX, new float[] {0, 0, 10, 0, 20, 0});
+        line.setEdgesType(DrawItem.EDGES_LINE);
+        line.setSelectedRing(0);
+        line.setSelectedPoint(4);
+        line.setSelectedPointCoordinates(20, 10);
+        assertEdges(line);
+    }
+
+
+    @Test
+    public void insertVertex()
+    {
+        DrawItem item = newSquare();
+        item.setSelectedRing(0);
+        item.insertNewPoint(2, 5, -5);
+        assertEdges(item);
+        assertEquals(10, item.getEdges().get(0).length);
+
+        item.addNewPoint(-5, 5);
+        assertEdges(item);
+        assertEquals(12, item.getEdges().get(0).length);
+    }
+
+
+    @Test
+    public void deleteVertex()
+    {
+        DrawItem item = newSquare();
+        item.setSelectedRing(0);
+        item.setSelectedPoint(2);
+        item.deleteSelectedPoint(GeoConstants.GTPolygon);
+        assertEdges(item);
+        assertEquals(6, item.getEdges().get(0).length);
+
+        // the ring of the minimum size is deleted with its edges
+        item.setSelectedPoint(0);
+        item.deleteSelectedPoint(GeoConstants.GTPolygon);
+        assertEquals(0, item.getRingCount());
+        assertEquals(0, item.getEdges().size());
+    }
+
+
+    @Test
+    public void deleteInnerRing()
+    {
+        DrawItem item = newSquare();
+        item.addVertices(new float[] {2, 2, 4, 2, 4, 4});
+        item.addVertices(new float[] {6, 6, 8, 6, 8, 8});
+        assertEdges(item);
+
+        item.setSelectedRing(1);
+        item.deleteSelectedRing();
+        assertEquals(2, item.getRingCount());
+        assertEdges(item);
+        assertArrayEquals(new float[] {7, 6, 8, 7, 7, 7}, item.getEdges().get(1), DELTA);
+    }
+
+
+    @Test
+    public void noEdges()
+    {
+        DrawItem item = new DrawItem(DrawItem.TYPE_VERTEX, new float[] {1, 1});
+        item.addVertices(new float[] {2, 2});
+        assertEquals(0, item.getEdges().size());
+
+        item.setEdgesType(DrawItem.getEdgesType(GeoConstants.GTMultiPoint));
+        assertEquals(0, item.getEdges().size());
+    }
+
+
+    protected static DrawItem newSquare()
+    {
+        DrawItem item = new DrawItem();
+        item.setEdgesType(DrawItem.getEdgesType(GeoConstants.GTPolygon));
+        item.addVertices(new float[] {0, 0, 10, 0, 10, 10, 0, 10});
+        return item;
+    }
+
+
+    /**
+     * Checks the edges are the midpoints of the vertices of the same ring
+     */
+    protected static void assertEdges(DrawItem item)
+    {
+        boolean closed = item.getEdgesType() == DrawItem.EDGES_RING;
+        assertEquals(item.getRingCount(), item.getEdges().size());
+        for (int ring = 0; ring < item.getRingCount(); ring++) {
+            float[] points = item.getRing(ring);
+            float[] edges = item.getEdges().get(ring);
+            assertEquals(closed ? points.length : points.length - 2, edges.length);
+            for (int i = 0; i < edges.length - 1; i += 2) {
+                int next = (i + 2) % points.length;
+                assertEquals((points[i] + points[next]) / 2, edges[i], DELTA);
+                assertEquals((points[i + 1] + points[next + 1]) / 2, edges[i + 1], DELTA);
+            }
+        }
+    }
+}
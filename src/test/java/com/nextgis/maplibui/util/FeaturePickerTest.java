@@ -0,0 +1,153 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoLineString;
+import com.nextgis.maplib.datasource.GeoLinearRing;
+import com.nextgis.maplib.datasource.GeoMultiPoint;
+import com.nextgis.maplib.datasource.GeoPoint;
+import com.nextgis.maplib.datasource.GeoPolygon;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+
+public class FeaturePickerTest
+{
+    protected static final double DELTA = 1e-9;
+
+
+    @Test
+    public void pointDistance()
+    {
+        assertEquals(25, FeaturePicker.getDistanceSquared(new GeoPoint(3, 4), 0, 0), DELTA);
+        assertEquals(0, FeaturePicker.getDistanceSquared(new GeoPoint(3, 4), 3, 4), DELTA);
+    }
+
+
+    @Test
+    public void segmentDistance()
+    {
+        // the projection is inside of the segment
+        assertEquals(4, FeaturePicker.getSegmentDistanceSquared(0, 0, 10, 0, 5, 2), DELTA);
+        // the projection is before the start and after the end
+        assertEquals(13, FeaturePicker.getSegmentDistanceSquared(0, 0, 10, 0, -3, 2), DELTA);
+        assertEquals(13, FeaturePicker.getSegmentDistanceSquared(0, 0, 10, 0, 13, -2), DELTA);
+        // the point on the segment
+        assertEquals(0, FeaturePicker.getSegmentDistanceSquared(0, 0, 10, 10, 4, 4), DELTA);
+        // the degenerate segment
+        assertEquals(2, FeaturePicker.getSegmentDistanceSquared(1, 1, 1, 1, 2, 2), DELTA);
+    }
+
+
+    @Test
+    public void lineDistance()
+    {
+        GeoLineString line = new GeoLineString();
+        line.add(new GeoPoint(0, 0));
+        line.add(new GeoPoint(10, 0));
+        line.add(new GeoPoint(10, 10));
+
+        assertEquals(1, FeaturePicker.getDistanceSquared(line, 5, 1), DELTA);
+        assertEquals(4, FeaturePicker.getDistanceSquared(line, 12, 5), DELTA);
+        assertEquals(2, FeaturePicker.getDistanceSquared(line, 11, 11), DELTA);
+        // the line is not closed
+        assertEquals(25, FeaturePicker.getDistanceSquared(line, 0, 5), DELTA);
+
+        GeoLineString single = new GeoLineString();
+        single.add(new GeoPoint(1, 1));
+        assertEquals(8, FeaturePicker.getDistanceSquared(single, 3, 3), DELTA);
+    }
+
+
+    @Test
+    public void polygonWithHole()
+    {
+        GeoPolygon polygon = new GeoPolygon();
+        polygon.add(new GeoPoint(0, 0));
+        polygon.add(new GeoPoint(10, 0));
+        polygon.add(new GeoPoint(10, 10));
+        polygon.add(new GeoPoint(0, 10));
+        polygon.add(new GeoPoint(0, 0));
+
+        GeoLinearRing hole = new GeoLinearRing();
+        hole.add(new GeoPoint(4, 4));
+        hole.add(new GeoPoint(6, 4));
+        hole.add(new GeoPoint(6, 6));
+        hole.add(new GeoPoint(4, 6));
+        hole.add(new GeoPoint(4, 4));
+        polygon.addInnerRing(hole);
+
+        assertTrue(FeaturePicker.isInside(polygon.getOuterRing(), 2, 2));
+        assertFalse(FeaturePicker.isInside(polygon.getOuterRing(), 12, 2));
+        assertTrue(FeaturePicker.isInside(hole, 5, 5));
+
+        // inside of the outer ring
+        assertEquals(0, FeaturePicker.getDistanceSquared(polygon, 2, 2), DELTA);
+        // outside of the outer ring
+        assertEquals(4, FeaturePicker.getDistanceSquared(polygon, 12, 5), DELTA);
+        // inside of the hole, the distance to the hole border
+        assertEquals(1, FeaturePicker.getDistanceSquared(polygon, 5, 5), DELTA);
+        assertEquals(0.25, FeaturePicker.getDistanceSquared(polygon, 4.5, 5), DELTA);
+    }
+
+
+    @Test
+    public void collectionDistance()
+    {
+        GeoMultiPoint points = new GeoMultiPoint();
+        points.add(new GeoPoint(0, 0));
+        points.add(new GeoPoint(10, 0));
+
+        assertEquals(4, FeaturePicker.getDistanceSquared(points, 8, 0), DELTA);
+        assertEquals(Double.MAX_VALUE,
+                FeaturePicker.getDistanceSquared(new GeoMultiPoint(), 8, 0), DELTA);
+    }
+
+
+    @Test
+    public void nextCycling()
+    {
+        FeaturePicker picker = new FeaturePicker();
+        assertNull(picker.next(1));
+
+        picker.mCandidates.add(new FeaturePicker.Candidate(7, null, 0, 0));
+        // the only candidate is selected already
+        assertNull(picker.next(7));
+        assertEquals(7, picker.next(1).getId());
+
+        picker.mCandidates.add(new FeaturePicker.Candidate(3, null, 1, 0));
+        picker.mCandidates.add(new FeaturePicker.Candidate(5, null, 2, 0));
+        // not among the candidates, the nearest first
+        assertEquals(7, picker.next(1).getId());
+        assertEquals(3, picker.next(7).getId());
+        assertEquals(5, picker.next(3).getId());
+        // from the last one to the nearest
+        assertEquals(7, picker.next(5).getId());
+    }
+}
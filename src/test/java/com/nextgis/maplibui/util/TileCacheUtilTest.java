@@ -0,0 +1,79 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.assertEquals;
+
+
+public class TileCacheUtilTest
+{
+    @Test
+    public void parseTileName()
+    {
+        assertEquals(0, TileCacheUtil.parseTileName("0.tile"));
+        assertEquals(123, TileCacheUtil.parseTileName("123.tile"));
+        assertEquals(33554431, TileCacheUtil.parseTileName("33554431.tile"));
+    }
+
+
+    @Test
+    public void parseTileNameRejectsNotTiles()
+    {
+        // the leftover of the interrupted download
+        assertEquals(-1, TileCacheUtil.parseTileName("123.tile.part"));
+        assertEquals(-1, TileCacheUtil.parseTileName("123"));
+        assertEquals(-1, TileCacheUtil.parseTileName("123.png"));
+        assertEquals(-1, TileCacheUtil.parseTileName(".tile"));
+        assertEquals(-1, TileCacheUtil.parseTileName("12a.tile"));
+        assertEquals(-1, TileCacheUtil.parseTileName("-1.tile"));
+        assertEquals(-1, TileCacheUtil.parseTileName("1.2.tile"));
+        assertEquals(-1, TileCacheUtil.parseTileName("1234567890.tile"));
+        assertEquals(-1, TileCacheUtil.parseTileName(""));
+    }
+
+
+    @Test
+    public void parseTileNumber()
+    {
+        assertEquals(17, TileCacheUtil.parseTileNumber("17"));
+        assertEquals(42, TileCacheUtil.parseTileNumber("42.png"));
+        assertEquals(42, TileCacheUtil.parseTileNumber("42.tile"));
+        assertEquals(-1, TileCacheUtil.parseTileNumber("trash_1"));
+        assertEquals(-1, TileCacheUtil.parseTileNumber(".png"));
+        assertEquals(-1, TileCacheUtil.parseTileNumber(""));
+    }
+
+
+    @Test
+    public void getTileFile()
+    {
+        File file = TileCacheUtil.getTileFile(new File("layer"), 3, 4, 5);
+        assertEquals(new File("layer", "3" + File.separator + "4" + File.separator + "5.tile"),
+                file);
+    }
+}
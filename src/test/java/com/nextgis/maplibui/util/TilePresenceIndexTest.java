@@ -0,0 +1,177 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+package com.nextgis.maplibui.util;
+
+import com.nextgis.maplib.datasource.GeoEnvelope;
+import com.nextgis.maplib.util.GeoConstants;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class TilePresenceIndexTest
+{
+    protected File mPath;
+
+
+    @Before
+    public void createCache()
+            throws IOException
+    {
+        mPath = File.createTempFile("tiles", "");
+        assertTrue(mPath.delete());
+        assertTrue(mPath.mkdir());
+    }
+
+
+    @After
+    public void deleteCache()
+    {
+        delete(mPath);
+    }
+
+
+    protected static void delete(File file)
+    {
+        File[] files = file.listFiles();
+        if (null != files) {
+            for (File child : files) {
+                delete(child);
+            }
+        }
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+
+    protected void createTile(
+            int zoom,
+            int x,
+            int y)
+            throws IOException
+    {
+        File file = TileCacheUtil.getTileFile(mPath, zoom, x, y);
+        assertTrue(file.getParentFile().isDirectory() || file.getParentFile().mkdirs());
+        assertTrue(file.createNewFile());
+    }
+
+
+    @Test
+    public void readCache()
+            throws IOException
+    {
+        createTile(3, 1, 2);
+        createTile(3, 1, 7);
+        createTile(3, 6, 0);
+        assertTrue(new File(TileCacheUtil.getTileFile(mPath, 3, 6, 0).getParentFile(),
+                "5.tile.part").createNewFile());
+
+        TilePresenceIndex index = new TilePresenceIndex(mPath, 0);
+        assertTrue(index.isPresent(3, 1, 2));
+        assertTrue(index.isPresent(3, 1, 7));
+        assertTrue(index.isPresent(3, 6, 0));
+        assertFalse(index.isPresent(3, 6, 5));
+        assertFalse(index.isPresent(3, 2, 1));
+        assertFalse(index.isPresent(4, 1, 2));
+    }
+
+
+    @Test
+    public void setPresent()
+    {
+        TilePresenceIndex index = new TilePresenceIndex(mPath, 0);
+        index.setPresent(18, 262143, 262143, true);
+        index.setPresent(18, 0, 5, true);
+        assertTrue(index.isPresent(18, 262143, 262143));
+        assertTrue(index.isPresent(18, 0, 5));
+        assertFalse(index.isPresent(18, 5, 0));
+
+        index.setPresent(18, 262143, 262143, false);
+        assertFalse(index.isPresent(18, 262143, 262143));
+        assertTrue(index.isPresent(18, 0, 5));
+    }
+
+
+    @Test
+    public void countPresent()
+            throws IOException
+    {
+        createTile(2, 0, 0);
+        createTile(2, 1, 3);
+        createTile(2, 3, 3);
+
+        TilePresenceIndex index = new TilePresenceIndex(mPath, 0);
+        index.setPresent(2, 2, 1, true);
+
+        double max = GeoConstants.MERCATOR_MAX;
+        GeoEnvelope world = new GeoEnvelope(-max, max, -max, max);
+        assertEquals(4, index.countPresent(world, 2, GeoConstants.TMSTYPE_NORMAL));
+
+        // the west half, x of 0 and 1
+        GeoEnvelope west = new GeoEnvelope(-max, 0, -max, max);
+        assertEquals(2, index.countPresent(west, 2, GeoConstants.TMSTYPE_NORMAL));
+
+        // the north half, y of 2 and 3 in TMS, y of 0 and 1 in OSM
+        GeoEnvelope north = new GeoEnvelope(-max, max, 0, max);
+        assertEquals(2, index.countPresent(north, 2, GeoConstants.TMSTYPE_NORMAL));
+        assertEquals(2, index.countPresent(north, 2, GeoConstants.TMSTYPE_OSM));
+    }
+
+
+    @Test
+    public void keysInAnyOrder()
+    {
+        TilePresenceIndex.ZoomKeys keys = new TilePresenceIndex.ZoomKeys(new long[0], 0);
+        // more than the pending buffer, added from the end
+        int count = TilePresenceIndex.ZoomKeys.MAX_PENDING * 3 + 7;
+        for (int i = count - 1; i >= 0; i--) {
+            keys.add(TilePresenceIndex.getKey(i % 100, i / 100));
+            keys.add(TilePresenceIndex.getKey(i % 100, i / 100));
+        }
+        assertEquals(count, keys.size());
+
+        for (int i = 0; i < count; i++) {
+            assertTrue(keys.contains(TilePresenceIndex.getKey(i % 100, i / 100)));
+        }
+        assertFalse(keys.contains(TilePresenceIndex.getKey(100, 0)));
+
+        keys.remove(TilePresenceIndex.getKey(5, 3));
+        assertFalse(keys.contains(TilePresenceIndex.getKey(5, 3)));
+        assertEquals(count - 1, keys.size());
+
+        // the column of x 5 without y 3
+        int column = (count - 5 + 99) / 100;
+        assertEquals(column - 1, keys.count(TilePresenceIndex.getKey(5, 0),
+                TilePresenceIndex.getKey(6, 0)));
+    }
+}
@@ -0,0 +1,185 @@
+/*
+ * Project:  NextGIS Mobile
+ * Purpose:  Mobile GIS for Android.
+ * Author:   Dmitry Baryshnikov (aka Bishop), bishop.dev@gmail.com
+ * Author:   NikitaFeodonit, nfeodonit@yandex.com
+ * Author:   Stanislav Petriakov, becomeglory@gmail.com
+ * *****************************************************************************
+ * Copyright (c) 2017 NextGIS, info@nextgis.com
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Lesser Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package com.nextgis.maplibui.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+
+public class VertexGridTest
+{
+    @Test
+    public void findNearest()
+    {
+        VertexGrid grid = new VertexGrid();
+        grid.build(Arrays.asList(new float[] {0, 0, 10, 10, 20, 20}, new float[] {11, 9, 30, 30}));
+
+        assertTrue(grid.findNearest(8, 8, 12, 12));
+        assertEquals(0, grid.getResultRing());
+        assertEquals(2, grid.getResultPoint());
+
+        assertTrue(grid.findNearest(10, 8, 12, 10));
+        assertEquals(1, grid.getResultRing());
+        assertEquals(0, grid.getResultPoint());
+    }
+
+
+    @Test
+    public void findNearestNotFound()
+    {
+        VertexGrid grid = new VertexGrid();
+        grid.build(Arrays.asList(new float[] {0, 0, 10, 10}));
+
+        // outside of the grid bounds
+        assertFalse(grid.findNearest(20, 20, 30, 30));
+        // inside of the grid bounds, but no point in the rectangle
+        assertFalse(grid.findNearest(2, 2, 8, 8));
+    }
+
+
+    @Test
+    public void findNearestTieBreaking()
+    {
+        VertexGrid grid = new VertexGrid();
+        // the same distance to the center (5, 5), the first point of the rings order wins
+        grid.build(Arrays.asList(new float[] {8, 5, 5, 2}, new float[] {2, 5, 5, 8}));
+
+        assertTrue(grid.findNearest(0, 0, 10, 10));
+        assertEquals(0, grid.getResultRing());
+        assertEquals(0, grid.getResultPoint());
+
+        // the same point twice
+        grid.build(Arrays.asList(new float[] {1, 1}, new float[] {3, 3, 3, 3}));
+        assertTrue(grid.findNearest(2, 2, 4, 4));
+        assertEquals(1, grid.getResultRing());
+        assertEquals(0, grid.getResultPoint());
+    }
+
+
+    @Test
+    public void emptyAndDegenerateRings()
+    {
+        VertexGrid grid = new VertexGrid();
+        grid.build(Collections.<float[]>emptyList());
+        assertFalse(grid.findNearest(-10, -10, 10, 10));
+
+        grid.build(Arrays.asList(new float[0], new float[] {5}));
+        assertFalse(grid.findNearest(-10, -10, 10, 10));
+
+        // the odd last coordinate is not a point
+        grid.build(Arrays.asList(new float[0], new float[] {5, 5, 7}));
+        assertTrue(grid.findNearest(0, 0, 10, 10));
+        assertEquals(1, grid.getResultRing());
+        assertEquals(0, grid.getResultPoint());
+
+        // all the points are on a line, the grid has the zero height
+        grid.build(Arrays.asList(new float[] {0, 3, 1, 3, 2, 3, 3, 3}));
+        assertTrue(grid.findNearest(1.6, 2, 2.6, 4));
+        assertEquals(4, grid.getResultPoint());
+    }
+
+
+    @Test
+    public void rebuildWithLessPoints()
+    {
+        VertexGrid grid = new VertexGrid();
+        grid.build(Arrays.asList(new float[] {0, 0, 1, 1, 2, 2, 3, 3, 4, 4, 5, 5}));
+        grid.build(Arrays.asList(new float[] {100, 100}));
+
+        assertFalse(grid.findNearest(0, 0, 10, 10));
+        assertTrue(grid.findNearest(90, 90, 110, 110));
+        assertEquals(0, grid.getResultRing());
+        assertEquals(0, grid.getResultPoint());
+    }
+
+
+    @Test
+    public void findNearestAsFullScan()
+    {
+        Random random = new Random(42);
+        List<float[]> rings = new ArrayList<>();
+        for (int ring = 0; ring < 5; ring++) {
+            float[] items = new float[2000];
+            for (int i = 0; i < items.length; i++) {
+                // the integer coordinates to have the ties
+                items[i] = random.nextInt(500);
+            }
+            rings.add(items);
+        }
+
+        VertexGrid grid = new VertexGrid();
+        grid.build(rings);
+
+        for (int query = 0; query < 500; query++) {
+            double minX = random.nextInt(500) - 10, minY = random.nextInt(500) - 10;
+            double maxX = minX + random.nextInt(30), maxY = minY + random.nextInt(30);
+
+            int[] expected = findNearest(rings, minX, minY, maxX, maxY);
+            assertEquals(null != expected, grid.findNearest(minX, minY, maxX, maxY));
+            if (null != expected) {
+                assertEquals(expected[0], grid.getResultRing());
+                assertEquals(expected[1], grid.getResultPoint());
+            }
+        }
+    }
+
+
+    protected static int[] findNearest(
+            List<float[]> rings,
+            double minX,
+            double minY,
+            double maxX,
+            double maxY)
+    {
+        double centerX = (minX + maxX) / 2;
+        double centerY = (minY + maxY) / 2;
+        double nearest = Double.MAX_VALUE;
+        int[] result = null;
+        for (int ring = 0; ring < rings.size(); ring++) {
+            float[] items = rings.get(ring);
+            for (int i = 0; i < items.length - 1; i += 2) {
+                float x = items[i], y = items[i + 1];
+                if (x < minX || x > maxX || y < minY || y > maxY) {
+                    continue;
+                }
+
+                double distance = (x - centerX) * (x - centerX) + (y - centerY) * (y - centerY);
+                if (distance < nearest) {
+                    nearest = distance;
+                    result = new int[] {ring, i};
+                }
+            }
+        }
+        return result;
+    }
+}